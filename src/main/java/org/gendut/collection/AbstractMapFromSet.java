@@ -49,17 +49,43 @@ abstract class AbstractMapFromSet<Key, Value, ReturnType extends AbstractMapFrom
 
         public static Comparator keyComparator(final Comparator cmp)
         {
-            return new Comparator()
-            {
-                public int compare(Object a, Object b)
-                {
-                    if (a != null && a.getClass() == MapEntry.class)
-                        a = ((MapEntry) a).key;
-                    if (b != null && b.getClass() == MapEntry.class)
-                        b = ((MapEntry) b).key;
-                    return cmp.compare(a, b);
-                }
-            };
+            return new KeyComparator(cmp);
+        }
+    }
+
+    /*
+     * Key comparators are equal if the comparators of the keys are equal, so
+     * that maps with the same key order can be recognized.
+     */
+    private static final class KeyComparator implements Comparator
+    {
+        final Comparator cmp;
+
+        KeyComparator(final Comparator cmp)
+        {
+            this.cmp = cmp;
+        }
+
+        public int compare(Object a, Object b)
+        {
+            if (a != null && a.getClass() == MapEntry.class)
+                a = ((MapEntry) a).key;
+            if (b != null && b.getClass() == MapEntry.class)
+                b = ((MapEntry) b).key;
+            return cmp.compare(a, b);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return cmp.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return (obj != null) && (obj.getClass() == KeyComparator.class)
+                            && cmp.equals(((KeyComparator) obj).cmp);
         }
     }
 
@@ -126,7 +152,7 @@ abstract class AbstractMapFromSet<Key, Value, ReturnType extends AbstractMapFrom
         else return v.equals(e.second());
     }
 
-    private final class Iterator implements ForwardIterator<Pair<Key, Value>>
+    final class Iterator implements ForwardIterator<Pair<Key, Value>>
     {
         final ForwardIterator<Object> setIter;
 
@@ -16,13 +16,17 @@ final class AvlTree {
 		public final Object left, right;
 		public final int height;
 		public final int hash;
-		public final BigInteger count;
+		// hugeCount if the number of elements exceeds the range of long:
+		public final long count;
+		// null unless the number of elements exceeds the range of long:
+		public final BigInteger bigCount;
 
 		private BinNode() {
 			left = right = null;
 			height = 0;
 			hash = 0;
-			count = BigInteger.ZERO;
+			count = 0;
+			bigCount = null;
 		}
 
 		public BinNode(Object left, Object right) {
@@ -33,7 +37,16 @@ final class AvlTree {
 
 			this.left = left;
 			this.right = right;
-			this.count = count(left).add(count(right));
+			long leftCount = longCount(left);
+			long rightCount = longCount(right);
+			long sum = leftCount + rightCount;
+			if ((leftCount == hugeCount) || (rightCount == hugeCount) || (sum < 0)) {
+				this.count = hugeCount;
+				this.bigCount = count(left).add(count(right));
+			} else {
+				this.count = sum;
+				this.bigCount = null;
+			}
 			// TODO: we could implement a more robust hash via:
 			// (hash(left)^count(right) % prime) + hash(right)) % prime
 			// by using a fast modular exponentiation algorithm.
@@ -78,6 +91,21 @@ final class AvlTree {
 	static BigInteger count(Object tree) {
 		if ((tree == null) || (tree.getClass() != BinNode.class))
 			return BigInteger.ONE;
+		BinNode node = (BinNode) tree;
+		if (node.bigCount != null)
+			return node.bigCount;
+		else
+			return BigInteger.valueOf(node.count);
+	}
+
+	/**
+	 * the long count of trees with more than Long.MAX_VALUE elements
+	 */
+	static final long hugeCount = -1;
+
+	static long longCount(Object tree) {
+		if ((tree == null) || (tree.getClass() != BinNode.class))
+			return 1;
 		else
 			return ((BinNode) tree).count;
 	}
@@ -323,6 +351,14 @@ final class AvlTree {
 		}
 	}
 
+	static int compareCounts(Object t1, Object t2) {
+		long c1 = longCount(t1);
+		long c2 = longCount(t2);
+		if ((c1 == hugeCount) || (c2 == hugeCount))
+			return count(t1).compareTo(count(t2));
+		return Long.compare(c1, c2);
+	}
+
 	public static boolean isEqual(Object t1, Object t2) {
 		return count(t1).equals(count(t2)) && hashCode(t1) == hashCode(t2)
 				&& firstDifference(t1, t2).equals(valueOf(-1));
@@ -345,7 +381,7 @@ final class AvlTree {
 				visitor1.skipCurrentNode();
 				visitor2.skipCurrentNode();
 			} else {
-				int cmp = count(node1).compareTo(count(node2));
+				int cmp = compareCounts(node1, node2);
 				if (cmp > 0) {
 					PreorderVisitor tmp = visitor1;
 					visitor1 = visitor2;
@@ -353,7 +389,7 @@ final class AvlTree {
 				} else if (cmp < 0) {
 					visitor2.next();
 				} else {
-					if (count(node2).equals(ONE)) {
+					if (longCount(node2) == 1) {
 						//TODOasserts(isLeaf(node1));
 						//TODOasserts(isLeaf(node2));
 						if (!node1.equals(node2))
@@ -0,0 +1,478 @@
+package org.gendut.collection;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+import org.gendut.iterator.ForwardIterator;
+
+/**
+ * A persistent sorted set based on a B+ tree with wide nodes, an alternative
+ * to the binary {@link SortedSet} for read-heavy indexes. The elements are
+ * stored in leaves, which are sorted arrays of up to {@link #maxLeafSize}
+ * elements, and inner nodes have up to {@link #maxChildren} children. A set of
+ * ten million elements is only five levels high, a lookup does a binary search
+ * in one array per level, and an update copies one array per level instead of
+ * O(log n) small nodes. Unlike SortedSet, it has no monoid images and cannot be
+ * catenated.
+ */
+public final class BTreeSet<E> extends AbstractCollection<E> implements
+		UpdatableSet<E, BTreeSet<E>> {
+
+	static final int maxLeafSize = 64;
+
+	static final int maxChildren = 32;
+
+	private static final Object[] emptyLeaf = new Object[0];
+
+	/*
+	 * An inner node. The leaves are plain sorted arrays of elements, and all
+	 * leaves have the same depth.
+	 */
+	private static final class Node {
+		final Object[] children;
+
+		/*
+		 * the first element of each child
+		 */
+		final Object[] firstKeys;
+
+		/*
+		 * counts[i] is the number of elements in the children 0..i
+		 */
+		final long[] counts;
+
+		Node(Object[] children) {
+			int n = children.length;
+			this.children = children;
+			this.firstKeys = new Object[n];
+			this.counts = new long[n];
+			long sum = 0;
+			for (int i = 0; i < n; i++) {
+				firstKeys[i] = firstKey(children[i]);
+				sum = sum + count(children[i]);
+				counts[i] = sum;
+			}
+		}
+	}
+
+	/*
+	 * the result of an update which splits a node into two
+	 */
+	private static final class Split {
+		final Object left, right;
+
+		Split(Object left, Object right) {
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	private final Object root;
+
+	private final Comparator<? super E> cmp;
+
+	private BTreeSet(Object root, Comparator<? super E> cmp) {
+		this.root = root;
+		this.cmp = cmp;
+	}
+
+	static public <E> BTreeSet<E> create(Comparator<? super E> cmp) {
+		return new BTreeSet<E>(emptyLeaf, cmp);
+	}
+
+	private BTreeSet<E> withRoot(Object newRoot) {
+		if (newRoot == root)
+			return this;
+		return new BTreeSet<E>(newRoot, cmp);
+	}
+
+	private static Object firstKey(Object node) {
+		if (node instanceof Node)
+			return ((Node) node).firstKeys[0];
+		return ((Object[]) node)[0];
+	}
+
+	private static long count(Object node) {
+		if (node instanceof Node) {
+			long[] counts = ((Node) node).counts;
+			return counts[counts.length - 1];
+		}
+		return ((Object[]) node).length;
+	}
+
+	private static boolean isUnderfull(Object node) {
+		if (node instanceof Node)
+			return ((Node) node).children.length < maxChildren / 2;
+		return ((Object[]) node).length < maxLeafSize / 2;
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(Object a, Object b) {
+		return cmp.compare((E) a, (E) b);
+	}
+
+	/*
+	 * returns the index of the child which may contain the key: the last child
+	 * whose first element is not larger than the key, or the first child.
+	 */
+	private int childIndex(Node node, Object key) {
+		Object[] firstKeys = node.firstKeys;
+		int low = 1;
+		int high = firstKeys.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (compare(firstKeys[mid], key) <= 0)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return low - 1;
+	}
+
+	/*
+	 * returns the index of the key in a leaf, or -(insertion point) - 1.
+	 */
+	@SuppressWarnings("unchecked")
+	private int search(Object[] leaf, Object key) {
+		return Arrays.binarySearch(leaf, key, (Comparator<Object>) cmp);
+	}
+
+	private static Object[] replaced(Object[] a, int i, Object x) {
+		Object[] b = a.clone();
+		b[i] = x;
+		return b;
+	}
+
+	private static Object[] inserted(Object[] a, int i, Object x) {
+		Object[] b = new Object[a.length + 1];
+		System.arraycopy(a, 0, b, 0, i);
+		b[i] = x;
+		System.arraycopy(a, i, b, i + 1, a.length - i);
+		return b;
+	}
+
+	private static Object[] removed(Object[] a, int i) {
+		Object[] b = new Object[a.length - 1];
+		System.arraycopy(a, 0, b, 0, i);
+		System.arraycopy(a, i + 1, b, i, b.length - i);
+		return b;
+	}
+
+	/*
+	 * returns the leaf or the node with the given entries, or a split into two
+	 * halves if there are too many of them.
+	 */
+	private static Object leafOrSplit(Object[] keys) {
+		if (keys.length <= maxLeafSize)
+			return keys;
+		int half = keys.length / 2;
+		return new Split(Arrays.copyOfRange(keys, 0, half), Arrays.copyOfRange(
+				keys, half, keys.length));
+	}
+
+	private static Object nodeOrSplit(Object[] children) {
+		if (children.length <= maxChildren)
+			return new Node(children);
+		int half = children.length / 2;
+		return new Split(new Node(Arrays.copyOfRange(children, 0, half)),
+				new Node(Arrays.copyOfRange(children, half, children.length)));
+	}
+
+	public long size() {
+		return count(root);
+	}
+
+	public BigInteger elementCount() {
+		return BigInteger.valueOf(size());
+	}
+
+	/**
+	 * returns the number of levels of the tree.
+	 */
+	int height() {
+		int height = 1;
+		for (Object node = root; node instanceof Node; node = ((Node) node).children[0])
+			height++;
+		return height;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E find(E e) {
+		Object node = root;
+		while (node instanceof Node) {
+			Node inner = (Node) node;
+			node = inner.children[childIndex(inner, e)];
+		}
+		Object[] leaf = (Object[]) node;
+		int i = search(leaf, e);
+		return (i >= 0) ? (E) leaf[i] : null;
+	}
+
+	public boolean contains(E e) {
+		return find(e) != null;
+	}
+
+	/**
+	 * adds an element. An equal element is replaced, like in {@link SortedSet}.
+	 */
+	public BTreeSet<E> add(E e) {
+		if (e == null)
+			throw new NullPointerException("BTreeSet does not allow null elements");
+		Object newRoot = insert(root, e);
+		if (newRoot instanceof Split) {
+			Split split = (Split) newRoot;
+			newRoot = new Node(new Object[] { split.left, split.right });
+		}
+		return withRoot(newRoot);
+	}
+
+	private Object insert(Object node, Object e) {
+		if (!(node instanceof Node)) {
+			Object[] leaf = (Object[]) node;
+			int i = search(leaf, e);
+			if (i >= 0)
+				return (leaf[i] == e) ? leaf : replaced(leaf, i, e);
+			return leafOrSplit(inserted(leaf, -i - 1, e));
+		}
+		Node inner = (Node) node;
+		int i = childIndex(inner, e);
+		Object child = inner.children[i];
+		Object newChild = insert(child, e);
+		if (newChild == child)
+			return node;
+		if (!(newChild instanceof Split))
+			return new Node(replaced(inner.children, i, newChild));
+		Split split = (Split) newChild;
+		Object[] children = inserted(inner.children, i + 1, split.right);
+		children[i] = split.left;
+		return nodeOrSplit(children);
+	}
+
+	public BTreeSet<E> remove(E e) {
+		Object newRoot = delete(root, e);
+		if ((newRoot instanceof Node) && (((Node) newRoot).children.length == 1))
+			newRoot = ((Node) newRoot).children[0];
+		return withRoot(newRoot);
+	}
+
+	/*
+	 * removes an element. A child which becomes underfull is merged with a
+	 * neighbour, and the result is split again if it is too large, which is
+	 * the same as moving some entries from the neighbour.
+	 */
+	private Object delete(Object node, Object e) {
+		if (!(node instanceof Node)) {
+			Object[] leaf = (Object[]) node;
+			int i = search(leaf, e);
+			return (i >= 0) ? removed(leaf, i) : leaf;
+		}
+		Node inner = (Node) node;
+		int i = childIndex(inner, e);
+		Object child = inner.children[i];
+		Object newChild = delete(child, e);
+		if (newChild == child)
+			return node;
+		Object[] children = replaced(inner.children, i, newChild);
+		if (isUnderfull(newChild) && (children.length > 1)) {
+			int j = (i > 0) ? i - 1 : i;
+			Object merged = merge(children[j], children[j + 1]);
+			if (merged instanceof Split) {
+				children[j] = ((Split) merged).left;
+				children[j + 1] = ((Split) merged).right;
+			} else {
+				children[j] = merged;
+				children = removed(children, j + 1);
+			}
+		}
+		return new Node(children);
+	}
+
+	private static Object merge(Object left, Object right) {
+		if (left instanceof Node) {
+			Object[] a = ((Node) left).children;
+			Object[] b = ((Node) right).children;
+			Object[] children = Arrays.copyOf(a, a.length + b.length);
+			System.arraycopy(b, 0, children, a.length, b.length);
+			return nodeOrSplit(children);
+		}
+		Object[] a = (Object[]) left;
+		Object[] b = (Object[]) right;
+		Object[] keys = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, keys, a.length, b.length);
+		return leafOrSplit(keys);
+	}
+
+	public BTreeSet<E> clear() {
+		return create(cmp);
+	}
+
+	public BTreeSet<E> minus(Set<? extends E> other) {
+		return Collections.minus(this, other);
+	}
+
+	/**
+	 * returns the element at a position in sorted order.
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(long pos) {
+		if ((pos < 0) || (pos >= size()))
+			throw new IndexOutOfBoundsException("position " + pos);
+		Object node = root;
+		while (node instanceof Node) {
+			Node inner = (Node) node;
+			long[] counts = inner.counts;
+			// the first child with counts[i] > pos:
+			int low = 0;
+			int high = counts.length - 1;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (counts[mid] > pos)
+					high = mid;
+				else
+					low = mid + 1;
+			}
+			if (low > 0)
+				pos = pos - counts[low - 1];
+			node = inner.children[low];
+		}
+		return (E) ((Object[]) node)[(int) pos];
+	}
+
+	/**
+	 * returns the element with the given rank, i.e. the element at position i.
+	 */
+	public E select(long i) {
+		return get(i);
+	}
+
+	/**
+	 * returns the number of elements which are smaller than the key.
+	 */
+	public long rank(E key) {
+		long rank = 0;
+		Object node = root;
+		while (node instanceof Node) {
+			Node inner = (Node) node;
+			int i = childIndex(inner, key);
+			if (i > 0)
+				rank = rank + inner.counts[i - 1];
+			node = inner.children[i];
+		}
+		int i = search((Object[]) node, key);
+		return rank + ((i >= 0) ? i : -i - 1);
+	}
+
+	private E elementAt(long pos) {
+		if ((pos < 0) || (pos >= size()))
+			return null;
+		return get(pos);
+	}
+
+	/**
+	 * returns the largest element smaller than the key, or null.
+	 */
+	public E lower(E key) {
+		return elementAt(rank(key) - 1);
+	}
+
+	/**
+	 * returns the largest element not larger than the key, or null.
+	 */
+	public E floor(E key) {
+		long pos = rank(key);
+		E e = elementAt(pos);
+		return ((e != null) && (compare(e, key) == 0)) ? e : elementAt(pos - 1);
+	}
+
+	/**
+	 * returns the smallest element not smaller than the key, or null.
+	 */
+	public E ceiling(E key) {
+		return elementAt(rank(key));
+	}
+
+	/**
+	 * returns the smallest element larger than the key, or null.
+	 */
+	public E higher(E key) {
+		long pos = rank(key);
+		E e = elementAt(pos);
+		return ((e != null) && (compare(e, key) == 0)) ? elementAt(pos + 1) : e;
+	}
+
+	/*
+	 * Iterates over the leaves from left to right. The path holds the inner
+	 * nodes from the root to the current leaf and the index of the child taken
+	 * in each of them.
+	 */
+	private static final class LeafIterator<E> implements ForwardIterator<E> {
+		private final Node[] path;
+
+		private final int[] index;
+
+		private Object[] leaf;
+
+		private int pos = 0;
+
+		LeafIterator(Object root, int depth) {
+			path = new Node[depth];
+			index = new int[depth];
+			descend(root, 0);
+		}
+
+		private void descend(Object node, int level) {
+			for (; level < path.length; level++) {
+				path[level] = (Node) node;
+				index[level] = 0;
+				node = path[level].children[0];
+			}
+			leaf = (Object[]) node;
+			pos = 0;
+		}
+
+		public boolean hasNext() {
+			return pos < leaf.length;
+		}
+
+		@SuppressWarnings("unchecked")
+		public E next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			E result = (E) leaf[pos];
+			pos++;
+			if (pos == leaf.length) {
+				int level = path.length - 1;
+				while ((level >= 0)
+						&& (index[level] == path[level].children.length - 1))
+					level--;
+				if (level >= 0) {
+					index[level]++;
+					Object node = path[level].children[index[level]];
+					descend(node, level + 1);
+				}
+			}
+			return result;
+		}
+	}
+
+	public ForwardIterator<E> iterator() {
+		return new LeafIterator<E>(root, height() - 1);
+	}
+
+	@Override
+	public int hashCode() {
+		return Collections.hashCodeForSet(this);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return Collections.equalsForSets(this, obj);
+	}
+
+	@Override
+	public String toString() {
+		return Collections.toStringIterationOrder(this);
+	}
+}
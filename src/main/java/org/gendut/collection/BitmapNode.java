@@ -0,0 +1,127 @@
+package org.gendut.collection;
+
+/**
+ * This class is package-private. It is the compact layout of the inner nodes of
+ * an {@link ImmutableArrayBase}: Only the non-null slots are stored in an array,
+ * a bitmap tells which of the 16 slots are occupied. The position of a slot in
+ * the array is the number of occupied slots before it, so indexing needs no
+ * case distinction. Sparse nodes are much smaller than in the field layout.
+ */
+final class BitmapNode {
+	final int bitmap;
+
+	final Object[] children;
+
+	private BitmapNode(int bitmap, Object[] children) {
+		this.bitmap = bitmap;
+		this.children = children;
+	}
+
+	/**
+	 * creates a node from 16 slots, or returns null if all slots are null.
+	 */
+	static BitmapNode create(Object[] slots) {
+		int bitmap = 0;
+		int n = 0;
+		for (int k = 0; k < slots.length; k++) {
+			if (slots[k] != null) {
+				bitmap |= 1 << k;
+				n++;
+			}
+		}
+		if (n == 0)
+			return null;
+		Object[] children = new Object[n];
+		int j = 0;
+		for (int k = 0; k < slots.length; k++) {
+			if (slots[k] != null)
+				children[j++] = slots[k];
+		}
+		return new BitmapNode(bitmap, children);
+	}
+
+	Object child(int k) {
+		int bit = 1 << k;
+		if ((bitmap & bit) == 0)
+			return null;
+		return children[Integer.bitCount(bitmap & (bit - 1))];
+	}
+
+	/**
+	 * returns the number of the first occupied slot. A node always has at least
+	 * one occupied slot.
+	 */
+	int firstSlot() {
+		return Integer.numberOfTrailingZeros(bitmap);
+	}
+
+	/**
+	 * returns the number of the first occupied slot not before the given one, or
+	 * 16 if there is none.
+	 */
+	int nextSlot(int k) {
+		int rest = bitmap & (-1 << k);
+		return (rest == 0) ? 16 : Integer.numberOfTrailingZeros(rest);
+	}
+
+	void copySlots(Object[] slots) {
+		for (int k = 0; k < slots.length; k++)
+			slots[k] = null;
+		int j = 0;
+		for (int k = 0; k < slots.length; k++) {
+			if ((bitmap & (1 << k)) != 0)
+				slots[k] = children[j++];
+		}
+	}
+
+	/**
+	 * returns a node with the given slot replaced. The node of an empty slot is
+	 * null.
+	 */
+	static BitmapNode replace(BitmapNode node, int k, Object e) {
+		int bit = 1 << k;
+		if (node == null) {
+			return (e == null) ? null : new BitmapNode(bit, new Object[] { e });
+		}
+		int bitmap = node.bitmap;
+		Object[] children = node.children;
+		int j = Integer.bitCount(bitmap & (bit - 1));
+		if ((bitmap & bit) != 0) {
+			if (e != null) {
+				Object[] newChildren = children.clone();
+				newChildren[j] = e;
+				return new BitmapNode(bitmap, newChildren);
+			}
+			if (children.length == 1)
+				return null;
+			Object[] newChildren = new Object[children.length - 1];
+			System.arraycopy(children, 0, newChildren, 0, j);
+			System.arraycopy(children, j + 1, newChildren, j, children.length - j - 1);
+			return new BitmapNode(bitmap & ~bit, newChildren);
+		} else {
+			if (e == null)
+				return node;
+			Object[] newChildren = new Object[children.length + 1];
+			System.arraycopy(children, 0, newChildren, 0, j);
+			newChildren[j] = e;
+			System.arraycopy(children, j, newChildren, j + 1, children.length - j);
+			return new BitmapNode(bitmap | bit, newChildren);
+		}
+	}
+
+	String debug() {
+		StringBuffer str = new StringBuffer();
+		str.append('{');
+		for (int k = 0; k < 16; k++) {
+			Object t = child(k);
+			if (t != null) {
+				str.append(" t");
+				str.append(k);
+				str.append(':');
+				str.append(ImmutableArrayBase.subtreeToDbgStr(t));
+			}
+		}
+		str.append('}');
+		return str.toString();
+	}
+}
@@ -69,6 +69,14 @@ public interface CatenableArray<E> extends Array<E> {
    */
   public <F> F getImage(MonoidMap<E, F> map);
 
+  /**
+   * returns the homomorphic image of the elements at positions start..end-1.
+   * The image is combined from the images of O(log n) subtrees.
+   */
+  public <F> F getImage(MonoidMap<E, F> map, long start, long end);
+
+  public <F> F getImage(MonoidMap<E, F> map, BigInteger start, BigInteger end);
+
   public ImmutableSet<MonoidMap<E, ?>> getMaps();
 
   public CatenableArray<E> addMap(MonoidMap<E, ?> map);
@@ -4,6 +4,8 @@ import java.math.BigInteger;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.Function;
 
 import org.gendut.collection.mutable.ExtendibleArray;
@@ -21,8 +23,6 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 
 	final Comparator<? super E> cmp;
 
-	// TODO: a) Make all methods maintain images!
-
 	final ImmutableHashMap<MonoidMap<E, ?>, Object> images;
 
 	public CatenableArrayTree(Object root,
@@ -37,42 +37,17 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 		this.cmp = cmp;
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public CatenableArrayTree(CatenableArrayTree<E> arr1,
 			CatenableArrayTree<E> arr2) {
 		checkCompatibilty(arr1, arr2);
 
 		this.cmp = arr1.cmp;
-
-		if (arr1.images.size() != 0) {
-			int n = (int) arr1.images.size();
-			MonoidMap maps[] = new MonoidMap[n];
-			Object[] leftImages = new Object[n];
-			Object[] rightImages = new Object[n];
-			Object[] resultImages = new Object[n];
-
-			ForwardIterator<MonoidMap<E, ?>> iter = arr1.images.keys()
-					.iterator();
-			for (int i = 0; i < n; i++) {
-				MonoidMap map = iter.next();
-				maps[i] = map;
-				leftImages[i] = arr1.images.apply(map);
-				rightImages[i] = arr2.images.apply(map);
-			}
-			this.root = concat(arr1.root, arr2.root, leftImages, rightImages,
-					maps, resultImages);
-
-			ImmutableHashMap<MonoidMap<E, ?>, Object> newImages = ImmutableHashMap
-					.create();
-
-			for (int i = 0; i < n; i++) {
-				newImages = newImages.put(maps[i], resultImages[i]);
-			}
-			this.images = newImages;
-		} else {
-			this.root = concat(arr1.root, arr2.root, null, null, null, null);
-			this.images = arr1.images;
-		}
+		this.root = concat(arr1.root, arr2.root);
+		/*
+		 * the images of both subtrees are cached in their roots, only the nodes
+		 * created by concat need new images:
+		 */
+		this.images = imagesOf(arr1.images, root);
 	}
 
 	private void checkCompatibilty(CatenableArrayTree<E> arr1,
@@ -140,7 +115,11 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 	}
 
 	public final long size() throws IndexOutOfBoundsException {
-		return elementCount().longValue();
+		long n = longCount(root);
+		if (n == hugeCount)
+			throw new IndexOutOfBoundsException("size exceeds range of long: "
+					+ count(root));
+		return n;
 	}
 
 	public final ForwardIterator<E> iterator() {
@@ -153,11 +132,16 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 
 	@SuppressWarnings("unchecked")
 	final public E get(BigInteger pos) {
+		if (fitsInLong(root, pos))
+			return (E) get(root, pos.longValue());
 		return (E) get(root, pos);
 	}
 
+	@SuppressWarnings("unchecked")
 	final public E get(long pos) {
-		return get(BigInteger.valueOf(pos));
+		if (longCount(root) == hugeCount)
+			return (E) get(root, BigInteger.valueOf(pos));
+		return (E) get(root, pos);
 	}
 
 	final public BigInteger firstOf(Function<E, Boolean> condition) {
@@ -171,10 +155,14 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 	}
 
 	public ForwardIterator<E> iterator(long start) {
-		return iterator(BigInteger.valueOf(start));
+		if (longCount(root) == hugeCount)
+			return new MyIterator<E>(root, BigInteger.valueOf(start));
+		return new MyIterator<E>(root, start);
 	}
 
 	final public ForwardIterator<E> iterator(BigInteger start) {
+		if (fitsInLong(root, start))
+			return new MyIterator<E>(root, start.longValue());
 		return new MyIterator<E>(root, start);
 	}
 
@@ -182,18 +170,95 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 		return images.keys();
 	}
 
+	/**
+	 * returns the image of the array. For the maps of this array, the image is
+	 * stored with the array, for other maps it is computed without writing to
+	 * the caches of the nodes.
+	 */
 	@SuppressWarnings("unchecked")
 	final public <F> F getImage(MonoidMap<E, F> map) {
-		return (F) value(images.apply(map));
+		if (images.containsKey(map))
+			return (F) images.apply(map);
+		return (F) uncachedImage(root, map);
 	}
 
-	@SuppressWarnings("unchecked")
 	final public <F> F computeImage(MonoidMap<E, F> map) {
-		F image = (F) value(images.apply(map));
-		if (image == null)
-			return (F) value(computeImageTree(root, map));
-		else
-			return image;
+		return getImage(map);
+	}
+
+	/**
+	 * returns the image of the elements at positions start..end-1. For the maps
+	 * of this array, it is combined from O(log n) images of subtrees, which are
+	 * cached in the nodes.
+	 */
+	@SuppressWarnings("unchecked")
+	final public <F> F getImage(MonoidMap<E, F> map, long start, long end) {
+		if (longCount(root) == hugeCount)
+			return getImage(map, BigInteger.valueOf(start), BigInteger.valueOf(end));
+		checkRange(start, end);
+		return (F) image(root, map, start, end, images.containsKey(map));
+	}
+
+	@SuppressWarnings("unchecked")
+	final public <F> F getImage(MonoidMap<E, F> map, BigInteger start,
+			BigInteger end) {
+		if (fitsInLong(root, end))
+			return getImage(map, start.longValue(), end.longValue());
+		checkRange(start, end);
+		return (F) image(root, map, start, end, images.containsKey(map));
+	}
+
+	/**
+	 * returns the image of all elements e with lowKey <= e < highKey. The
+	 * array must be sorted.
+	 */
+	final <F> F imageBetween(MonoidMap<E, F> map, E lowKey, E highKey) {
+		if (longCount(root) == hugeCount)
+			throw new IndexOutOfBoundsException("size exceeds range of long: "
+					+ count(root));
+		long start = rank(root, cmp, lowKey);
+		long end = rank(root, cmp, highKey);
+		if (start >= end)
+			return map.zero();
+		return getImage(map, start, end);
+	}
+
+	/**
+	 * returns the images of another tree for all maps of this array. Since the
+	 * images of subtrees are cached in their nodes, this takes time O(log n) if
+	 * the tree is derived from the tree of this array by an update.
+	 */
+	final ImmutableHashMap<MonoidMap<E, ?>, Object> imagesOf(Object newRoot) {
+		return imagesOf(images, newRoot);
+	}
+
+	static <E> ImmutableHashMap<MonoidMap<E, ?>, Object> imagesOf(
+			ImmutableHashMap<MonoidMap<E, ?>, Object> images, Object newRoot) {
+		if (images.size() == 0)
+			return images;
+		ImmutableHashMap<MonoidMap<E, ?>, Object> newImages = images;
+		ForwardIterator<MonoidMap<E, ?>> it = images.keys().iterator();
+		while (it.hasNext()) {
+			MonoidMap<E, ?> map = it.next();
+			newImages = newImages.put(map, image(newRoot, map));
+		}
+		return newImages;
+	}
+
+	/**
+	 * checks the bounds of a range of positions.
+	 */
+	final void checkRange(long start, long end) {
+		if ((start < 0) || (start > end) || (end > size()))
+			throw new IndexOutOfBoundsException("range " + start + ".." + end
+					+ " of array with size " + size());
+	}
+
+	final void checkRange(BigInteger start, BigInteger end) {
+		if ((start.signum() < 0) || (start.compareTo(end) > 0)
+				|| (end.compareTo(elementCount()) > 0))
+			throw new IndexOutOfBoundsException("range " + start + ".." + end
+					+ " of array with size " + elementCount());
 	}
 
 	/*
@@ -210,14 +275,40 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 	private final static class BinNode {
 		public final Object left, right, value;
 
+		/*
+		 * the first element of the right subtree. In a sorted tree it separates
+		 * the elements of both subtrees, so a search compares with it without
+		 * looking at the class of the right subtree.
+		 */
+		public final Object separator;
+
 		public final int height;
 
-		public final BigInteger count;
+		/*
+		 * the number of elements, or hugeCount if it exceeds the range of long
+		 */
+		public final long count;
+
+		/*
+		 * the number of elements if it exceeds the range of long, otherwise null
+		 */
+		public final BigInteger bigCount;
+
+		/*
+		 * the images of this tree under monoid maps, as pairs of map and image.
+		 * They are computed on demand: After an update, only the new nodes on
+		 * the modified path have no images yet. Racing threads may compute an
+		 * image twice, which is harmless since nodes are immutable.
+		 */
+		private volatile Object[] images = noImages;
+
+		private static final Object[] noImages = new Object[0];
 
 		private BinNode() {
-			left = right = value = null;
+			left = right = value = separator = null;
 			height = 0;
-			count = BigInteger.ZERO;
+			count = 0;
+			bigCount = null;
 		}
 
 		static final public BinNode emptyTree = new BinNode();
@@ -231,7 +322,17 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 			this.left = left;
 			this.right = right;
 			this.value = item;
-			this.count = count(left).add(count(right));
+			this.separator = value(right);
+			long leftCount = longCount(left);
+			long rightCount = longCount(right);
+			long sum = leftCount + rightCount;
+			if ((leftCount == hugeCount) || (rightCount == hugeCount) || (sum < 0)) {
+				this.count = hugeCount;
+				this.bigCount = count(left).add(count(right));
+			} else {
+				this.count = sum;
+				this.bigCount = null;
+			}
 			int leftHeight = height(left);
 			int rightHeight = height(right);
 			int balance = rightHeight - leftHeight;
@@ -245,11 +346,176 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 			height = h + 1;
 		}
 
+		Object cachedImage(MonoidMap<?, ?> map) {
+			Object[] cache = images;
+			for (int i = 0; i < cache.length; i += 2) {
+				if (cache[i] == map)
+					return cache[i + 1];
+			}
+			return noElementFound;
+		}
+
+		void cacheImage(MonoidMap<?, ?> map, Object image) {
+			Object[] cache = images;
+			Object[] newCache = new Object[cache.length + 2];
+			System.arraycopy(cache, 0, newCache, 0, cache.length);
+			newCache[cache.length] = map;
+			newCache[cache.length + 1] = image;
+			images = newCache;
+		}
+
 		public String toString() {
 			return CatenableArrayTree.toString(this);
 		}
 	}// `inner class`
 
+	/**
+	 * returns the image of the elements at positions start..end-1 of a tree.
+	 * Subtrees which lie completely in the range contribute their image, which
+	 * is cached in the nodes only if cache is set.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Object image(Object tree, MonoidMap map, long start, long end,
+			boolean cache) {
+		if (isTall(tree))
+			return imageIteratively(tree, map, BigInteger.valueOf(start),
+					BigInteger.valueOf(end), cache);
+		if (start >= end)
+			return map.zero();
+		if ((start <= 0) && (end >= longCount(tree)))
+			return image(tree, map, cache);
+		Object left = left(tree);
+		long leftCount = longCount(left);
+		if (end <= leftCount)
+			return image(left, map, start, end, cache);
+		if (start >= leftCount)
+			return image(right(tree), map, start - leftCount, end - leftCount,
+					cache);
+		return map.add(image(left, map, start, leftCount, cache),
+				image(right(tree), map, 0, end - leftCount, cache));
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Object image(Object tree, MonoidMap map, BigInteger start,
+			BigInteger end, boolean cache) {
+		if (isTall(tree))
+			return imageIteratively(tree, map, start, end, cache);
+		if (start.compareTo(end) >= 0)
+			return map.zero();
+		if ((start.signum() <= 0) && (end.compareTo(count(tree)) >= 0))
+			return image(tree, map, cache);
+		Object left = left(tree);
+		BigInteger leftCount = count(left);
+		if (end.compareTo(leftCount) <= 0)
+			return image(left, map, start, end, cache);
+		if (start.compareTo(leftCount) >= 0)
+			return image(right(tree), map, start.subtract(leftCount),
+					end.subtract(leftCount), cache);
+		return map.add(image(left, map, start, leftCount, cache),
+				image(right(tree), map, BigInteger.ZERO, end.subtract(leftCount),
+						cache));
+	}
+
+	/**
+	 * returns the number of elements of a sorted tree which are smaller than the
+	 * key. The tree must not be huge.
+	 */
+	static <E> long rank(Object tree, Comparator<? super E> cmp, E key) {
+		return rank(tree, cmp, key, false);
+	}
+
+	/**
+	 * returns the number of elements of a sorted tree which are smaller than the
+	 * key or, if orEqual is set, not larger than the key. The tree must not be
+	 * huge.
+	 */
+	@SuppressWarnings("unchecked")
+	static <E> long rank(Object tree, Comparator<? super E> cmp, E key,
+			boolean orEqual) {
+		if (tree == emptyTree)
+			return 0;
+		int limit = orEqual ? 0 : -1;
+		long rank = 0;
+		while (!isLeaf(tree)) {
+			if (cmp.compare((E) separator(tree), key) <= limit) {
+				rank = rank + longCount(left(tree));
+				tree = right(tree);
+			} else
+				tree = left(tree);
+		}
+		return (cmp.compare((E) tree, key) <= limit) ? rank + 1 : rank;
+	}
+
+	/**
+	 * returns the element at a position, or null if there is none.
+	 */
+	final E elementAt(long pos) {
+		if ((pos < 0) || (pos >= longCount(root)))
+			return null;
+		return get(pos);
+	}
+
+	/**
+	 * returns the image of a tree under a monoid map. The images of nodes are
+	 * cached, so only the subtrees without a cached image are visited.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Object image(Object tree, MonoidMap map) {
+		if (tree == emptyTree)
+			return map.zero();
+		if (isLeaf(tree))
+			return map.map(tree);
+		BinNode node = (BinNode) tree;
+		Object image = node.cachedImage(map);
+		if ((image == noElementFound) && isTall(node))
+			image = imageIteratively(node, map);
+		else if (image == noElementFound) {
+			image = map.add(image(node.left, map), image(node.right, map));
+			node.cacheImage(map, image);
+		}
+		return image;
+	}
+
+	@SuppressWarnings("rawtypes")
+	static Object image(Object tree, MonoidMap map, boolean cache) {
+		return cache ? image(tree, map) : uncachedImage(tree, map);
+	}
+
+	/**
+	 * returns the image of a tree under a map which is not registered with an
+	 * array. Cached images of nodes are used, but no new ones are stored. Shared
+	 * subtrees are computed only once, so this also works for trees of
+	 * exponential size.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Object uncachedImage(Object root, MonoidMap map) {
+		if (root == emptyTree)
+			return map.zero();
+		ExtendibleArray<Object> tasks = new ExtendibleArray<Object>();
+		HashMap<Object, Object> nodeToImage = new HashMap<Object, Object>();
+		tasks.push(root);
+		while (tasks.size() > 0) {
+			Object actual = tasks.top();
+			if (isLeaf(actual)) {
+				nodeToImage.put(actual, map.map(actual));
+				tasks.pop();
+			} else if (hasImage(actual, map)) {
+				nodeToImage.put(actual, ((BinNode) actual).cachedImage(map));
+				tasks.pop();
+			} else if (!nodeToImage.containsKey(left(actual))) {
+				tasks.push(left(actual));
+			} else if (!nodeToImage.containsKey(right(actual))) {
+				tasks.push(right(actual));
+			} else {
+				Object left = nodeToImage.get(left(actual));
+				Object right = nodeToImage.get(right(actual));
+				nodeToImage.put(actual, map.add(left, right));
+				tasks.pop();
+			}
+		}
+		return nodeToImage.get(root);
+	}
+
 	/**
 	 * We set the maximum used recursion depth. For recursions deeper than this,
 	 * we use an explicit stack which is located on the heap. The value is
@@ -298,15 +564,54 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 	static BigInteger count(Object tree) {
 		if ((tree == null) || (tree.getClass() != BinNode.class))
 			return BigInteger.ONE;
+		BinNode node = (BinNode) tree;
+		if (node.bigCount != null)
+			return node.bigCount;
+		else
+			return BigInteger.valueOf(node.count);
+	}
+
+	/**
+	 * The count of trees with more than Long.MAX_VALUE elements. Only such
+	 * trees need BigInteger arithmetic, all subtrees of other trees have a long
+	 * count.
+	 */
+	static final long hugeCount = -1;
+
+	/**
+	 * calculate the number of elements of a tree, or hugeCount if it exceeds
+	 * the range of long.
+	 */
+	static long longCount(Object tree) {
+		if ((tree == null) || (tree.getClass() != BinNode.class))
+			return 1;
 		else
 			return ((BinNode) tree).count;
 	}
 
+	/**
+	 * tests if positions of the tree can be handled with long arithmetic.
+	 */
+	static boolean fitsInLong(Object tree, BigInteger pos) {
+		return (longCount(tree) != hugeCount) && (pos.bitLength() < 64);
+	}
+
 	/**
 	 * calculate the number of elements of a tree.
 	 */
 	static int _count(Object tree) {
-		return count(tree).intValue();
+		return (int) longCount(tree);
+	}
+
+	/**
+	 * returns the separator of a node, the first element of its right subtree.
+	 */
+	static Object separator(Object tree) {
+		return ((BinNode) tree).separator;
+	}
+
+	static boolean isNode(Object tree) {
+		return (tree != null) && (tree.getClass() == BinNode.class);
 	}
 
 	static boolean isLeaf(Object tree) {
@@ -322,21 +627,16 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 		return new BinNode(left, right, value);
 	}
 
-	/**
-	 * combines two homomorphic images to a new image
-	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	static Object combineImage(Object left, Object right, MonoidMap hom) {
-		return new BinNode(left, right, hom.add(value(left), value(right)));
-	}
-
 	/**
 	 * Inserts a new element into a sorted avl tree. A flag determines if copies
-	 * are allowed. This method uses the machine stack for recursion.
+	 * are allowed. This method uses the machine stack for recursion unless the
+	 * tree is higher than maxRecursionDepth.
 	 */
 	@SuppressWarnings("unchecked")
 	static <E> Object insert(Object root, Comparator<? super E> cmp, E e,
 			int behavior) {
+		if (isTall(root))
+			return insertIteratively(root, cmp, e, behavior);
 		if (root == emptyTree)
 			return e;
 		else if (isLeaf(root)) {
@@ -348,7 +648,7 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 			else
 				return combine(root, e);
 		} else {
-			int c = cmp.compare(e, (E) value(right(root)));
+			int c = cmp.compare(e, (E) separator(root));
 			if (c < 0)
 				return balance(insert(left(root), cmp, e, behavior),
 						right(root));
@@ -359,10 +659,12 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 	}
 
 	/**
-	 * TODO: explicit stack for height > maxRecursion Replaces an element at a
-	 * given position. All boundary checks must be performed before the call.
+	 * Replaces an element at a given position. All boundary checks must be
+	 * performed before the call.
 	 */
 	static <E> Object replace(Object root, BigInteger pos, E e) {
+		if (isTall(root))
+			return replaceIteratively(root, pos, e);
 		if (root == emptyTree)
 			return e;
 		else if (isLeaf(root)) {
@@ -379,10 +681,28 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 	}
 
 	/**
-	 * TODO: explicit stack for height > maxRecursion Replaces an element at a
-	 * given position. All boundary checks must be performed before the call.
+	 * Replaces an element at a given position of a tree with a long count.
+	 */
+	static <E> Object replace(Object root, long pos, E e) {
+		if (isTall(root))
+			return replaceIteratively(root, BigInteger.valueOf(pos), e);
+		if (isLeaf(root) || (root == emptyTree))
+			return e;
+		Object left = left(root);
+		long leftCount = longCount(left);
+		if (pos < leftCount)
+			return combine(replace(left, pos, e), right(root));
+		else
+			return combine(left, replace(right(root), pos - leftCount, e));
+	}
+
+	/**
+	 * Inserts an element at a given position. All boundary checks must be
+	 * performed before the call.
 	 */
 	static <E> Object insertAt(Object root, BigInteger pos, E e) {
+		if (isTall(root))
+			return insertAtIteratively(root, pos, e);
 		if (root == emptyTree)
 			return e;
 		else if (isLeaf(root)) {
@@ -401,6 +721,58 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 		}
 	}
 
+	/**
+	 * Inserts an element at a given position of a tree with a long count.
+	 */
+	static <E> Object insertAt(Object root, long pos, E e) {
+		if (isTall(root))
+			return insertAtIteratively(root, BigInteger.valueOf(pos), e);
+		if (root == emptyTree)
+			return e;
+		else if (isLeaf(root)) {
+			if (pos <= 0)
+				return combine(e, root);
+			else
+				return combine(root, e);
+		} else {
+			long leftCount = longCount(left(root));
+			if (pos < leftCount)
+				return balance(insertAt(left(root), pos, e), right(root));
+			else
+				return balance(left(root),
+						insertAt(right(root), pos - leftCount, e));
+		}
+	}
+
+	/**
+	 * removes the element at a given position. All boundary checks must be
+	 * performed before the call.
+	 */
+	static Object removeAt(Object root, long pos) {
+		if (isTall(root))
+			return removeAtIteratively(root, BigInteger.valueOf(pos));
+		if (isLeaf(root) || (root == emptyTree))
+			return emptyTree;
+		long leftCount = longCount(left(root));
+		if (pos < leftCount)
+			return balance(removeAt(left(root), pos), right(root));
+		else
+			return balance(left(root), removeAt(right(root), pos - leftCount));
+	}
+
+	static Object removeAt(Object root, BigInteger pos) {
+		if (isTall(root))
+			return removeAtIteratively(root, pos);
+		if (isLeaf(root) || (root == emptyTree))
+			return emptyTree;
+		BigInteger leftCount = count(left(root));
+		if (pos.compareTo(leftCount) < 0)
+			return balance(removeAt(left(root), pos), right(root));
+		else
+			return balance(left(root),
+					removeAt(right(root), pos.subtract(leftCount)));
+	}
+
 	static Object balance(Object left, Object right) {
 		if (left == emptyTree)
 			return right;
@@ -432,17 +804,6 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 		}
 	}
 
-	/**
-	 * Inserts a new element into a sorted avl tree and updates an array of
-	 * homomorphic images. A flag determines if copies are allowed. This method
-	 * uses the machine stack for recursion
-	 */
-	@SuppressWarnings("rawtypes")
-	static <E> Object insert(Object root, Object[] images, MonoidMap[] maps,
-			Comparator<? super E> cmp, E e, int behavior) {
-		return null;
-	}
-
 	static String toString(Object root) {
 		StringBuffer str = new StringBuffer();
 		buildString(root, str);
@@ -468,30 +829,10 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 		return;
 	}
 
-	@SuppressWarnings("rawtypes")
-	static boolean isImage(Object root, Object image, MonoidMap hom) {
-		return false;
-	}
-
 	final public static int allowCopies = 0;
 
 	final public static int setBehavior = 1;
 
-	/**
-	 * combines two trees, if unbalanced throws an exception. This method also
-	 * calculates an array of homomorphic images.
-	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	static void combine(MonoidMap[] hom, Object[] hLeft, Object[] hRight,
-			Object[] hResult) {
-		if (hResult != null && hResult.length > 0) {
-			for (int i = 0; i < hResult.length; i++) {
-				hResult[i] = new BinNode(hLeft[i], hRight[i], hom[i].add(
-						value(hLeft[i]), value(hRight[i])));
-			}
-		}
-	}
-
 	static Object first(Object tree) {
 		if (tree == emptyTree)
 			throw new IllegalArgumentException(
@@ -513,27 +854,44 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 		Object found = noElementFound;
 
 		while (!isLeaf(root)) {
-			Object right = right(root);
-			c = cmp.compare(e, (E) value(right));
+			BinNode node = (BinNode) root;
+			c = cmp.compare(e, (E) node.separator);
+			if (c == 0)
+				found = node.separator;
+			root = (c <= 0) ? node.left : node.right;
+		}
+		return cmp.compare(e, (E) root) == 0 ? root : found;
+	}
+
+	/**
+	 * returns an element of a sorted tree which is equal to e, or
+	 * noElementFound. Unlike findFirst, the search stops at the first separator
+	 * which is equal to e, so it is meant for trees without equal elements. It
+	 * reads the separators cached in the nodes and does not allocate.
+	 */
+	@SuppressWarnings("unchecked")
+	static <E> Object findEqual(Object root, Comparator<? super E> cmp, E e) {
+		if (root == emptyTree)
+			return noElementFound;
+		while (isNode(root)) {
+			BinNode node = (BinNode) root;
+			int c = cmp.compare(e, (E) node.separator);
 			if (c == 0)
-				found = value(right);
-			root = (c <= 0) ? left(root) : right(root);
+				return node.separator;
+			root = (c < 0) ? node.left : node.right;
 		}
-		return cmp.compare(e, (E) value(root)) == 0 ? value(root) : found;
+		return cmp.compare(e, (E) root) == 0 ? root : noElementFound;
 	}
 
 	static Object last(Object tree) {
 		if (tree == emptyTree)
 			throw new IllegalArgumentException(
 					"Cannot take first vargument of empty tree.");
-		if (isLeaf(tree))
-			return tree;
-
-		BinNode node = (BinNode) tree;
-		if (node.right != emptyTree)
-			return last(node.right);
-		else
-			return last(node.left);
+		while (!isLeaf(tree)) {
+			BinNode node = (BinNode) tree;
+			tree = (node.right != emptyTree) ? node.right : node.left;
+		}
+		return tree;
 	}
 
 	static final class MyIterator<E> implements ForwardIterator<E> {
@@ -569,6 +927,33 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 			throw new IndexOutOfBoundsException("position " + originalPos);
 		}
 
+		/**
+		 * starts at a position of a tree with a long count.
+		 */
+		public MyIterator(Object tree, long pos) {
+			long originalPos = pos;
+
+			while (tree != emptyTree) {
+				if (pos == 0) {
+					gotoFirst(tree);
+					return;
+				} else if (isLeaf(tree) || (pos < 0)) {
+					tree = emptyTree;
+				} else {
+					Object left = left(tree);
+					long leftCount = longCount(left);
+					if (pos >= leftCount) {
+						pos = pos - leftCount;
+						tree = right(tree);
+					} else {
+						treeRest.push(right(tree));
+						tree = left;
+					}
+				}
+			}
+			throw new IndexOutOfBoundsException("position " + originalPos);
+		}
+
 		private void gotoFirst(Object tree) {
 			if (tree == emptyTree)
 				return;
@@ -617,6 +1002,25 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 		throw new IndexOutOfBoundsException("position " + originalPos);
 	}
 
+	/**
+	 * returns the element at a position of a tree with a long count.
+	 */
+	static Object get(Object tree, long pos) {
+		if ((pos < 0) || (pos >= longCount(tree)) || (tree == emptyTree))
+			throw new IndexOutOfBoundsException("position " + pos);
+
+		while (!isLeaf(tree)) {
+			Object left = left(tree);
+			long leftCount = longCount(left);
+			if (pos >= leftCount) {
+				pos = pos - leftCount;
+				tree = right(tree);
+			} else
+				tree = left;
+		}
+		return tree;
+	}
+
 	private static BigInteger MINUS_ONE = BigInteger.valueOf(-1);
 
 	@SuppressWarnings({ "unchecked", "rawtypes" })
@@ -628,6 +1032,8 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 			return (Boolean) condition.apply(root) ? BigInteger.ZERO : MINUS_ONE;
 		if (nonMatchingTrees.contains(root))
 			return MINUS_ONE;
+		if (isTall(root))
+			return searchIteratively(root, condition, nonMatchingTrees, true);
 		BigInteger leftIndex = firstOf(left(root), condition, nonMatchingTrees);
 		if (!leftIndex.equals(MINUS_ONE))
 			return leftIndex;
@@ -654,6 +1060,8 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 			return (Boolean) condition.apply(root) ? BigInteger.ZERO : MINUS_ONE;
 		if (nonMatchingTrees.contains(root))
 			return MINUS_ONE;
+		if (isTall(root))
+			return searchIteratively(root, condition, nonMatchingTrees, false);
 		BigInteger rightIndex = lastOf(right(root), condition, nonMatchingTrees);
 		if (!rightIndex.equals(MINUS_ONE))
 			return count(left(root)).add(rightIndex);
@@ -673,12 +1081,14 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 
 	@SuppressWarnings("unchecked")
 	static <E> Object remove(Object root, Comparator<? super E> cmp, E e) {
+		if (isTall(root))
+			return removeIteratively(root, cmp, e);
 		if (root == emptyTree)
 			return emptyTree;
 		else if (isLeaf(root)) {
 			return cmp.compare(e, (E) value(root)) == 0 ? emptyTree : root;
 		} else {
-			int c = cmp.compare(e, (E) value(right(root)));
+			int c = cmp.compare(e, (E) separator(root));
 			if (c < 0)
 				return balance(remove(left(root), cmp, e), right(root));
 			else
@@ -686,49 +1096,7 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	static <E> Object computeImageTree(Object root, MonoidMap<E, ?> map) {
-		if (root == emptyTree)
-			return map.zero();
-
-		ExtendibleArray<Object> tasks = new ExtendibleArray<Object>();
-		HashMap<Object, Object> nodeToImage = new HashMap<Object, Object>();
-		tasks.push(root);
-		while (tasks.size() > 0) {
-			Object actual = tasks.top();
-			if (isLeaf(actual)) {
-				nodeToImage.put(actual, map.map((E) actual));
-				tasks.pop();
-			} else if (!nodeToImage.containsKey(left(actual))) {
-				tasks.push(left(actual));
-			} else if (!nodeToImage.containsKey(right(actual))) {
-				tasks.push(right(actual));
-			} else {
-				Object left = nodeToImage.get(left(actual));
-				Object right = nodeToImage.get(right(actual));
-				nodeToImage.put(actual, combineImage(left, right, map));
-				tasks.pop();
-			}
-		}
-		return nodeToImage.get(root);
-	}
-
-	static Object[] emptyTreeImages(MonoidMap<?, ?>[] maps) {
-		Object[] newImages = null;
-		if (maps != null) {
-			int n = maps.length;
-			newImages = new Object[n];
-			for (int i = 0; i < n; i++) {
-				newImages[i] = maps[i].zero();
-			}
-		}
-		return newImages;
-	}
-
-	// TODO: version for images, maxRecDepth, explicit stack
-	@SuppressWarnings("rawtypes")
-	static Object concat(Object t1, Object t2, Object[] images1,
-			Object[] images2, MonoidMap[] maps, Object[] resultImages) {
+	static Object concat(Object t1, Object t2) {
 		if (t2 == emptyTree)
 			return t1;
 		if (t1 == emptyTree)
@@ -737,16 +1105,202 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 		int h2 = height(t2);
 		if (Math.abs(h1 - h2) <= 1)
 			return combine(t1, t2);
+		// the recursion depth is the difference of the heights:
+		if (Math.abs(h1 - h2) > maxRecursionDepth)
+			return concatIteratively(t1, t2);
 		else if (h1 > h2)
-			return balance(left(t1),
-					concat(right(t1), t2, null, null, null, null));
+			return balance(left(t1), concat(right(t1), t2));
 		else
-			return balance(concat(t1, left(t2), null, null, null, null),
-					right(t2));
+			return balance(concat(t1, left(t2)), right(t2));
+	}
+
+	/**
+	 * builds a balanced tree of the elements at positions start..end-1 of a
+	 * list in linear time. The range must not be empty.
+	 */
+	static Object createFromList(Array<?> list, long start, long end) {
+		if (start == end - 1)
+			return list.get(start);
+		// the sizes of the halves differ by at most one, so do their heights:
+		long m = start + (end - start) / 2;
+		return combine(createFromList(list, start, m),
+				createFromList(list, m, end));
+	}
+
+	/**
+	 * splits a sorted tree into the elements smaller than the key and the
+	 * other elements. The parts are catenated from the subtrees along one path,
+	 * which takes O(height) time.
+	 */
+	@SuppressWarnings("unchecked")
+	static <E> Object[] split(Object tree, Comparator<? super E> cmp, E key) {
+		if (tree == emptyTree)
+			return new Object[] { emptyTree, emptyTree };
+		if (isLeaf(tree)) {
+			if (cmp.compare((E) tree, key) < 0)
+				return new Object[] { tree, emptyTree };
+			else
+				return new Object[] { emptyTree, tree };
+		}
+		Object right = right(tree);
+		Object[] parts;
+		if (cmp.compare(key, (E) separator(tree)) <= 0) {
+			parts = split(left(tree), cmp, key);
+			parts[1] = concat(parts[1], right);
+		} else {
+			parts = split(right, cmp, key);
+			parts[0] = concat(left(tree), parts[0]);
+		}
+		return parts;
+	}
+
+	static final int union = 0;
+
+	static final int intersection = 1;
+
+	static final int difference = 2;
+
+	/**
+	 * Above this number of elements, set operations fork their subproblems
+	 * onto a ForkJoinPool. The value is package-writable in order to allow
+	 * unit tests to set a small value for testing.
+	 */
+	static long parallelThreshold = 1 << 16;
+
+	/**
+	 * computes the union, intersection or difference of two sorted trees. Of
+	 * equal elements, the one of the first tree is kept. The operation splits
+	 * the smaller tree at the first element of the right subtree of the higher
+	 * tree, works on both halves and catenates the results. This needs
+	 * O(m log(n/m + 1)) time for trees with m <= n elements.
+	 */
+	static <E> Object setOperation(int operation, Object t1, Object t2,
+			Comparator<? super E> cmp) {
+		Object result = trivialSetOperation(operation, t1, t2, cmp);
+		if (result != noElementFound)
+			return result;
+		if (isLarge(t1, t2))
+			return ForkJoinPool.commonPool().invoke(
+					new SetOperationTask<E>(operation, t1, t2, cmp));
+		Object[] halves = splitForSetOperation(t1, t2, cmp);
+		return concat(setOperation(operation, halves[0], halves[1], cmp),
+				setOperation(operation, halves[2], halves[3], cmp));
+	}
+
+	/*
+	 * the set operation of a task running in a ForkJoinPool. The left halves
+	 * are forked and joined, small subproblems are solved sequentially by
+	 * setOperation. This must never call invoke, since the calling thread may
+	 * run the task itself without being a worker of the pool.
+	 */
+	private static <E> Object setOperationInPool(int operation, Object t1,
+			Object t2, Comparator<? super E> cmp) {
+		Object result = trivialSetOperation(operation, t1, t2, cmp);
+		if (result != noElementFound)
+			return result;
+		if (!isLarge(t1, t2))
+			return setOperation(operation, t1, t2, cmp);
+		Object[] halves = splitForSetOperation(t1, t2, cmp);
+		SetOperationTask<E> leftTask = new SetOperationTask<E>(operation,
+				halves[0], halves[1], cmp);
+		leftTask.fork();
+		Object right = setOperationInPool(operation, halves[2], halves[3], cmp);
+		return concat(leftTask.join(), right);
+	}
+
+	/*
+	 * tells if a set operation on the two trees is worth forking. Huge trees
+	 * are always large.
+	 */
+	private static boolean isLarge(Object t1, Object t2) {
+		long n1 = longCount(t1), n2 = longCount(t2);
+		return (n1 == hugeCount) || (n2 == hugeCount)
+				|| (n1 > parallelThreshold - n2);
+	}
+
+	/*
+	 * splits the higher tree into its subtrees and the other tree at the first
+	 * element of the right subtree. Returns the left halves of t1 and t2
+	 * followed by the right halves.
+	 */
+	private static <E> Object[] splitForSetOperation(Object t1, Object t2,
+			Comparator<? super E> cmp) {
+		Object[] a, b;
+		if (height(t1) >= height(t2)) {
+			a = new Object[] { left(t1), right(t1) };
+			b = split(t2, cmp, firstElement(a[1]));
+		} else {
+			b = new Object[] { left(t2), right(t2) };
+			a = split(t1, cmp, firstElement(b[1]));
+		}
+		return new Object[] { a[0], b[0], a[1], b[1] };
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> E firstElement(Object tree) {
+		return (E) value(tree);
+	}
+
+	/*
+	 * returns the result of a set operation if one of the trees is empty or a
+	 * leaf, otherwise noElementFound.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E> Object trivialSetOperation(int operation, Object t1,
+			Object t2, Comparator<? super E> cmp) {
+		if ((t1 == emptyTree) || (t2 == emptyTree)) {
+			if (operation == union)
+				return (t1 == emptyTree) ? t2 : t1;
+			else
+				return (operation == difference) ? t1 : emptyTree;
+		}
+		if (isLeaf(t1)) {
+			if (operation == union)
+				return insert(t2, cmp, (E) t1, setBehavior);
+			boolean found = (findEqual(t2, cmp, (E) t1) != noElementFound);
+			if (operation == intersection)
+				return found ? t1 : emptyTree;
+			else
+				return found ? emptyTree : t1;
+		}
+		if (isLeaf(t2)) {
+			Object same = findEqual(t1, cmp, (E) t2);
+			if (operation == union)
+				return (same != noElementFound) ? t1 : insert(t1, cmp, (E) t2,
+						setBehavior);
+			else if (operation == intersection)
+				return (same != noElementFound) ? same : emptyTree;
+			else
+				return remove(t1, cmp, (E) t2);
+		}
+		return noElementFound;
+	}
+
+	@SuppressWarnings("serial")
+	private static final class SetOperationTask<E> extends RecursiveTask<Object> {
+		private final int operation;
+
+		private final Object t1, t2;
+
+		private final Comparator<? super E> cmp;
+
+		SetOperationTask(int operation, Object t1, Object t2,
+				Comparator<? super E> cmp) {
+			this.operation = operation;
+			this.t1 = t1;
+			this.t2 = t2;
+			this.cmp = cmp;
+		}
+
+		@Override
+		protected Object compute() {
+			return setOperationInPool(operation, t1, t2, cmp);
+		}
 	}
 
-	// TODO: version for images, maxRecDepth, explicit stack
 	static Object subseq(Object tree, BigInteger start, BigInteger end) {
+		if (isTall(tree))
+			return subseqIteratively(tree, start, end);
 
 		if ((start.compareTo(BigInteger.ZERO) <= 0)
 				&& (end.compareTo(count(tree)) >= 0))
@@ -763,7 +1317,7 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 			return concat(
 					subseq(left(tree), start, end),
 					subseq(right(tree), start.subtract(leftSize),
-							end.subtract(leftSize)), null, null, null, null);
+							end.subtract(leftSize)));
 		else if (isInLeft)
 			return subseq(left(tree), start, end);
 		else if (isInRight)
@@ -773,6 +1327,372 @@ abstract class CatenableArrayTree<E> extends AbstractList<E> implements
 			return emptyTree;
 	}
 
+	static Object subseq(Object tree, long start, long end) {
+		if (isTall(tree))
+			return subseqIteratively(tree, BigInteger.valueOf(start),
+					BigInteger.valueOf(end));
+		long count = longCount(tree);
+		if ((start <= 0) && (end >= count))
+			return tree;
+
+		if (isLeaf(tree)) {
+			return emptyTree;
+		}
+		Object left = left(tree);
+		long leftSize = longCount(left);
+		boolean isInLeft = (start <= leftSize - 1);
+		boolean isInRight = (end >= leftSize);
+		if (isInLeft && isInRight)
+			return concat(subseq(left, start, end),
+					subseq(right(tree), start - leftSize, end - leftSize));
+		else if (isInLeft)
+			return subseq(left, start, end);
+		else if (isInRight)
+			return subseq(right(tree), start - leftSize, end - leftSize);
+		else
+			return emptyTree;
+	}
+
+	/*
+	 * The following methods are iterative versions of the recursive methods
+	 * above. They are used for trees which are higher than maxRecursionDepth,
+	 * which only happens for huge trees, so they use BigInteger positions.
+	 * Instead of the machine stack they keep the path from the root on the heap
+	 * as pairs of a node and the side which was taken.
+	 */
+	private static final Object wentLeft = new Object();
+
+	private static final Object wentRight = new Object();
+
+	/**
+	 * tests if the recursive methods would go deeper than maxRecursionDepth.
+	 */
+	static boolean isTall(Object tree) {
+		return height(tree) > maxRecursionDepth;
+	}
+
+	private static void step(ExtendibleArray<Object> path, Object node,
+			Object side) {
+		path.push(node);
+		path.push(side);
+	}
+
+	/*
+	 * replaces the subtree at the end of the path and builds the new nodes of
+	 * the path bottom-up, just like the returns of a recursive method.
+	 */
+	private static Object rebuild(ExtendibleArray<Object> path,
+			Object subtree, boolean rebalance) {
+		while (path.size() > 0) {
+			Object side = path.pop();
+			Object node = path.pop();
+			if (side == wentLeft)
+				subtree = rebalance ? balance(subtree, right(node)) : combine(
+						subtree, right(node));
+			else
+				subtree = rebalance ? balance(left(node), subtree) : combine(
+						left(node), subtree);
+		}
+		return subtree;
+	}
+
+	/*
+	 * goes down to the leaf at position pos[0] and stores the remaining
+	 * position in pos[0].
+	 */
+	private static Object descend(Object tree, BigInteger[] pos,
+			ExtendibleArray<Object> path) {
+		while (!isLeaf(tree)) {
+			BigInteger leftCount = count(left(tree));
+			if (pos[0].compareTo(leftCount) < 0) {
+				step(path, tree, wentLeft);
+				tree = left(tree);
+			} else {
+				step(path, tree, wentRight);
+				pos[0] = pos[0].subtract(leftCount);
+				tree = right(tree);
+			}
+		}
+		return tree;
+	}
+
+	/*
+	 * goes down to the leaf where e belongs in a sorted tree.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E> Object descend(Object tree, Comparator<? super E> cmp,
+			E e, ExtendibleArray<Object> path) {
+		while (!isLeaf(tree)) {
+			if (cmp.compare(e, (E) separator(tree)) < 0) {
+				step(path, tree, wentLeft);
+				tree = left(tree);
+			} else {
+				step(path, tree, wentRight);
+				tree = right(tree);
+			}
+		}
+		return tree;
+	}
+
+	private static <E> Object insertIteratively(Object root,
+			Comparator<? super E> cmp, E e, int behavior) {
+		ExtendibleArray<Object> path = new ExtendibleArray<Object>();
+		Object leaf = descend(root, cmp, e, path);
+		return rebuild(path, insert(leaf, cmp, e, behavior), true);
+	}
+
+	private static <E> Object removeIteratively(Object root,
+			Comparator<? super E> cmp, E e) {
+		ExtendibleArray<Object> path = new ExtendibleArray<Object>();
+		Object leaf = descend(root, cmp, e, path);
+		return rebuild(path, remove(leaf, cmp, e), true);
+	}
+
+	private static <E> Object replaceIteratively(Object root, BigInteger pos,
+			E e) {
+		ExtendibleArray<Object> path = new ExtendibleArray<Object>();
+		descend(root, new BigInteger[] { pos }, path);
+		return rebuild(path, e, false);
+	}
+
+	private static <E> Object insertAtIteratively(Object root, BigInteger pos,
+			E e) {
+		ExtendibleArray<Object> path = new ExtendibleArray<Object>();
+		BigInteger[] p = { pos };
+		Object leaf = descend(root, p, path);
+		Object subtree = (p[0].signum() <= 0) ? combine(e, leaf) : combine(leaf,
+				e);
+		return rebuild(path, subtree, true);
+	}
+
+	private static Object removeAtIteratively(Object root, BigInteger pos) {
+		ExtendibleArray<Object> path = new ExtendibleArray<Object>();
+		descend(root, new BigInteger[] { pos }, path);
+		return rebuild(path, emptyTree, true);
+	}
+
+	/*
+	 * goes down the right spine of the higher tree t1 or the left spine of the
+	 * higher tree t2 until the heights match.
+	 */
+	private static Object concatIteratively(Object t1, Object t2) {
+		ExtendibleArray<Object> path = new ExtendibleArray<Object>();
+		int h1 = height(t1);
+		int h2 = height(t2);
+		while (Math.abs(h1 - h2) > 1) {
+			if (h1 > h2) {
+				step(path, t1, wentRight);
+				t1 = right(t1);
+				h1 = height(t1);
+			} else {
+				step(path, t2, wentLeft);
+				t2 = left(t2);
+				h2 = height(t2);
+			}
+		}
+		return rebuild(path, combine(t1, t2), true);
+	}
+
+	/*
+	 * goes down to the node where the range splits into a suffix of the left
+	 * subtree and a prefix of the right subtree.
+	 */
+	private static Object subseqIteratively(Object tree, BigInteger start,
+			BigInteger end) {
+		while (true) {
+			if ((start.signum() <= 0) && (end.compareTo(count(tree)) >= 0))
+				return tree;
+			if (isLeaf(tree))
+				return emptyTree;
+			BigInteger leftSize = count(left(tree));
+			boolean isInLeft = (start.compareTo(leftSize) < 0);
+			boolean isInRight = (end.compareTo(leftSize) >= 0);
+			if (isInLeft && isInRight)
+				return concat(suffix(left(tree), start),
+						prefix(right(tree), end.subtract(leftSize)));
+			else if (isInLeft)
+				tree = left(tree);
+			else if (isInRight) {
+				start = start.subtract(leftSize);
+				end = end.subtract(leftSize);
+				tree = right(tree);
+			} else
+				return emptyTree;
+		}
+	}
+
+	/*
+	 * returns the elements at positions start and higher. The subtrees right of
+	 * the path to start are catenated from the smallest one upwards.
+	 */
+	private static Object suffix(Object tree, BigInteger start) {
+		ExtendibleArray<Object> pieces = new ExtendibleArray<Object>();
+		while (!isLeaf(tree) && (start.signum() > 0)) {
+			BigInteger leftSize = count(left(tree));
+			if (start.compareTo(leftSize) < 0) {
+				pieces.push(right(tree));
+				tree = left(tree);
+			} else {
+				start = start.subtract(leftSize);
+				tree = right(tree);
+			}
+		}
+		Object result = (start.signum() <= 0) ? tree : emptyTree;
+		while (pieces.size() > 0)
+			result = concat(result, pieces.pop());
+		return result;
+	}
+
+	/*
+	 * returns the elements at positions lower than end.
+	 */
+	private static Object prefix(Object tree, BigInteger end) {
+		ExtendibleArray<Object> pieces = new ExtendibleArray<Object>();
+		while (!isLeaf(tree) && (end.compareTo(count(tree)) < 0)) {
+			BigInteger leftSize = count(left(tree));
+			if (end.compareTo(leftSize) > 0) {
+				pieces.push(left(tree));
+				end = end.subtract(leftSize);
+				tree = right(tree);
+			} else
+				tree = left(tree);
+		}
+		Object result = (end.compareTo(count(tree)) >= 0) ? tree : emptyTree;
+		while (pieces.size() > 0)
+			result = concat(pieces.pop(), result);
+		return result;
+	}
+
+	/*
+	 * computes the missing images of a tree in post-order.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object imageIteratively(Object tree, MonoidMap map) {
+		ExtendibleArray<Object> tasks = new ExtendibleArray<Object>();
+		tasks.push(tree);
+		while (tasks.size() > 0) {
+			BinNode node = (BinNode) tasks.top();
+			if (!hasImage(node.left, map))
+				tasks.push(node.left);
+			else if (!hasImage(node.right, map))
+				tasks.push(node.right);
+			else {
+				tasks.pop();
+				node.cacheImage(map,
+						map.add(image(node.left, map), image(node.right, map)));
+			}
+		}
+		return image(tree, map);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static boolean hasImage(Object tree, MonoidMap map) {
+		return isLeaf(tree) || (tree == emptyTree)
+				|| (((BinNode) tree).cachedImage(map) != noElementFound);
+	}
+
+	/*
+	 * The image of a range is the image of a suffix of the left subtree plus
+	 * the image of a prefix of the right subtree at the split node.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object imageIteratively(Object tree, MonoidMap map,
+			BigInteger start, BigInteger end, boolean cache) {
+		while (true) {
+			if (start.compareTo(end) >= 0)
+				return map.zero();
+			if ((start.signum() <= 0) && (end.compareTo(count(tree)) >= 0))
+				return image(tree, map, cache);
+			Object left = left(tree);
+			BigInteger leftCount = count(left);
+			if (end.compareTo(leftCount) <= 0)
+				tree = left;
+			else if (start.compareTo(leftCount) >= 0) {
+				start = start.subtract(leftCount);
+				end = end.subtract(leftCount);
+				tree = right(tree);
+			} else
+				return map.add(suffixImage(left, map, start, cache),
+						prefixImage(right(tree), map, end.subtract(leftCount), cache));
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object suffixImage(Object tree, MonoidMap map,
+			BigInteger start, boolean cache) {
+		Object result = map.zero();
+		while (!isLeaf(tree) && (start.signum() > 0)) {
+			BigInteger leftSize = count(left(tree));
+			if (start.compareTo(leftSize) < 0) {
+				result = map.add(image(right(tree), map, cache), result);
+				tree = left(tree);
+			} else {
+				start = start.subtract(leftSize);
+				tree = right(tree);
+			}
+		}
+		return (start.signum() <= 0) ? map.add(image(tree, map, cache), result)
+				: result;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object prefixImage(Object tree, MonoidMap map,
+			BigInteger end, boolean cache) {
+		Object result = map.zero();
+		while (!isLeaf(tree) && (end.compareTo(count(tree)) < 0)) {
+			BigInteger leftSize = count(left(tree));
+			if (end.compareTo(leftSize) > 0) {
+				result = map.add(result, image(left(tree), map, cache));
+				end = end.subtract(leftSize);
+				tree = right(tree);
+			} else
+				tree = left(tree);
+		}
+		return (end.compareTo(count(tree)) >= 0) ? map.add(result,
+				image(tree, map, cache)) : result;
+	}
+
+	/*
+	 * a depth-first search for firstOf (fromLeft) or lastOf. The stack holds
+	 * triples of a tree, its position and a flag which tells if its subtrees
+	 * have already been searched without a match.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static BigInteger searchIteratively(Object root,
+			Function condition, HashSet<Object> nonMatchingTrees,
+			boolean fromLeft) {
+		ExtendibleArray<Object> stack = new ExtendibleArray<Object>();
+		stack.push(root);
+		stack.push(BigInteger.ZERO);
+		stack.push(Boolean.FALSE);
+		while (stack.size() > 0) {
+			boolean searched = (Boolean) stack.pop();
+			BigInteger pos = (BigInteger) stack.pop();
+			Object tree = stack.pop();
+			if (searched) {
+				if (height(tree) > 3)
+					nonMatchingTrees.add(tree);
+			} else if (isLeaf(tree)) {
+				if ((Boolean) condition.apply(tree))
+					return pos;
+			} else if (!nonMatchingTrees.contains(tree)) {
+				stack.push(tree);
+				stack.push(pos);
+				stack.push(Boolean.TRUE);
+				Object[] children = { left(tree), right(tree) };
+				BigInteger[] positions = { pos, pos.add(count(left(tree))) };
+				// the subtree which is searched first is pushed last:
+				for (int i = 0; i < 2; i++) {
+					int k = fromLeft ? 1 - i : i;
+					stack.push(children[k]);
+					stack.push(positions[k]);
+					stack.push(Boolean.FALSE);
+				}
+			}
+		}
+		return MINUS_ONE;
+	}
+
 	static <E> ImmutableHashMap<MonoidMap<E, ?>, Object> emptyImages(
 			ImmutableSet<MonoidMap<E, ?>> maps) {
 		ImmutableHashMap<MonoidMap<E, ?>, Object> images = ImmutableHashMap
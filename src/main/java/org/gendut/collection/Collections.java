@@ -363,23 +363,25 @@ final public class Collections {
 			}
 			return S.asConstant();
 		} else {
-			ImmutableArray<E> S = ImmutableArray.create(size);
-			int pos = 0;
+			ImmutableArray.Builder<E> S = ImmutableArray.builder(size);
+			long pos = 0;
 			LookAheadIterator<E> it1 = new LookAheadIterator<E>(left.iterator());
 			LookAheadIterator<E> it2 = new LookAheadIterator<E>(right.iterator());
 			while (it1.hasNext() && it2.hasNext()) {
 				if (cmp.compare(it1.peek(), it2.peek()) <= 0)
-					S.set(pos++, it1.next());
+					S.add(it1.next());
 				else
-					S.set(pos++, it2.next());
+					S.add(it2.next());
+				pos++;
 			}
 			if (!it1.hasNext())
 				it1 = it2;
 			while (it1.hasNext()) {
-				S.set(pos++, it1.next());
+				S.add(it1.next());
+				pos++;
 			}
 			Assertions.assertEquals("Position and size should be the same", size, pos);
-			return S;
+			return S.build();
 
 		}
 
@@ -0,0 +1,322 @@
+package org.gendut.collection;
+
+/**
+ * This class is package-private. It resolves collisions in the slots of a
+ * {@link FixedSizeHashSet}: The elements of a slot are kept in a small trie
+ * keyed on the bits of their hash codes, four bits per level. Like a
+ * {@link BitmapNode}, an inner node stores its non-null children only and
+ * locates them via a bitmap. Elements with equal hash codes
+ * share an {@link EqualHashNode}. Since a hash code has 32 bits, a lookup
+ * inspects at most eight nodes plus the elements with the very same hash code.
+ * <br />
+ * <br />
+ * The content of a slot is null, an entry, a collision node or an equal-hash
+ * node. The methods of this class work on any of them. An entry is either an
+ * element or a {@link HashedEntry} which stores the hash code of the element.
+ * Hash codes are always spread by {@link FixedSizeHashSet#spread(int)}. As
+ * required by maps built from sets, the left-hand side of equals() is always an
+ * element of the set.
+ */
+final class CollisionNode {
+	private static final int bits = 4;
+
+	private static final int mask = (1 << bits) - 1;
+
+	private final int bitmap;
+
+	private final Object[] children;
+
+	private final int size;
+
+	private CollisionNode(int bitmap, Object[] children, int size) {
+		this.bitmap = bitmap;
+		this.children = children;
+		this.size = size;
+	}
+
+	/*
+	 * Entries with equal hash codes in insertion order.
+	 */
+	static final class EqualHashNode {
+		final int hash;
+
+		final Object[] elements;
+
+		EqualHashNode(int hash, Object[] elements) {
+			this.hash = hash;
+			this.elements = elements;
+		}
+	}
+
+	/*
+	 * An element together with its hash code, so the hash code is computed only
+	 * once.
+	 */
+	static final class HashedEntry {
+		final Object element;
+
+		final int hash;
+
+		HashedEntry(Object element, int hash) {
+			this.element = element;
+			this.hash = hash;
+		}
+	}
+
+	static Object element(Object entry) {
+		if (entry.getClass() == HashedEntry.class)
+			return ((HashedEntry) entry).element;
+		return entry;
+	}
+
+	static int hash(Object entry) {
+		if (entry.getClass() == HashedEntry.class)
+			return ((HashedEntry) entry).hash;
+		return FixedSizeHashSet.spread(entry.hashCode());
+	}
+
+	/*
+	 * tests if an entry of the set has the given element. Cached hash codes are
+	 * compared before equals() is called.
+	 */
+	private static boolean matches(Object entry, Object item, int hash) {
+		if (entry.getClass() == HashedEntry.class) {
+			HashedEntry e = (HashedEntry) entry;
+			return (e.hash == hash) && ((e.element == item) || e.element.equals(item));
+		}
+		return (entry == item) || entry.equals(item);
+	}
+
+	/**
+	 * returns the number of elements of a slot.
+	 */
+	static int count(Object place) {
+		if (place == null)
+			return 0;
+		if (place.getClass() == CollisionNode.class)
+			return ((CollisionNode) place).size;
+		if (place.getClass() == EqualHashNode.class)
+			return ((EqualHashNode) place).elements.length;
+		return 1;
+	}
+
+	private Object child(int k) {
+		int bit = 1 << k;
+		if ((bitmap & bit) == 0)
+			return null;
+		return children[Integer.bitCount(bitmap & (bit - 1))];
+	}
+
+	/**
+	 * returns the element of the slot which equals the item, or null.
+	 */
+	static Object find(Object place, Object item, int hash) {
+		int shift = 0;
+		while (place != null) {
+			Class<?> c = place.getClass();
+			if (c == CollisionNode.class) {
+				place = ((CollisionNode) place).child((hash >>> shift) & mask);
+				shift = shift + bits;
+			} else if (c == EqualHashNode.class) {
+				EqualHashNode node = (EqualHashNode) place;
+				if (node.hash != hash)
+					return null;
+				for (Object e : node.elements) {
+					if (matches(e, item, hash))
+						return element(e);
+				}
+				return null;
+			} else
+				return matches(place, item, hash) ? element(place) : null;
+		}
+		return null;
+	}
+
+	/**
+	 * returns the content of a slot after adding the entry. An entry with an
+	 * equal element is replaced.
+	 */
+	static Object add(Object place, Object entry, int hash) {
+		return add(place, entry, element(entry), hash, 0);
+	}
+
+	private static Object add(Object place, Object entry, Object item, int hash, int shift) {
+		if (place == null)
+			return entry;
+		Class<?> c = place.getClass();
+		if (c == CollisionNode.class) {
+			CollisionNode node = (CollisionNode) place;
+			int k = (hash >>> shift) & mask;
+			Object child = node.child(k);
+			Object newChild = add(child, entry, item, hash, shift + bits);
+			return node.replace(k, newChild, node.size + count(newChild) - count(child));
+		}
+		if (c == EqualHashNode.class) {
+			EqualHashNode node = (EqualHashNode) place;
+			if (node.hash == hash) {
+				Object[] elements = node.elements;
+				for (int j = 0; j < elements.length; j++) {
+					if (matches(elements[j], item, hash)) {
+						Object[] newElements = elements.clone();
+						newElements[j] = entry;
+						return new EqualHashNode(hash, newElements);
+					}
+				}
+				Object[] newElements = new Object[elements.length + 1];
+				System.arraycopy(elements, 0, newElements, 0, elements.length);
+				newElements[elements.length] = entry;
+				return new EqualHashNode(hash, newElements);
+			}
+			return pair(place, node.hash, entry, hash, shift);
+		}
+		if (matches(place, item, hash))
+			return entry;
+		int placeHash = hash(place);
+		if (placeHash == hash)
+			return new EqualHashNode(hash, new Object[] { place, entry });
+		return pair(place, placeHash, entry, hash, shift);
+	}
+
+	/*
+	 * creates a node for two places with different hash codes.
+	 */
+	private static CollisionNode pair(Object a, int hashA, Object b, int hashB, int shift) {
+		int size = count(a) + count(b);
+		int ka = (hashA >>> shift) & mask;
+		int kb = (hashB >>> shift) & mask;
+		if (ka == kb)
+			return new CollisionNode(1 << ka, new Object[] { pair(a, hashA, b, hashB, shift + bits) }, size);
+		Object[] children = (ka < kb) ? new Object[] { a, b } : new Object[] { b, a };
+		return new CollisionNode((1 << ka) | (1 << kb), children, size);
+	}
+
+	/*
+	 * returns a node with the given child replaced. The child of an empty slot is
+	 * null.
+	 */
+	private CollisionNode replace(int k, Object e, int newSize) {
+		int bit = 1 << k;
+		int j = Integer.bitCount(bitmap & (bit - 1));
+		if ((bitmap & bit) != 0) {
+			if (e != null) {
+				Object[] newChildren = children.clone();
+				newChildren[j] = e;
+				return new CollisionNode(bitmap, newChildren, newSize);
+			}
+			Object[] newChildren = new Object[children.length - 1];
+			System.arraycopy(children, 0, newChildren, 0, j);
+			System.arraycopy(children, j + 1, newChildren, j, children.length - j - 1);
+			return new CollisionNode(bitmap & ~bit, newChildren, newSize);
+		}
+		Object[] newChildren = new Object[children.length + 1];
+		System.arraycopy(children, 0, newChildren, 0, j);
+		newChildren[j] = e;
+		System.arraycopy(children, j, newChildren, j + 1, children.length - j);
+		return new CollisionNode(bitmap | bit, newChildren, newSize);
+	}
+
+	/**
+	 * returns the content of a slot after removing the item. If the slot has no
+	 * such element, the place itself is returned.
+	 */
+	static Object remove(Object place, Object item, int hash) {
+		return remove(place, item, hash, 0);
+	}
+
+	private static Object remove(Object place, Object item, int hash, int shift) {
+		if (place == null)
+			return null;
+		Class<?> c = place.getClass();
+		if (c == CollisionNode.class) {
+			CollisionNode node = (CollisionNode) place;
+			int k = (hash >>> shift) & mask;
+			Object child = node.child(k);
+			Object newChild = remove(child, item, hash, shift + bits);
+			if (newChild == child)
+				return node;
+			if ((newChild == null) && (node.children.length == 2)) {
+				/*
+				 * a single remaining element can be moved up, a remaining
+				 * collision node cannot because it branches on other bits:
+				 */
+				Object rest = node.children[(node.children[0] == child) ? 1 : 0];
+				if (rest.getClass() != CollisionNode.class)
+					return rest;
+			}
+			if ((newChild != null) && (node.children.length == 1) && (newChild.getClass() != CollisionNode.class))
+				return newChild;
+			return node.replace(k, newChild, node.size - 1);
+		}
+		if (c == EqualHashNode.class) {
+			EqualHashNode node = (EqualHashNode) place;
+			if (node.hash != hash)
+				return node;
+			Object[] elements = node.elements;
+			for (int j = 0; j < elements.length; j++) {
+				if (matches(elements[j], item, hash)) {
+					if (elements.length == 2)
+						return elements[1 - j];
+					Object[] newElements = new Object[elements.length - 1];
+					System.arraycopy(elements, 0, newElements, 0, j);
+					System.arraycopy(elements, j + 1, newElements, j, elements.length - j - 1);
+					return new EqualHashNode(hash, newElements);
+				}
+			}
+			return node;
+		}
+		return matches(place, item, hash) ? null : place;
+	}
+
+	/**
+	 * returns the first entry of a non-empty slot.
+	 */
+	static Object first(Object place) {
+		while (place.getClass() == CollisionNode.class)
+			place = ((CollisionNode) place).children[0];
+		if (place.getClass() == EqualHashNode.class)
+			return ((EqualHashNode) place).elements[0];
+		return place;
+	}
+
+	/**
+	 * returns the elements of a slot which holds more than one element.
+	 */
+	static Object[] elements(Object place) {
+		Object[] elements = new Object[count(place)];
+		collect(place, elements, 0, true);
+		return elements;
+	}
+
+	/**
+	 * returns the entries of a non-empty slot.
+	 */
+	static Object[] entries(Object place) {
+		Object[] entries = new Object[count(place)];
+		collect(place, entries, 0, false);
+		return entries;
+	}
+
+	private static int collect(Object place, Object[] elements, int j, boolean unwrap) {
+		if (place.getClass() == CollisionNode.class) {
+			for (Object child : ((CollisionNode) place).children)
+				j = collect(child, elements, j, unwrap);
+			return j;
+		}
+		if (place.getClass() == EqualHashNode.class) {
+			Object[] equalHash = ((EqualHashNode) place).elements;
+			for (Object e : equalHash)
+				elements[j++] = unwrap ? element(e) : e;
+			return j;
+		}
+		elements[j] = unwrap ? element(place) : place;
+		return j + 1;
+	}
+
+	/**
+	 * tests if the content of a slot consists of more than one element.
+	 */
+	static boolean isCollision(Object place) {
+		Class<?> c = place.getClass();
+		return (c == CollisionNode.class) || (c == EqualHashNode.class);
+	}
+}
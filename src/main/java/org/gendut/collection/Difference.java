@@ -0,0 +1,56 @@
+package org.gendut.collection;
+
+import org.gendut.seq.Seq;
+import org.gendut.seq.SeqFromIterator;
+
+/**
+ * The difference between two versions of a collection: the elements which have
+ * been added, the elements which have been removed and, for maps, the entries
+ * whose value has changed. The streams are lazy, they are computed while they
+ * are traversed.
+ */
+public final class Difference<E> {
+	private final Stream<E> added;
+
+	private final Stream<E> removed;
+
+	private final Stream<E> changed;
+
+	Difference(Stream<E> added, Stream<E> removed, Stream<E> changed) {
+		this.added = added;
+		this.removed = removed;
+		this.changed = changed;
+	}
+
+	static <E> Stream<E> empty() {
+		Seq<E> empty = SeqFromIterator.create(Stack.<E> create().iterator());
+		return Collections.stream(empty);
+	}
+
+	/**
+	 * returns the elements which are in the newer version only.
+	 */
+	public Stream<E> added() {
+		return added;
+	}
+
+	/**
+	 * returns the elements which are in the older version only.
+	 */
+	public Stream<E> removed() {
+		return removed;
+	}
+
+	/**
+	 * returns the entries of a map whose key is in both versions but whose value
+	 * has changed, with the value of the newer version. For sets, the stream is
+	 * empty.
+	 */
+	public Stream<E> changed() {
+		return changed;
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+	}
+}
@@ -0,0 +1,136 @@
+package org.gendut.collection;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import org.gendut.iterator.ForwardIterator;
+import org.gendut.seq.Seq;
+import org.gendut.seq.SeqFromIterator;
+
+/**
+ * A fixed-size immutable array of double values. Setting an element returns a
+ * new array. The values are stored unboxed in chunks of 16 elements, the
+ * initial value of each element is zero. Elements are compared like boxed
+ * doubles, i.e. NaN equals NaN and 0.0 differs from -0.0.
+ */
+public final class DoubleImmutableArray extends PrimitiveArrayBase<Double> {
+
+	private DoubleImmutableArray(long size) {
+		super(size);
+	}
+
+	private DoubleImmutableArray(ImmutableArrayBase<Object> chunks, long size) {
+		super(chunks, size);
+	}
+
+	static public DoubleImmutableArray create(long size) {
+		return new DoubleImmutableArray(size);
+	}
+
+	static public DoubleImmutableArray fromArray(double[] values) {
+		ImmutableArrayBase.TrieBuilder builder = new ImmutableArrayBase.TrieBuilder();
+		for (int start = 0; start < values.length; start += chunkSize) {
+			double[] chunk = new double[chunkSize];
+			System.arraycopy(values, start, chunk, 0, Math.min(chunkSize, values.length - start));
+			builder.add(isZero(chunk) ? null : chunk);
+		}
+		return new DoubleImmutableArray(chunksFrom(builder), values.length);
+	}
+
+	private static boolean isZero(double[] chunk) {
+		for (int k = 0; k < chunkSize; k++) {
+			if (Double.doubleToRawLongBits(chunk[k]) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	public double getDouble(long i) {
+		double[] chunk = (double[]) chunk(i);
+		return (chunk == null) ? 0 : chunk[(int) (i & chunkMask)];
+	}
+
+	public Double get(long i) {
+		return getDouble(i);
+	}
+
+	/**
+	 * returns an array with the <i>i</i>th element replaced.
+	 */
+	public DoubleImmutableArray set(long i, double value) {
+		double[] chunk = (double[]) chunk(i);
+		int k = (int) (i & chunkMask);
+		if (chunk == null) {
+			if (Double.doubleToRawLongBits(value) == 0)
+				return this;
+			chunk = new double[chunkSize];
+		} else {
+			if (Double.doubleToRawLongBits(chunk[k]) == Double.doubleToRawLongBits(value))
+				return this;
+			chunk = chunk.clone();
+		}
+		chunk[k] = value;
+		return new DoubleImmutableArray(replaceChunk(i, isZero(chunk) ? null : chunk), size());
+	}
+
+	public double[] toDoubleArray() {
+		if (size() > Integer.MAX_VALUE)
+			throw new IllegalStateException("array too large: Cannot cast size() to int");
+		double[] values = new double[(int) size()];
+		PrimitiveIterator.OfDouble it = doubleIterator();
+		for (int i = 0; i < values.length; i++)
+			values[i] = it.nextDouble();
+		return values;
+	}
+
+	@Override
+	boolean sameAt(Object chunkA, Object chunkB, int k) {
+		double a = (chunkA == null) ? 0 : ((double[]) chunkA)[k];
+		double b = (chunkB == null) ? 0 : ((double[]) chunkB)[k];
+		return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+	}
+
+	private final class DoubleIterator implements PrimitiveIterator.OfDouble {
+		private long i = 0;
+
+		private double[] chunk;
+
+		public boolean hasNext() {
+			return i < size();
+		}
+
+		public double nextDouble() {
+			if (i >= size())
+				throw new NoSuchElementException("no next element");
+			int k = (int) (i & chunkMask);
+			if (k == 0)
+				chunk = (double[]) chunk(i);
+			i++;
+			return (chunk == null) ? 0 : chunk[k];
+		}
+	}
+
+	/**
+	 * iterates over all elements without boxing.
+	 */
+	public PrimitiveIterator.OfDouble doubleIterator() {
+		return new DoubleIterator();
+	}
+
+	public ForwardIterator<Double> iterator() {
+		final PrimitiveIterator.OfDouble it = doubleIterator();
+		return new ForwardIterator<Double>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public Double next() {
+				return it.nextDouble();
+			}
+		};
+	}
+
+	public Seq<Double> seq() {
+		return SeqFromIterator.create(iterator());
+	}
+}
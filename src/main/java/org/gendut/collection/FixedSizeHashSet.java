@@ -2,8 +2,10 @@ package org.gendut.collection;
 
 import java.math.BigInteger;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.StreamSupport;
 
-import org.gendut.collection.mutable.ExtendibleArray;
 import org.gendut.iterator.ForwardIterator;
 import org.gendut.seq.Seq;
 import org.gendut.seq.SeqFromIterator;
@@ -29,67 +31,156 @@ import org.gendut.seq.SeqFromIterator;
  */
 public final class FixedSizeHashSet<E> extends ImmutableArrayBase<Object>
 		implements UpdatableSet<E, FixedSizeHashSet<E>> {
-	/*
-	 * Wrapper class for stacks: Without it, it would be impossible to store
-	 * stacks in our hash table.
-	 */
-	private final static class StackWrapper<E> {
-		public final Stack<E> stack;
-
-		public StackWrapper(final Stack<E> stack) {
-			this.stack = stack;
-		}
-	}
-
 	private final long size;
 
+	private final boolean cacheHashes;
+
 	static public <E> FixedSizeHashSet<E> create(long capacity) {
 		return new FixedSizeHashSet<E>(capacity);
 	}
 
+	/**
+	 * creates an empty set and selects the layout of the inner nodes of the
+	 * underlying table. The compact layout stores only the non-null slots of a
+	 * node and is preferable for sparsely filled tables.
+	 */
+	static public <E> FixedSizeHashSet<E> create(long capacity, boolean compactNodes) {
+		return new FixedSizeHashSet<E>(capacity, compactNodes);
+	}
+
+	/**
+	 * creates an empty set. If hash codes are cached, each element is stored
+	 * together with its hash code. This costs an additional object per element
+	 * but saves calls of hashCode() and equals() when colliding elements are
+	 * compared or when elements are moved to another table.
+	 */
+	static public <E> FixedSizeHashSet<E> create(long capacity, boolean compactNodes, boolean cacheHashes) {
+		return new FixedSizeHashSet<E>(capacity, compactNodes, cacheHashes);
+	}
+
 	public FixedSizeHashSet(long capacity) {
-		super(capacity);
+		this(capacity, false);
+	}
+
+	public FixedSizeHashSet(long capacity, boolean compactNodes) {
+		this(capacity, compactNodes, false);
+	}
+
+	public FixedSizeHashSet(long capacity, boolean compactNodes, boolean cacheHashes) {
+		super(capacity, compactNodes);
 		size = 0;
+		this.cacheHashes = cacheHashes;
 	}
 
-	protected FixedSizeHashSet(ImmutableArrayBase<Object> x, long i, Object e, long newsize) {
+	protected FixedSizeHashSet(FixedSizeHashSet<E> x, long i, Object e, long newsize) {
 		super(x, i, e);
 		size = newsize;
+		cacheHashes = x.cacheHashes;
 	}
 
 	public long capacity() {
 		return adressableSize();
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public boolean cachesHashes() {
+		return cacheHashes;
+	}
+
+	/**
+	 * mixes the bits of a hash code (the finalizer of MurmurHash3), so that hash
+	 * codes with low entropy like those of consecutive integers are spread over
+	 * the table. The function is a bijection, hence different hash codes remain
+	 * different.
+	 */
+	static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * returns the spread hash code of an element.
+	 */
+	static int hash(Object item) {
+		return spread(item.hashCode());
+	}
+
+	/*
+	 * returns the slot of a spread hash code.
+	 */
+	private int slot(int hash) {
+		int slot = hash % (int) capacity();
+		if (slot < 0)
+			slot = -slot;
+		return slot;
+	}
+
 	public FixedSizeHashSet<E> add(E item) {
-		long capacity = capacity();
-		int hashItem = item.hashCode() % (int) capacity;
-		if (hashItem < 0)
-			hashItem = -hashItem;
-		Object place = get(hashItem);
+		return add(item, hash(item));
+	}
+
+	/*
+	 * Colliding elements are kept in a CollisionNode, hence the cost of a
+	 * lookup or an update is bounded even for skewed hash codes.
+	 */
+	FixedSizeHashSet<E> add(E item, int hash) {
+		return put(cacheHashes ? new CollisionNode.HashedEntry(item, hash) : item, hash);
+	}
+
+	private FixedSizeHashSet<E> put(Object entry, int hash) {
+		int slot = slot(hash);
+		Object place = get(slot);
 		if (place == null)
-			return new FixedSizeHashSet<E>(this, hashItem, item, size + 1);
-		if (place.getClass() == StackWrapper.class) {
-			Stack<E> list = ((StackWrapper<E>) place).stack;
-			if (list.contains(item))
-				return remove(item).add(item);
-			else
-				return new FixedSizeHashSet<E>(this, hashItem, new StackWrapper(list.push(item)), size + 1);
-		} else if (place.equals(item)) {
-			return new FixedSizeHashSet<E>(this, hashItem, item, size);
-		} else {
-			Stack<E> list = Stack.create();
-			list = list.push((E) place);
-			list = list.push(item);
-			return new FixedSizeHashSet<E>(this, hashItem, new StackWrapper(list), size + 1);
-		}
+			return new FixedSizeHashSet<E>(this, slot, entry, size + 1);
+		Object newPlace = CollisionNode.add(place, entry, hash);
+		long newSize = size + CollisionNode.count(newPlace) - CollisionNode.count(place);
+		return new FixedSizeHashSet<E>(this, slot, newPlace, newSize);
+	}
+
+	/**
+	 * returns the entry of the first element, i.e. the element itself or the
+	 * element together with its hash code, or null if the set is empty.
+	 */
+	Object firstEntry() {
+		Object place = super.firstElement();
+		return (place == null) ? null : CollisionNode.first(place);
+	}
+
+	/**
+	 * returns the entry of the first element in the given slot, or null if the
+	 * slot is empty. Together with nextPosition() this lets a caller resume a
+	 * scan of the table at the slot where it stopped.
+	 */
+	Object entryAt(long slot) {
+		Object place = get(slot);
+		return (place == null) ? null : CollisionNode.first(place);
+	}
+
+	/**
+	 * adds an entry taken from another set. A cached hash code is reused.
+	 */
+	@SuppressWarnings("unchecked")
+	FixedSizeHashSet<E> addEntry(Object entry) {
+		int hash = CollisionNode.hash(entry);
+		boolean hashed = entry.getClass() == CollisionNode.HashedEntry.class;
+		if (hashed == cacheHashes)
+			return put(entry, hash);
+		return add((E) CollisionNode.element(entry), hash);
+	}
+
+	FixedSizeHashSet<E> removeEntry(Object entry) {
+		return remove(CollisionNode.element(entry), CollisionNode.hash(entry));
 	}
 
 	private static class Iterator<E> implements ForwardIterator<E> {
 		final ForwardIterator<Object> notNullPlaces;
 
-		Stack<E> list = null;
+		Object[] list = null;
+
+		int listPos;
 
 		public Iterator(FixedSizeHashSet<E> hashSet) {
 			notNullPlaces = hashSet.notNullIterator();
@@ -99,30 +190,21 @@ public final class FixedSizeHashSet<E> extends ImmutableArrayBase<Object>
 			return notNullPlaces.hasNext() || (list != null);
 		}
 
-		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@SuppressWarnings("unchecked")
 		public E next() {
 			if (!hasNext()) {
 				throw new NoSuchElementException("No next element.");
 			}
-			if (list != null) {
-				E item = list.top();
-				list = list.pop();
-				if (list.size() == 0) {
-					list = null;
-				}
-				return item;
-			}
-			Object place = notNullPlaces.next();
-			if (place.getClass() == StackWrapper.class) {
-				list = ((StackWrapper) place).stack;
-				E item = list.top();
-				list = list.pop();
-				if (list.size() == 0) {
-					list = null;
-				}
-				return item;
+			if (list == null) {
+				Object place = notNullPlaces.next();
+				if (!CollisionNode.isCollision(place))
+					return (E) CollisionNode.element(place);
+				list = CollisionNode.elements(place);
+				listPos = 0;
 			}
-			E item = (E) place;
+			E item = (E) list[listPos++];
+			if (listPos == list.length)
+				list = null;
 			return item;
 		}
 	}
@@ -135,21 +217,102 @@ public final class FixedSizeHashSet<E> extends ImmutableArrayBase<Object>
 		return SeqFromIterator.create(iterator());
 	}
 
-	@SuppressWarnings("unchecked")
-	public E find(E item) {
-		int hash = item.hashCode() % (int) capacity();
-		if (hash < 0)
-			hash = -hash;
-		Object place = get(hash);
-		if (place == null)
-			return null;
-		if (place.getClass() == StackWrapper.class) {
-			return Collections.findViaIterator(((StackWrapper<E>) place).stack, item);
+	/*
+	 * Splits the table at subtree boundaries. Only the unsplit spliterator knows
+	 * its exact size, the size of a part is estimated from the length of its
+	 * range.
+	 */
+	private static final class SetSpliterator<E> implements Spliterator<E> {
+		private final FixedSizeHashSet<E> hashSet;
+
+		private long start;
+
+		private final long end;
+
+		private boolean whole;
+
+		private long consumed = 0;
+
+		private NotNullIterator<Object> places = null;
+
+		private Object[] list = null;
+
+		private int listPos;
+
+		SetSpliterator(FixedSizeHashSet<E> hashSet, long start, long end, boolean whole) {
+			this.hashSet = hashSet;
+			this.start = start;
+			this.end = end;
+			this.whole = whole;
 		}
-		if (place.equals(item))
-			return (E) place;
-		else
-			return null;
+
+		@SuppressWarnings("unchecked")
+		public boolean tryAdvance(Consumer<? super E> action) {
+			if (list == null) {
+				if (places == null)
+					places = new NotNullIterator<Object>(hashSet, start, end);
+				if (!places.hasNext())
+					return false;
+				Object place = places.next();
+				if (!CollisionNode.isCollision(place)) {
+					consumed++;
+					action.accept((E) CollisionNode.element(place));
+					return true;
+				}
+				list = CollisionNode.elements(place);
+				listPos = 0;
+			}
+			E item = (E) list[listPos++];
+			if (listPos == list.length)
+				list = null;
+			consumed++;
+			action.accept(item);
+			return true;
+		}
+
+		public Spliterator<E> trySplit() {
+			if (places != null)
+				return null;
+			long mid = splitPosition(start, end);
+			if (mid < 0)
+				return null;
+			Spliterator<E> prefix = new SetSpliterator<E>(hashSet, start, mid, false);
+			start = mid;
+			whole = false;
+			return prefix;
+		}
+
+		public long estimateSize() {
+			if (whole)
+				return hashSet.size - consumed;
+			double share = (double) (end - start) / hashSet.capacity();
+			return Math.max(0, (long) (share * hashSet.size) - consumed);
+		}
+
+		public int characteristics() {
+			return DISTINCT | NONNULL | IMMUTABLE | (whole ? SIZED : 0);
+		}
+	}
+
+	/**
+	 * returns a spliterator which splits the table at the boundaries of its
+	 * subtrees.
+	 */
+	public Spliterator<E> spliterator() {
+		return new SetSpliterator<E>(this, 0, capacity(), true);
+	}
+
+	public java.util.stream.Stream<E> parallelStream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+	public E find(E item) {
+		return find(item, hash(item));
+	}
+
+	@SuppressWarnings("unchecked")
+	E find(Object item, int hash) {
+		return (E) CollisionNode.find(get(slot(hash)), item, hash);
 	}
 
 	public boolean contains(E e) {
@@ -175,51 +338,26 @@ public final class FixedSizeHashSet<E> extends ImmutableArrayBase<Object>
 		return Collections.toStringSorted(this);
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public FixedSizeHashSet<E> remove(E item) {
-		int hashItem = item.hashCode() % (int) capacity();
-		if (hashItem < 0)
-			hashItem = -hashItem;
-		Object place = get(hashItem);
-		if (place == null)
-			return this;
-		if (place.getClass() == StackWrapper.class) {
-			Stack<E> list = ((StackWrapper<E>) place).stack;
-			if (!list.contains(item))
-				return this;
-			else {
-				ExtendibleArray<E> top = new ExtendibleArray<E>();
-				while (!list.top().equals(item)) {
-					top.add(list.top());
-					list = list.pop();
-				} // `while`
-				list = list.pop();
-				for (int i = 0; i < top.size(); i++) {
-					list = list.push(top.get(i));
-				} // `for`
-				if (list.size() == 1)
-					return new FixedSizeHashSet<E>(this, hashItem, list.top(), size - 1);
-				else
-					return new FixedSizeHashSet<E>(this, hashItem, new StackWrapper(list), size - 1);
-			}
-		} else if (place.equals(item)) {
-			return new FixedSizeHashSet<E>(this, hashItem, null, size - 1);
-		} else {
+		return remove(item, hash(item));
+	}
+
+	FixedSizeHashSet<E> remove(Object item, int hash) {
+		int slot = slot(hash);
+		Object place = get(slot);
+		Object newPlace = CollisionNode.remove(place, item, hash);
+		if (newPlace == place)
 			return this;
-		}
+		return new FixedSizeHashSet<E>(this, slot, newPlace, size - 1);
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public E firstElement() {
-		Object place = super.firstElement();
-		if (place == null)
+		Object entry = firstEntry();
+		if (entry == null)
 			return null;
-		if (place.getClass() == StackWrapper.class) {
-			Stack<E> list = ((StackWrapper<E>) place).stack;
-			return list.first();
-		} else
-			return (E) place;
+		return (E) CollisionNode.element(entry);
 	}
 
 	public BigInteger elementCount() {
@@ -227,7 +365,7 @@ public final class FixedSizeHashSet<E> extends ImmutableArrayBase<Object>
 	}
 
 	public FixedSizeHashSet<E> clear() {
-		return new FixedSizeHashSet<E>(capacity());
+		return new FixedSizeHashSet<E>(capacity(), hasCompactNodes(), cacheHashes);
 	}
 
 	@Override
@@ -248,10 +386,158 @@ public final class FixedSizeHashSet<E> extends ImmutableArrayBase<Object>
 		return elementCount() == BigInteger.ZERO;
 	}
 
+	/**
+	 * Iterates lazily over the entries of a set in slots which are not identical
+	 * to the slots of another set. Both sets must have the same capacity.
+	 * Subtrees which are shared by both sets are skipped, so the cost is
+	 * proportional to the difference of the sets.
+	 */
+	static final class DifferentEntries implements ForwardIterator<Object> {
+		private final FixedSizeHashSet<?> set;
+
+		private final NonIdenticalPlaces places;
+
+		private Object[] list = null;
+
+		private int listPos;
+
+		private Object nextEntry;
+
+		DifferentEntries(FixedSizeHashSet<?> set, FixedSizeHashSet<?> other) {
+			this.set = set;
+			this.places = set.nonIdenticalPlaces(other);
+			advance();
+		}
+
+		private void advance() {
+			if (list != null) {
+				nextEntry = list[listPos++];
+				if (listPos == list.length)
+					list = null;
+				return;
+			}
+			while (places.hasNext()) {
+				Object place = set.get(places.nextPosition());
+				if (place == null)
+					continue;
+				if (CollisionNode.isCollision(place)) {
+					list = CollisionNode.entries(place);
+					listPos = 1;
+					nextEntry = list[0];
+				} else
+					nextEntry = place;
+				return;
+			}
+			nextEntry = null;
+		}
+
+		public boolean hasNext() {
+			return nextEntry != null;
+		}
+
+		public Object next() {
+			if (nextEntry == null)
+				throw new NoSuchElementException("No next element.");
+			Object entry = nextEntry;
+			advance();
+			return entry;
+		}
+	}
+
+	boolean containsEntry(Object entry) {
+		return find(CollisionNode.element(entry), CollisionNode.hash(entry)) != null;
+	}
+
+	private boolean hasSameCapacity(Object other) {
+		return (other instanceof FixedSizeHashSet) && (((FixedSizeHashSet<?>) other).capacity() == capacity());
+	}
+
+	/**
+	 * returns the union of both sets. If both sets have the same capacity, only
+	 * the slots in which the sets differ are visited, and the result shares all
+	 * other slots with this set.
+	 */
+	public FixedSizeHashSet<E> union(FixedSizeHashSet<E> other) {
+		if (!hasSameCapacity(other))
+			return Collections.merge(this, other);
+		ForwardIterator<Object> entries = new DifferentEntries(other, this);
+		FixedSizeHashSet<E> result = this;
+		while (entries.hasNext()) {
+			Object entry = entries.next();
+			if (!containsEntry(entry))
+				result = result.addEntry(entry);
+		}
+		return result;
+	}
+
+	/**
+	 * returns the intersection of both sets. If both sets have the same
+	 * capacity, only the slots in which the sets differ are visited.
+	 */
+	@SuppressWarnings("unchecked")
+	public FixedSizeHashSet<E> intersection(FixedSizeHashSet<E> other) {
+		FixedSizeHashSet<E> result = this;
+		if (!hasSameCapacity(other)) {
+			ForwardIterator<E> it = iterator();
+			while (it.hasNext()) {
+				E e = it.next();
+				if (!other.contains(e))
+					result = result.remove(e);
+			}
+			return result;
+		}
+		ForwardIterator<Object> entries = new DifferentEntries(this, other);
+		while (entries.hasNext()) {
+			Object entry = entries.next();
+			if (!other.containsEntry(entry))
+				result = result.remove((E) CollisionNode.element(entry));
+		}
+		return result;
+	}
+
+	/**
+	 * returns the elements of this set which are not in the other set. If the
+	 * other set is a hash set of the same capacity, the result is built from the
+	 * slots in which the sets differ.
+	 */
 	@Override
 	public FixedSizeHashSet<E> minus(Set<? extends E> other) {
-		// TODO optimize this method
-		return Collections.minus(this, other);
+		if (!hasSameCapacity(other))
+			return Collections.minus(this, other);
+		FixedSizeHashSet<?> B = (FixedSizeHashSet<?>) other;
+		ForwardIterator<Object> entries = new DifferentEntries(this, B);
+		FixedSizeHashSet<E> result = clear();
+		while (entries.hasNext()) {
+			Object entry = entries.next();
+			if (!B.containsEntry(entry))
+				result = result.addEntry(entry);
+		}
+		return result;
+	}
+
+	/**
+	 * tests if all elements of this set are in the other set. If the other set is
+	 * a hash set of the same capacity, only the slots in which the sets differ
+	 * are visited.
+	 */
+	public boolean isSubsetOf(Set<E> other) {
+		if (size() > other.size())
+			return false;
+		if (!hasSameCapacity(other)) {
+			ForwardIterator<E> it = iterator();
+			while (it.hasNext()) {
+				if (other.find(it.next()) == null)
+					return false;
+			}
+			return true;
+		}
+		FixedSizeHashSet<?> B = (FixedSizeHashSet<?>) other;
+		ForwardIterator<Object> entries = new DifferentEntries(this, B);
+		while (entries.hasNext()) {
+			if (!B.containsEntry(entries.next()))
+				return false;
+		}
+		return true;
 	}
 
 	@Override
@@ -0,0 +1,66 @@
+package org.gendut.collection;
+
+/**
+ * The parameters of the incremental rehashing of {@link ImmutableHashSet}. A
+ * set keeps a small and a large table. When the small table is full, a large
+ * table of <i>balance</i> times its capacity is allocated, and each following
+ * insertion moves up to <i>migrationBudget</i> elements from the small table to
+ * the large one. Tables are filled up to <i>loadfactor</i> times their
+ * capacity.
+ * 
+ * A larger budget finishes the migration earlier at a higher cost per
+ * insertion, a smaller balance allocates smaller tables but migrates more
+ * often.
+ */
+public final class HashGrowthPolicy {
+	/**
+	 * the policy of sets which are created without a policy.
+	 */
+	public static final HashGrowthPolicy standard = new HashGrowthPolicy(ImmutableHashSet.balance,
+			ImmutableHashSet.loadfactor, 2);
+
+	final int balance;
+
+	final double loadfactor;
+
+	final int migrationBudget;
+
+	public HashGrowthPolicy(int balance, double loadfactor, int migrationBudget) {
+		if (balance < 2)
+			throw new IllegalArgumentException("balance must be at least 2");
+		if (!(loadfactor > 0) || (loadfactor > 1))
+			throw new IllegalArgumentException("loadfactor must be in (0, 1]");
+		if (migrationBudget < 1)
+			throw new IllegalArgumentException("migration budget must be positive");
+		this.balance = balance;
+		this.loadfactor = loadfactor;
+		this.migrationBudget = migrationBudget;
+	}
+
+	public int balance() {
+		return balance;
+	}
+
+	public double loadfactor() {
+		return loadfactor;
+	}
+
+	public int migrationBudget() {
+		return migrationBudget;
+	}
+
+	/**
+	 * returns the capacity of a table which holds the given number of elements
+	 * without exceeding the load factor.
+	 */
+	long capacityFor(long expectedSize) {
+		long capacity = (long) Math.ceil(expectedSize / loadfactor) + 1;
+		return Math.max(capacity, ImmutableHashSet.minCapacity);
+	}
+
+	@Override
+	public String toString() {
+		return "(balance " + balance + ", loadfactor " + loadfactor + ", migration budget " + migrationBudget
+				+ ")";
+	}
+}
@@ -0,0 +1,527 @@
+package org.gendut.collection;
+
+import java.math.BigInteger;
+import java.util.NoSuchElementException;
+
+import org.gendut.func.Pair;
+import org.gendut.iterator.ForwardIterator;
+import org.gendut.seq.Seq;
+import org.gendut.seq.SeqFromIterator;
+
+/**
+ * A persistent hash map whose trie nodes hold the keys and values inline. A
+ * node has 16 slots selected by four bits of the spread hash code of the key.
+ * Two bitmaps tell which slots hold a key-value pair and which hold a subnode.
+ * The pairs are stored interleaved (key, value, key, value, ...) in one array,
+ * followed by the subnodes. Thus there is no wrapper object per entry, and a
+ * lookup compares keys directly. Keys with equal hash codes share a collision
+ * node below the last level.<br />
+ * <br />
+ * A subnode always holds at least two entries. When a removal leaves a single
+ * entry in a subnode, the entry is moved up into its parent, so each map has a
+ * unique shape.
+ */
+public final class HashTrieMap<Key, Value> extends AbstractCollection<Pair<Key, Value>>
+		implements UpdatableMap<Key, Value, HashTrieMap<Key, Value>> {
+	private static final int bits = 4;
+
+	private static final int mask = (1 << bits) - 1;
+
+	/*
+	 * maximum number of levels including the level of the collision nodes
+	 */
+	private static final int maxDepth = 32 / bits + 1;
+
+	private static final Object notFound = new Object();
+
+	private static final class Node {
+		final int dataMap;
+
+		final int nodeMap;
+
+		final Object[] content;
+
+		Node(int dataMap, int nodeMap, Object[] content) {
+			this.dataMap = dataMap;
+			this.nodeMap = nodeMap;
+			this.content = content;
+		}
+
+		int dataLength() {
+			return 2 * Integer.bitCount(dataMap);
+		}
+
+		int dataIndex(int bit) {
+			return 2 * Integer.bitCount(dataMap & (bit - 1));
+		}
+
+		int nodeIndex(int bit) {
+			return dataLength() + Integer.bitCount(nodeMap & (bit - 1));
+		}
+
+		boolean isSingleton() {
+			return (nodeMap == 0) && (Integer.bitCount(dataMap) == 1);
+		}
+	}
+
+	/*
+	 * Keys with equal hash codes, keys and values interleaved.
+	 */
+	private static final class EqualHashNode {
+		final int hash;
+
+		final Object[] content;
+
+		EqualHashNode(int hash, Object[] content) {
+			this.hash = hash;
+			this.content = content;
+		}
+	}
+
+	/*
+	 * tells the caller of an update whether the size has changed
+	 */
+	private static final class Change {
+		boolean sizeChanged = false;
+	}
+
+	private static final Node emptyNode = new Node(0, 0, new Object[0]);
+
+	@SuppressWarnings("rawtypes")
+	private static final HashTrieMap emptyMap = new HashTrieMap(emptyNode, 0);
+
+	private final Node root;
+
+	private final long size;
+
+	private HashTrieMap(Node root, long size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <Key, Value> HashTrieMap<Key, Value> create() {
+		return emptyMap;
+	}
+
+	private static int hash(Object key) {
+		return FixedSizeHashSet.spread(key.hashCode());
+	}
+
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & mask);
+	}
+
+	/*
+	 * returns the key or the value stored for the key, or notFound.
+	 */
+	private static Object lookup(Node root, Object key, boolean returnKey) {
+		int hash = hash(key);
+		Node node = root;
+		int shift = 0;
+		while (true) {
+			int bit = bit(hash, shift);
+			if ((node.dataMap & bit) != 0) {
+				int i = node.dataIndex(bit);
+				Object k = node.content[i];
+				if ((k == key) || k.equals(key))
+					return returnKey ? k : node.content[i + 1];
+				return notFound;
+			}
+			if ((node.nodeMap & bit) == 0)
+				return notFound;
+			Object sub = node.content[node.nodeIndex(bit)];
+			if (sub.getClass() == EqualHashNode.class) {
+				Object[] content = ((EqualHashNode) sub).content;
+				for (int i = 0; i < content.length; i += 2) {
+					if (content[i].equals(key))
+						return returnKey ? content[i] : content[i + 1];
+				}
+				return notFound;
+			}
+			node = (Node) sub;
+			shift = shift + bits;
+		}
+	}
+
+	private static Object put(Object node, Object key, Object value, int hash, int shift, Change change) {
+		if (node.getClass() == EqualHashNode.class) {
+			Object[] content = ((EqualHashNode) node).content;
+			for (int i = 0; i < content.length; i += 2) {
+				if (content[i].equals(key)) {
+					if (content[i + 1] == value)
+						return node;
+					Object[] newContent = content.clone();
+					newContent[i + 1] = value;
+					return new EqualHashNode(hash, newContent);
+				}
+			}
+			Object[] newContent = new Object[content.length + 2];
+			System.arraycopy(content, 0, newContent, 0, content.length);
+			newContent[content.length] = key;
+			newContent[content.length + 1] = value;
+			change.sizeChanged = true;
+			return new EqualHashNode(hash, newContent);
+		}
+		Node n = (Node) node;
+		Object[] content = n.content;
+		int bit = bit(hash, shift);
+		if ((n.dataMap & bit) != 0) {
+			int i = n.dataIndex(bit);
+			Object k = content[i];
+			if ((k == key) || k.equals(key)) {
+				if (content[i + 1] == value)
+					return n;
+				Object[] newContent = content.clone();
+				newContent[i + 1] = value;
+				return new Node(n.dataMap, n.nodeMap, newContent);
+			}
+			/*
+			 * both pairs move into a new subnode:
+			 */
+			change.sizeChanged = true;
+			Object sub = pair(k, content[i + 1], hash(k), key, value, hash, shift + bits);
+			int j = n.nodeIndex(bit) - 2;
+			Object[] newContent = new Object[content.length - 1];
+			System.arraycopy(content, 0, newContent, 0, i);
+			System.arraycopy(content, i + 2, newContent, i, j - i);
+			newContent[j] = sub;
+			System.arraycopy(content, j + 2, newContent, j + 1, content.length - j - 2);
+			return new Node(n.dataMap & ~bit, n.nodeMap | bit, newContent);
+		}
+		if ((n.nodeMap & bit) != 0) {
+			int j = n.nodeIndex(bit);
+			Object sub = content[j];
+			Object newSub = put(sub, key, value, hash, shift + bits, change);
+			if (newSub == sub)
+				return n;
+			Object[] newContent = content.clone();
+			newContent[j] = newSub;
+			return new Node(n.dataMap, n.nodeMap, newContent);
+		}
+		change.sizeChanged = true;
+		int i = n.dataIndex(bit);
+		Object[] newContent = new Object[content.length + 2];
+		System.arraycopy(content, 0, newContent, 0, i);
+		newContent[i] = key;
+		newContent[i + 1] = value;
+		System.arraycopy(content, i, newContent, i + 2, content.length - i);
+		return new Node(n.dataMap | bit, n.nodeMap, newContent);
+	}
+
+	/*
+	 * creates a subnode for two keys which are different.
+	 */
+	private static Object pair(Object k1, Object v1, int h1, Object k2, Object v2, int h2, int shift) {
+		if (shift >= 32)
+			return new EqualHashNode(h1, new Object[] { k1, v1, k2, v2 });
+		int b1 = bit(h1, shift);
+		int b2 = bit(h2, shift);
+		if (b1 == b2)
+			return new Node(0, b1, new Object[] { pair(k1, v1, h1, k2, v2, h2, shift + bits) });
+		Object[] content = (b1 < b2) ? new Object[] { k1, v1, k2, v2 } : new Object[] { k2, v2, k1, v1 };
+		return new Node(b1 | b2, 0, content);
+	}
+
+	private static Object remove(Object node, Object key, int hash, int shift, Change change) {
+		if (node.getClass() == EqualHashNode.class) {
+			Object[] content = ((EqualHashNode) node).content;
+			for (int i = 0; i < content.length; i += 2) {
+				if (content[i].equals(key)) {
+					change.sizeChanged = true;
+					Object[] newContent = new Object[content.length - 2];
+					System.arraycopy(content, 0, newContent, 0, i);
+					System.arraycopy(content, i + 2, newContent, i, content.length - i - 2);
+					return new EqualHashNode(hash, newContent);
+				}
+			}
+			return node;
+		}
+		Node n = (Node) node;
+		Object[] content = n.content;
+		int bit = bit(hash, shift);
+		if ((n.dataMap & bit) != 0) {
+			int i = n.dataIndex(bit);
+			Object k = content[i];
+			if ((k != key) && !k.equals(key))
+				return n;
+			change.sizeChanged = true;
+			Object[] newContent = new Object[content.length - 2];
+			System.arraycopy(content, 0, newContent, 0, i);
+			System.arraycopy(content, i + 2, newContent, i, content.length - i - 2);
+			return new Node(n.dataMap & ~bit, n.nodeMap, newContent);
+		}
+		if ((n.nodeMap & bit) == 0)
+			return n;
+		int j = n.nodeIndex(bit);
+		Object sub = content[j];
+		Object newSub = remove(sub, key, hash, shift + bits, change);
+		if (newSub == sub)
+			return n;
+		Object[] single = singleEntry(newSub);
+		if (single == null) {
+			Object[] newContent = content.clone();
+			newContent[j] = newSub;
+			return new Node(n.dataMap, n.nodeMap, newContent);
+		}
+		/*
+		 * the remaining entry of the subnode moves up:
+		 */
+		int i = n.dataIndex(bit);
+		Object[] newContent = new Object[content.length + 1];
+		System.arraycopy(content, 0, newContent, 0, i);
+		newContent[i] = single[0];
+		newContent[i + 1] = single[1];
+		System.arraycopy(content, i, newContent, i + 2, j - i);
+		System.arraycopy(content, j + 1, newContent, j + 2, content.length - j - 1);
+		return new Node(n.dataMap | bit, n.nodeMap & ~bit, newContent);
+	}
+
+	/*
+	 * returns the content of a node with a single entry, otherwise null.
+	 */
+	private static Object[] singleEntry(Object node) {
+		if (node.getClass() == EqualHashNode.class) {
+			Object[] content = ((EqualHashNode) node).content;
+			return (content.length == 2) ? content : null;
+		}
+		Node n = (Node) node;
+		return n.isSingleton() ? n.content : null;
+	}
+
+	public HashTrieMap<Key, Value> put(Key key, Value val) {
+		Change change = new Change();
+		Node newRoot = (Node) put(root, key, val, hash(key), 0, change);
+		if (newRoot == root)
+			return this;
+		return new HashTrieMap<Key, Value>(newRoot, change.sizeChanged ? size + 1 : size);
+	}
+
+	public HashTrieMap<Key, Value> remove(Key key) {
+		Change change = new Change();
+		Node newRoot = (Node) remove(root, key, hash(key), 0, change);
+		if (newRoot == root)
+			return this;
+		return new HashTrieMap<Key, Value>(newRoot, size - 1);
+	}
+
+	public HashTrieMap<Key, Value> clear() {
+		return create();
+	}
+
+	@SuppressWarnings("unchecked")
+	public Value apply(Key key) {
+		Object value = lookup(root, key, false);
+		return (value == notFound) ? null : (Value) value;
+	}
+
+	public boolean containsKey(Key key) {
+		return lookup(root, key, true) != notFound;
+	}
+
+	@SuppressWarnings("unchecked")
+	public Key findKey(Key key) {
+		Object k = lookup(root, key, true);
+		return (k == notFound) ? null : (Key) k;
+	}
+
+	public boolean contains(Pair<Key, Value> e) {
+		Key k = e.first();
+		if (k == null)
+			return false;
+		Object v = lookup(root, k, false);
+		if (v == notFound)
+			return false;
+		if (v == null)
+			return e.second() == null;
+		else
+			return v.equals(e.second());
+	}
+
+	@SuppressWarnings("unchecked")
+	public Pair<Key, Value> find(Pair<Key, Value> e) {
+		Key k = e.first();
+		if (k == null)
+			return null;
+		Object v = lookup(root, k, false);
+		if (v == notFound)
+			return null;
+		Pair<Key, Value> candidate = new Pair<Key, Value>(findKey(k), (Value) v);
+		if (candidate.equals(e))
+			return candidate;
+		else
+			return null;
+	}
+
+	/*
+	 * Visits the entries depth first. Per level, the cursor runs over the
+	 * key-value pairs and then over the subnodes of a node.
+	 */
+	private static final class EntryCursor {
+		private final Object[][] contents = new Object[maxDepth + 1][];
+
+		private final int[] dataLengths = new int[maxDepth + 1];
+
+		private final int[] positions = new int[maxDepth + 1];
+
+		private int depth = 0;
+
+		Object[] content;
+
+		int index;
+
+		EntryCursor(Node root) {
+			push(root);
+		}
+
+		private void push(Object node) {
+			if (node.getClass() == EqualHashNode.class) {
+				contents[depth] = ((EqualHashNode) node).content;
+				dataLengths[depth] = contents[depth].length;
+			} else {
+				contents[depth] = ((Node) node).content;
+				dataLengths[depth] = ((Node) node).dataLength();
+			}
+			positions[depth] = 0;
+		}
+
+		/*
+		 * moves to the next entry, which is content[index] and
+		 * content[index + 1].
+		 */
+		boolean advance() {
+			while (depth >= 0) {
+				Object[] c = contents[depth];
+				int p = positions[depth];
+				if (p < dataLengths[depth]) {
+					positions[depth] = p + 2;
+					content = c;
+					index = p;
+					return true;
+				}
+				if (p < c.length) {
+					positions[depth] = p + 1;
+					depth = depth + 1;
+					push(c[p]);
+				} else
+					depth = depth - 1;
+			}
+			return false;
+		}
+	}
+
+	private abstract static class CursorIterator<E> implements ForwardIterator<E> {
+		private final EntryCursor cursor;
+
+		private boolean hasNext;
+
+		CursorIterator(Node root) {
+			cursor = new EntryCursor(root);
+			hasNext = cursor.advance();
+		}
+
+		abstract E current(Object[] content, int index);
+
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		public E next() {
+			if (!hasNext)
+				throw new NoSuchElementException("No next element.");
+			E e = current(cursor.content, cursor.index);
+			hasNext = cursor.advance();
+			return e;
+		}
+	}
+
+	public ForwardIterator<Pair<Key, Value>> iterator() {
+		return new CursorIterator<Pair<Key, Value>>(root) {
+			@SuppressWarnings("unchecked")
+			Pair<Key, Value> current(Object[] content, int index) {
+				return new Pair<Key, Value>((Key) content[index], (Value) content[index + 1]);
+			}
+		};
+	}
+
+	public ForwardIterator<Key> keyIterator() {
+		return new CursorIterator<Key>(root) {
+			@SuppressWarnings("unchecked")
+			Key current(Object[] content, int index) {
+				return (Key) content[index];
+			}
+		};
+	}
+
+	public Seq<Pair<Key, Value>> seq() {
+		return SeqFromIterator.create(iterator());
+	}
+
+	public Seq<Key> keySeq() {
+		return SeqFromIterator.create(keyIterator());
+	}
+
+	private class KeySet extends AbstractCollection<Key> implements ImmutableSet<Key> {
+		public Key find(Key key) {
+			return findKey(key);
+		}
+
+		public boolean contains(Key key) {
+			return containsKey(key);
+		}
+
+		public ForwardIterator<Key> iterator() {
+			return keyIterator();
+		}
+
+		public long size() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			return Collections.toStringSorted(this);
+		}
+
+		@Override
+		public int hashCode() {
+			return Collections.hashCodeForSet(this);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return Collections.equalsForSets(this, obj);
+		}
+
+		public BigInteger elementCount() {
+			return BigInteger.valueOf(size());
+		}
+	}
+
+	public ImmutableSet<Key> keys() {
+		return new KeySet();
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public BigInteger elementCount() {
+		return BigInteger.valueOf(size);
+	}
+
+	@Override
+	public int hashCode() {
+		return Collections.hashCodeForSet(this);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return Collections.equalsForSets(this, obj);
+	}
+
+	@Override
+	public String toString() {
+		return Collections.toStringSorted(this);
+	}
+}
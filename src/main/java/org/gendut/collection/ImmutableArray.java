@@ -1,6 +1,8 @@
 package org.gendut.collection;
 
 import java.math.BigInteger;
+import java.util.Spliterator;
+import java.util.stream.StreamSupport;
 
 import org.gendut.collection.mutable.ExtendibleArray;
 import org.gendut.iterator.ForwardIterator;
@@ -22,6 +24,11 @@ public final class ImmutableArray<E> extends ImmutableArrayBase<E>
         super(sz);
     }
 
+    private ImmutableArray(long sz, boolean compactNodes)
+    {
+        super(sz, compactNodes);
+    }
+
     @SuppressWarnings("rawtypes")
     static final private ImmutableArray emptyTuple = new ImmutableArray(
                     0);
@@ -37,11 +44,92 @@ public final class ImmutableArray<E> extends ImmutableArrayBase<E>
         else return new ImmutableArray<E>(size);
     }
 
+    /**
+     * Construct a new tuple of given size and select the layout of its inner nodes. The compact
+     * layout stores only the non-null children of a node together with a bitmap. It needs less
+     * memory for sparse arrays, but more for dense ones.
+     */
+    static public <E> ImmutableArray<E> create(long size, boolean compactNodes)
+    {
+        if (!compactNodes)
+            return create(size);
+        else return new ImmutableArray<E>(size, true);
+    }
+
     private ImmutableArray(ImmutableArray<E> x, long i, E e)
     {
         super(x, i, e);
     }
 
+    private ImmutableArray(ImmutableArray<E> x, long[] positions, E[] values)
+    {
+        super(x, positions, values);
+    }
+
+    private ImmutableArray(long sz, Object[] rootSlots)
+    {
+        super(sz, rootSlots);
+    }
+
+    /**
+     * A builder creates an immutable array from elements given in index order. The tree is
+     * constructed bottom-up in linear time, every node is allocated only once. The resulting array
+     * is the same as the one obtained by setting the elements one by one.
+     */
+    public static final class Builder<E>
+    {
+        private final long size;
+
+        private final TrieBuilder trie = new TrieBuilder();
+
+        private Builder(long size)
+        {
+            this.size = size;
+        }
+
+        /**
+         * appends an element at the next position.
+         */
+        public Builder<E> add(E e)
+        {
+            if ((size >= 0) && (trie.count() >= size))
+                throw new IndexOutOfBoundsException("builder is limited to size " + size);
+            trie.add(e);
+            return this;
+        }
+
+        /**
+         * returns the array. If the builder has been created with a given size, the remaining
+         * positions are null. The builder cannot be used afterwards.
+         */
+        public ImmutableArray<E> build()
+        {
+            long sz = (size >= 0) ? size : trie.count();
+            Object[] rootSlots = trie.finish(sz);
+            if (sz == 0)
+                return create(0);
+            else return new ImmutableArray<E>(sz, rootSlots);
+        }
+    }
+
+    /**
+     * returns a builder for an array of the given size.
+     */
+    static public <E> Builder<E> builder(long size)
+    {
+        if (size < 0)
+            throw new IllegalArgumentException("size < 0: " + size);
+        return new Builder<E>(size);
+    }
+
+    /**
+     * returns a builder for an array which has as many elements as are added.
+     */
+    static public <E> Builder<E> builder()
+    {
+        return new Builder<E>(-1);
+    }
+
     public E at(long i)
     {
         return super.get(i);
@@ -66,6 +154,26 @@ public final class ImmutableArray<E> extends ImmutableArrayBase<E>
         return new ImmutableArray<E>(this, i, e);
     }
 
+    /**
+     * returns a tuple with the elements at the given positions replaced. Nodes which are shared by
+     * the paths to several positions are copied only once. If a position occurs more than once,
+     * the last of its values is taken.
+     */
+    public ImmutableArray<E> setAll(long[] positions, E[] values)
+    {
+        return new ImmutableArray<E>(this, positions, values);
+    }
+
+    /**
+     * returns the positions in which both arrays have non-identical elements, in ascending order.
+     * The positions are computed lazily. Subtrees shared by both arrays are skipped, so the cost
+     * depends on the number of differences rather than on the size of the arrays.
+     */
+    public Seq<Long> differences(ImmutableArray<? extends E> other)
+    {
+        return SeqFromIterator.create(nonIdenticalPlaces(other));
+    }
+
     public Seq<E> seq()
     {
         return SeqFromIterator.create(iterator());
@@ -115,21 +223,35 @@ public final class ImmutableArray<E> extends ImmutableArrayBase<E>
         return Collections.toStringIterationOrder(this);
     }
 
-    /**
-     * TODO: Optimize in order to achieve linear instead of logarithmic time.
-     */
     static public <E> ImmutableArray<E> fromCollection(
                     ImmutableCollection<? extends E> C)
     {
-        ImmutableArray<E> tuple = create(C.size());
+        Builder<E> builder = builder(C.size());
         ForwardIterator<? extends E> it = C.iterator();
-        long i = 0;
         while (it.hasNext())
-        {
-            tuple = tuple.set(i, it.next());
-            i = i + 1;
-        }
-        return tuple;
+            builder.add(it.next());
+        return builder.build();
+    }
+
+    static public <E> ImmutableArray<E> fromArray(E[] array)
+    {
+        Builder<E> builder = builder(array.length);
+        for (int i = 0; i < array.length; i++)
+            builder.add(array[i]);
+        return builder.build();
+    }
+
+    static public <E> ImmutableArray<E> fromSeq(Seq<? extends E> seq)
+    {
+        return fromIterator(seq.iterator());
+    }
+
+    static public <E> ImmutableArray<E> fromIterator(ForwardIterator<? extends E> it)
+    {
+        Builder<E> builder = builder();
+        while (it.hasNext())
+            builder.add(it.next());
+        return builder.build();
     }
 
     public BigInteger elementCount()
@@ -175,4 +297,18 @@ public final class ImmutableArray<E> extends ImmutableArrayBase<E>
 	public Stream<E> stream() {
 		return Collections.stream(this);
 	}
+
+    /**
+     * returns a spliterator over all elements including null elements. It splits
+     * at the boundaries of the subtrees and knows the exact size of each part.
+     */
+    public Spliterator<E> spliterator()
+    {
+        return new ArraySpliterator<E>(this, 0, size());
+    }
+
+    public java.util.stream.Stream<E> parallelStream()
+    {
+        return StreamSupport.stream(spliterator(), true);
+    }
 }// `class`
@@ -1,7 +1,11 @@
 package org.gendut.collection;
 
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 
 import org.gendut.collection.mutable.ExtendibleArray;
 import org.gendut.errors.Assertions;
@@ -27,29 +31,56 @@ class ImmutableArrayBase<E> {
 
 	private final long size;
 
+	/*
+	 * layout of the inner nodes: fields (like this node) or BitmapNodes. The root
+	 * node always uses fields.
+	 */
+	private final boolean compact;
+
 	private final Object t0, t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, t15;
 
 	public long adressableSize() {
 		return size;
 	}
 
+	final boolean hasCompactNodes() {
+		return compact;
+	}
+
 	/**
 	 * constructs a tuple with a given size All elements are null. When the
 	 * constructor is called, actually no tree is constructed.
 	 */
 	public ImmutableArrayBase(long size) {
+		this(size, false);
+	}
+
+	/**
+	 * constructs a tuple with a given size and selects the layout of the inner
+	 * nodes. In the compact layout, inner nodes are {@link BitmapNode}s which
+	 * store the non-null slots only.
+	 */
+	public ImmutableArrayBase(long size, boolean compactNodes) {
 		if (size < 0)
 			throw new IllegalArgumentException("size < 0: " + size);
 		this.size = size;
+		this.compact = compactNodes;
 		t0 = t1 = t2 = t3 = t4 = t5 = t6 = t7 = t8 = t9 = t10 = t11 = t12 = t13 = t14 = t15 = null;
 
 	}
 
 	private ImmutableArrayBase(long size, Object e0, Object e1, Object e2, Object e3, Object e4, Object e5, Object e6,
 			Object e7, Object e8, Object e9, Object e10, Object e11, Object e12, Object e13, Object e14, Object e15) {
+		this(size, false, e0, e1, e2, e3, e4, e5, e6, e7, e8, e9, e10, e11, e12, e13, e14, e15);
+	}
+
+	private ImmutableArrayBase(long size, boolean compactNodes, Object e0, Object e1, Object e2, Object e3, Object e4,
+			Object e5, Object e6, Object e7, Object e8, Object e9, Object e10, Object e11, Object e12, Object e13,
+			Object e14, Object e15) {
 		if (size < 0)
 			throw new IllegalArgumentException("size < 0: " + size);
 		this.size = size;
+		this.compact = compactNodes;
 		t0 = e0;
 		t1 = e1;
 		t2 = e2;
@@ -68,6 +99,20 @@ class ImmutableArrayBase<E> {
 		t15 = e15;
 	}
 
+	/**
+	 * constructs the root node of a tuple from the (at most 16) subtrees which
+	 * have been linked by a {@link TrieBuilder}.
+	 */
+	protected ImmutableArrayBase(long size, Object[] rootSlots) {
+		this(size, rootSlots, false);
+	}
+
+	protected ImmutableArrayBase(long size, Object[] rootSlots, boolean compactNodes) {
+		this(size, compactNodes, rootSlots[0], rootSlots[1], rootSlots[2], rootSlots[3], rootSlots[4], rootSlots[5], rootSlots[6],
+				rootSlots[7], rootSlots[8], rootSlots[9], rootSlots[10], rootSlots[11], rootSlots[12], rootSlots[13],
+				rootSlots[14], rootSlots[15]);
+	}
+
 	protected E get(long i) {
 
 		if ((i < 0) || (i >= size)) {
@@ -84,68 +129,28 @@ class ImmutableArrayBase<E> {
 			capacity = capacity << ds;
 		}
 
-		while (tree != null) {
+		Object node = tree;
+		while (true) {
 			long k = (i * arity) / capacity;
-			Object t = null;
-			switch ((int) k) {
-			case 0:
-				t = tree.t0;
-				break;
-			case 1:
-				t = tree.t1;
-				break;
-			case 2:
-				t = tree.t2;
-				break;
-			case 3:
-				t = tree.t3;
-				break;
-			case 4:
-				t = tree.t4;
-				break;
-			case 5:
-				t = tree.t5;
-				break;
-			case 6:
-				t = tree.t6;
-				break;
-			case 7:
-				t = tree.t7;
-				break;
-			case 8:
-				t = tree.t8;
-				break;
-			case 9:
-				t = tree.t9;
-				break;
-			case 10:
-				t = tree.t10;
-				break;
-			case 11:
-				t = tree.t11;
-				break;
-			case 12:
-				t = tree.t12;
-				break;
-			case 13:
-				t = tree.t13;
-				break;
-			case 14:
-				t = tree.t14;
-				break;
-			case 15:
-				t = tree.t15;
-				break;
-			}// `switch`
+			Object t = child(node, (int) k);
 			if ((capacity == arity) || (t == null)) {
 				return (E) t;
 			} else {
-				tree = (ImmutableArrayBase<E>) t;
+				node = t;
 				capacity = capacity >> ds;
 				i = i - k * capacity;
 			} // `else`
 		} // `while`
-		return null;
+	}
+
+	/**
+	 * returns a slot of a node in any layout.
+	 */
+	static Object child(Object node, int k) {
+		if (node.getClass() == BitmapNode.class)
+			return ((BitmapNode) node).child(k);
+		else
+			return ((ImmutableArrayBase<?>) node).slot(k);
 	}
 
 	public ConstantArray<BigInteger> differentPositions(ImmutableArrayBase<E> other) {
@@ -160,11 +165,14 @@ class ImmutableArrayBase<E> {
 		return diffPos.asConstant();
 	}
 
-	@SuppressWarnings("unchecked")
 	private void collectDifferentPositions(long start, long size, Object A, Object B,
 			ExtendibleArray<BigInteger> diffPos) {
 		if (A == B)
 			return;
+		if (A == null || B == null) {
+			collectNonNullPositions(start,size, A != null ? A : B, diffPos);
+			return;
+		}
 		if (size == 1) {
 			if (!A.equals(B)) {
 				diffPos.add(BigInteger.valueOf(start));
@@ -174,45 +182,10 @@ class ImmutableArrayBase<E> {
 		
 		long sizeSteps = size >> ds;
 		
-		if (A == null || B == null) {
-			collectNonNullPositions(start,size, A != null ? A : B, diffPos);
-			return;
+		for (int k = 0; k < arity; k++) {
+			collectDifferentPositions(start, sizeSteps, child(A, k), child(B, k), diffPos);
+			start += sizeSteps;
 		}
-		
-	    ImmutableArrayBase<E> treeA = (ImmutableArrayBase<E>) A;
-	    ImmutableArrayBase<E> treeB = (ImmutableArrayBase<E>) B;
-			
-		collectDifferentPositions(start, sizeSteps, treeA.t0, treeB.t0, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t1, treeB.t1, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t2, treeB.t2, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t3, treeB.t3, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t4, treeB.t4, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t5, treeB.t5, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t6, treeB.t6, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t7, treeB.t7, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t8, treeB.t8, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t9, treeB.t9, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t10, treeB.t10, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t11, treeB.t11, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t12, treeB.t12, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t13, treeB.t13, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t14, treeB.t14, diffPos);
-		start += sizeSteps;
-		collectDifferentPositions(start, sizeSteps, treeA.t15, treeB.t15, diffPos);
 	}
 
 
@@ -226,39 +199,10 @@ class ImmutableArrayBase<E> {
 		
 		long sizeSteps = size >> ds;
 		
-		ImmutableArrayBase<?> tree = (ImmutableArrayBase<?>) A;
-		
-		collectNonNullPositions(start, sizeSteps, tree.t0, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t1, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t2, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t3, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t4, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t5, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t6, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t7, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t8, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t9, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t10, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t11, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t12, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t13, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t14, diffPos);
-		start += sizeSteps;
-		collectNonNullPositions(start, sizeSteps, tree.t15, diffPos);
+		for (int k = 0; k < arity; k++) {
+			collectNonNullPositions(start, sizeSteps, child(A, k), diffPos);
+			start += sizeSteps;
+		}
 	}
 
 	/*
@@ -271,6 +215,7 @@ class ImmutableArrayBase<E> {
 		}
 
 		size = x.size;
+		compact = x.compact;
 
 		long capacity = 1;
 		while (capacity < size) {
@@ -335,7 +280,7 @@ class ImmutableArrayBase<E> {
 				break;
 			}// `switch`
 			long subCapacity = capacity >> ds;
-			t = replace(t, subCapacity, i - k * subCapacity, e);
+			t = replace(t, subCapacity, i - k * subCapacity, e, compact);
 		}
 
 		switch ((int) k) {
@@ -407,12 +352,21 @@ class ImmutableArrayBase<E> {
 	}
 
 	@SuppressWarnings("rawtypes")
-	static private Object replace(Object other, long capacity, long i, Object e) {
+	static private Object replace(Object other, long capacity, long i, Object e, boolean compact) {
 
 		if (capacity == 1) {
 			return e;
 		}
 
+		if (compact) {
+			long k = (i * arity) / capacity;
+			long subCapacity = capacity >> ds;
+			BitmapNode node = (BitmapNode) other;
+			Object t = (node == null) ? null : node.child((int) k);
+			t = replace(t, subCapacity, i - k * subCapacity, e, true);
+			return BitmapNode.replace(node, (int) k, t);
+		}
+
 		Object e0 = null, e1 = null, e2 = null, e3 = null, e4 = null, e5 = null, e6 = null, e7 = null, e8 = null,
 				e9 = null, e10 = null, e11 = null, e12 = null, e13 = null, e14 = null, e15 = null;
 
@@ -495,7 +449,7 @@ class ImmutableArrayBase<E> {
 			}// `switch`
 
 		}
-		t = replace(t, subCapacity, i - k * subCapacity, e);
+		t = replace(t, subCapacity, i - k * subCapacity, e, false);
 
 		switch ((int) k) {
 
@@ -557,6 +511,228 @@ class ImmutableArrayBase<E> {
 		return new ImmutableArrayBase(capacity, e0, e1, e2, e3, e4, e5, e6, e7, e8, e9, e10, e11, e12, e13, e14, e15);
 	}
 
+	/**
+	 * creates an inner node from the given slots, or null if all slots are null.
+	 */
+	@SuppressWarnings("rawtypes")
+	static private Object node(long capacity, Object[] slots, boolean compact) {
+		if (compact)
+			return BitmapNode.create(slots);
+		for (int i = 0; i < arity; i++) {
+			if (slots[i] != null)
+				return new ImmutableArrayBase(capacity, slots[0], slots[1], slots[2], slots[3], slots[4], slots[5],
+						slots[6], slots[7], slots[8], slots[9], slots[10], slots[11], slots[12], slots[13], slots[14],
+						slots[15]);
+		}
+		return null;
+	}
+
+	/**
+	 * copies the slots of a node into the given buffer. A null node has null
+	 * slots only.
+	 */
+	@SuppressWarnings("rawtypes")
+	static private void copySlots(Object other, Object[] slots) {
+		if (other == null) {
+			for (int i = 0; i < arity; i++)
+				slots[i] = null;
+			return;
+		}
+		if (other.getClass() == BitmapNode.class) {
+			((BitmapNode) other).copySlots(slots);
+			return;
+		}
+		ImmutableArrayBase tree = (ImmutableArrayBase) other;
+		slots[0] = tree.t0;
+		slots[1] = tree.t1;
+		slots[2] = tree.t2;
+		slots[3] = tree.t3;
+		slots[4] = tree.t4;
+		slots[5] = tree.t5;
+		slots[6] = tree.t6;
+		slots[7] = tree.t7;
+		slots[8] = tree.t8;
+		slots[9] = tree.t9;
+		slots[10] = tree.t10;
+		slots[11] = tree.t11;
+		slots[12] = tree.t12;
+		slots[13] = tree.t13;
+		slots[14] = tree.t14;
+		slots[15] = tree.t15;
+	}
+
+	/**
+	 * constructs a new array from another by replacing the elements at the given
+	 * positions. In contrast to replacing the elements one by one, each node on
+	 * the paths to the replaced elements is copied only once. If a position occurs
+	 * more than once, the last of its values is taken.
+	 */
+	protected ImmutableArrayBase(ImmutableArrayBase<E> x, long[] positions, Object[] values) {
+		this(x.size, replaceAll(x, positions, values), x.compact);
+	}
+
+	static private Object[] replaceAll(ImmutableArrayBase<?> x, long[] positions, Object[] values) {
+		if (positions.length != values.length)
+			throw new IllegalArgumentException(
+					"Number of positions and values differ: " + positions.length + " != " + values.length);
+		int[] order = sortedOrder(positions, x.size);
+
+		long capacity = arity;
+		int height = 1;
+		while (capacity < x.size) {
+			capacity = capacity << ds;
+			height = height + 1;
+		}
+		/*
+		 * one buffer per tree level, the root slots are returned:
+		 */
+		Object[][] buffers = new Object[height][arity];
+		Object[] rootSlots = buffers[0];
+		copySlots(x, rootSlots);
+		replaceSlots(rootSlots, capacity, 0, positions, values, order, 0, order.length, buffers, 1, x.compact);
+		return rootSlots;
+	}
+
+	/*
+	 * replaces the elements order[from..to-1] in the slots of a node which
+	 * starts at the given offset.
+	 */
+	static private void replaceSlots(Object[] slots, long capacity, long offset, long[] positions, Object[] values,
+			int[] order, int from, int to, Object[][] buffers, int depth, boolean compact) {
+		long subCapacity = capacity >> ds;
+		int start = from;
+		while (start < to) {
+			int k = (int) ((positions[order[start]] - offset) / subCapacity);
+			long subOffset = offset + k * subCapacity;
+			int end = start + 1;
+			while ((end < to) && (positions[order[end]] < subOffset + subCapacity))
+				end = end + 1;
+			if (subCapacity == 1) {
+				slots[k] = values[order[end - 1]];
+			} else {
+				Object[] subSlots = buffers[depth];
+				copySlots(slots[k], subSlots);
+				replaceSlots(subSlots, subCapacity, subOffset, positions, values, order, start, end, buffers,
+						depth + 1, compact);
+				slots[k] = node(subCapacity, subSlots, compact);
+			}
+			start = end;
+		}
+	}
+
+	/*
+	 * returns the permutation which sorts the positions stably. Positions are
+	 * checked against the size.
+	 */
+	static private int[] sortedOrder(final long[] positions, long size) {
+		boolean sorted = true;
+		for (int i = 0; i < positions.length; i++) {
+			if ((positions[i] < 0) || (positions[i] >= size))
+				throw new IndexOutOfBoundsException("Index: " + positions[i]);
+			if ((i > 0) && (positions[i - 1] > positions[i]))
+				sorted = false;
+		}
+		int[] order = new int[positions.length];
+		if (sorted) {
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			return order;
+		}
+		Integer[] boxedOrder = new Integer[positions.length];
+		for (int i = 0; i < boxedOrder.length; i++)
+			boxedOrder[i] = i;
+		Arrays.sort(boxedOrder, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(positions[a], positions[b]);
+			}
+		});
+		for (int i = 0; i < order.length; i++)
+			order[i] = boxedOrder[i];
+		return order;
+	}
+
+	/**
+	 * Builds the tree of a tuple bottom-up from elements given in index order.
+	 * Each level keeps a buffer for the slots of the node which is currently
+	 * under construction. A node is created when its buffer is full and the next
+	 * slot is needed, so each node of the resulting tree is allocated exactly
+	 * once. Subtrees consisting of null elements only are represented by null,
+	 * as done by {@link #replace(Object, long, long, Object)}. The builder can
+	 * only be finished once.
+	 */
+	static final class TrieBuilder {
+		/*
+		 * 16 levels are enough for every long index:
+		 */
+		private final Object[][] levels = new Object[arity][];
+
+		private final int[] fill = new int[arity];
+
+		private long count = 0;
+
+		private boolean finished = false;
+
+		long count() {
+			return count;
+		}
+
+		void add(Object e) {
+			if (finished)
+				throw new IllegalStateException("builder has already been finished");
+			put(0, e);
+			count = count + 1;
+		}
+
+		private void put(int level, Object e) {
+			Object[] slots = levels[level];
+			if (slots == null) {
+				slots = new Object[arity];
+				levels[level] = slots;
+			}
+			if (fill[level] == arity)
+				flush(level);
+			slots[fill[level]++] = e;
+		}
+
+		/*
+		 * creates the node of the given level from its buffer and passes it to the
+		 * next level.
+		 */
+		private void flush(int level) {
+			Object[] slots = levels[level];
+			long capacity = ((long) arity) << (ds * level);
+			Object node = node(capacity, slots, false);
+			for (int i = 0; i < arity; i++)
+				slots[i] = null;
+			fill[level] = 0;
+			put(level + 1, node);
+		}
+
+		/**
+		 * links the remaining nodes and returns the slots of the root node for a
+		 * tuple of the given size. All positions which have not been added are null.
+		 */
+		Object[] finish(long size) {
+			if (finished)
+				throw new IllegalStateException("builder has already been finished");
+			if (size < count)
+				throw new IllegalArgumentException("size " + size + " is smaller than number of elements " + count);
+			finished = true;
+			int height = 1;
+			long capacity = arity;
+			while (capacity < size) {
+				capacity = capacity << ds;
+				height = height + 1;
+			}
+			for (int level = 0; level < height - 1; level++) {
+				if (fill[level] > 0)
+					flush(level);
+			}
+			Object[] rootSlots = levels[height - 1];
+			return rootSlots != null ? rootSlots : new Object[arity];
+		}
+	}
+
 	public String debug() {
 		StringBuffer str = new StringBuffer();
 		str.append('[');
@@ -611,11 +787,15 @@ class ImmutableArrayBase<E> {
 	}
 
 	@SuppressWarnings("rawtypes")
-	private String subtreeToDbgStr(Object t) {
+	static String subtreeToDbgStr(Object t) {
 		if (t == null) {
 			return null;
 		}
 
+		if (t.getClass() == BitmapNode.class) {
+			return ((BitmapNode) t).debug();
+		}
+
 		if (!(t instanceof ImmutableArrayBase)) {
 			return ("!" + t);
 		} else {
@@ -635,15 +815,24 @@ class ImmutableArrayBase<E> {
 
 	@SuppressWarnings("unchecked")
 	E firstElement() {
-		ImmutableArrayBase<E> tree = this;
+		Object node = this;
 		long capacity = arity;
-		while (capacity < tree.size) {
+		while (capacity < size) {
 			capacity = capacity << ds;
 		}
 
-		while (tree != null) {
+		while (node != null) {
 
 			Object t = null;
+			if (node.getClass() == BitmapNode.class) {
+				t = ((BitmapNode) node).children[0];
+				if (capacity == arity)
+					return (E) t;
+				node = t;
+				capacity = capacity >> ds;
+				continue;
+			}
+			ImmutableArrayBase<E> tree = (ImmutableArrayBase<E>) node;
 			if (tree.t0 != null)
 				t = tree.t0;
 			else if (tree.t1 != null)
@@ -680,7 +869,7 @@ class ImmutableArrayBase<E> {
 			if ((capacity == arity) || (t == null)) {
 				return (E) t;
 			} else {
-				tree = (ImmutableArrayBase<E>) t;
+				node = t;
 				capacity = capacity >> ds;
 			} // `else`
 		} // `while`
@@ -692,220 +881,271 @@ class ImmutableArrayBase<E> {
 	}
 
 	/**
-	 * 
-	 * TODO: Make this faster for sparse arrays
-	 * 
+	 * returns the leaf node containing the <i>i</i>th element, or null if the
+	 * leaf is empty. The leaf holds the elements of the positions with the same
+	 * quotient i / 16.
+	 */
+	final Object leafAt(long i) {
+		long capacity = arity;
+		while (capacity < size) {
+			capacity = capacity << ds;
+		}
+		Object node = this;
+		while (capacity > arity) {
+			capacity = capacity >> ds;
+			long k = i / capacity;
+			node = child(node, (int) k);
+			if (node == null)
+				return null;
+			i = i - k * capacity;
+		}
+		return node;
+	}
+
+	/**
+	 * returns the first position not before the given one which holds a non-null
+	 * element, or -1 if there is none. Subtrees which are null are skipped as a
+	 * whole.
+	 */
+	final long nextPosition(long from) {
+		if (from >= size)
+			return -1;
+		long capacity = arity;
+		while (capacity < size) {
+			capacity = capacity << ds;
+		}
+		return nextPosition(this, capacity, from);
+	}
+
+	private static long nextPosition(Object node, long capacity, long from) {
+		long subCapacity = capacity >> ds;
+		int k = (int) (from / subCapacity);
+		if (subCapacity == 1) {
+			k = nextOccupiedSlot(node, k);
+			return (k == arity) ? -1 : k;
+		}
+		Object t = child(node, k);
+		if (t != null) {
+			long p = nextPosition(t, subCapacity, from - k * subCapacity);
+			if (p >= 0)
+				return k * subCapacity + p;
+		}
+		k = nextOccupiedSlot(node, k + 1);
+		if (k == arity)
+			return -1;
+		// a subtree which is not null has at least one element:
+		return k * subCapacity + nextPosition(child(node, k), subCapacity, 0);
+	}
+
+	/**
+	 * returns a position between start and end which is the boundary of a subtree,
+	 * or -1 if the range is too small for splitting. The position is aligned to
+	 * the largest subtree that fits into the range, so that both parts share as
+	 * few nodes as possible. It is the last aligned position up to the middle
+	 * (or the first one after start), so the split is not balanced: [0, 70000) is
+	 * split at 65536.
+	 */
+	static long splitPosition(long start, long end) {
+		long n = end - start;
+		if (n <= arity)
+			return -1;
+		long granule = arity;
+		while ((granule << ds) < n) {
+			granule = granule << ds;
+		}
+		long mid = ((start + n / 2) / granule) * granule;
+		if (mid <= start)
+			mid = mid + granule;
+		return (mid < end) ? mid : -1;
+	}
+
+	/**
+	 * Splittable traversal over the positions start..end-1 of an array, including
+	 * null elements. The range is split at subtree boundaries, the size of each
+	 * part is known exactly. The current leaf node is cached, so advancing needs a
+	 * descent through the tree only once per 16 elements.
+	 */
+	static final class ArraySpliterator<E> implements Spliterator<E> {
+		private final ImmutableArrayBase<E> array;
+
+		private long start;
+
+		private final long end;
+
+		private Object leaf;
+
+		private long leafStart = -1;
+
+		ArraySpliterator(ImmutableArrayBase<E> array, long start, long end) {
+			this.array = array;
+			this.start = start;
+			this.end = end;
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean tryAdvance(Consumer<? super E> action) {
+			if (start >= end)
+				return false;
+			long block = start & ~(long) (arity - 1);
+			if (block != leafStart) {
+				leaf = array.leafAt(start);
+				leafStart = block;
+			}
+			E e = (leaf == null) ? null : (E) child(leaf, (int) (start - block));
+			start = start + 1;
+			action.accept(e);
+			return true;
+		}
+
+		public Spliterator<E> trySplit() {
+			long mid = splitPosition(start, end);
+			if (mid < 0)
+				return null;
+			Spliterator<E> prefix = new ArraySpliterator<E>(array, start, mid);
+			start = mid;
+			return prefix;
+		}
+
+		public long estimateSize() {
+			return end - start;
+		}
+
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+		}
+	}
+
+	/**
+	 * Iterates over the non-null elements in index order. The iterator keeps one
+	 * cursor (node and slot number) per tree level in arrays of fixed length.
+	 * Empty subtrees are null and therefore skipped, compact nodes are traversed
+	 * via their bitmap. No objects are allocated while advancing. The iteration
+	 * can be restricted to a range of positions.
 	 */
 	public static class NotNullIterator<E> implements ForwardIterator<E> {
 
-		private final ExtendibleArray<Object> stack = new ExtendibleArray<Object>();
-		private long nodeDepth;
+		private final Object[] nodes;
+
+		private final int[] slots;
+
+		private final long[] offsets;
+
+		private final long[] capacities;
+
+		private final int leafDepth;
+
+		private final long end;
+
+		private int depth;
+
+		private Object nextElement;
 
 		public NotNullIterator(ImmutableArrayBase<E> array) {
+			this(array, 0, array.size);
+		}
+
+		/**
+		 * iterates over the non-null elements at positions start..end-1.
+		 */
+		public NotNullIterator(ImmutableArrayBase<E> array, long start, long end) {
 			long capacity = arity;
-			nodeDepth = 0;
+			int height = 1;
 			while (capacity < array.size) {
 				capacity = capacity << ds;
-				nodeDepth = nodeDepth + 1;
+				height = height + 1;
+			}
+			nodes = new Object[height];
+			slots = new int[height];
+			offsets = new long[height];
+			capacities = new long[height];
+			for (int d = 0; d < height; d++) {
+				capacities[d] = capacity;
+				capacity = capacity >> ds;
+			}
+			leafDepth = height - 1;
+			this.end = end;
+			if (start >= end) {
+				depth = -1;
+				return;
+			}
+			nodes[0] = array;
+			depth = 0;
+			/*
+			 * descend along the path to the start position:
+			 */
+			while (true) {
+				long subCapacity = capacities[depth] >> ds;
+				int k = (int) ((start - offsets[depth]) / subCapacity);
+				if (depth == leafDepth) {
+					slots[depth] = k;
+					break;
+				}
+				slots[depth] = k + 1;
+				Object t = child(nodes[depth], k);
+				if (t == null)
+					break;
+				depth = depth + 1;
+				nodes[depth] = t;
+				offsets[depth] = offsets[depth - 1] + k * subCapacity;
 			}
-			advanceToFirstNotNullElement(array);
+			advance();
 		}
 
 		public boolean hasNext() {
-			return !stack.isEmpty();
+			return nextElement != null;
 		}
 
 		@SuppressWarnings("unchecked")
 		public E next() {
-			if (stack.isEmpty())
+			if (nextElement == null)
 				throw new NoSuchElementException("no next element");
 
-			E result = (E) stack.removeFirst();
-			if (stack.size() == nodeDepth)
-				advanceToNextNotNullElement();
-
+			E result = (E) nextElement;
+			advance();
 			return result;
 		}
 
-		@SuppressWarnings({ "unchecked", "rawtypes" })
-		private void advanceToFirstNotNullElement(ImmutableArrayBase<E> tree) {
-			for (int i = (int) stack.size(); i < nodeDepth; i++) {
-				Object t = null;
-				if (tree.t0 != null) {
-					t = tree.t0;
-					stack.addFirst(new ImmutableArrayBase(0, null, tree.t1, tree.t2, tree.t3, tree.t4, tree.t5, tree.t6,
-							tree.t7, tree.t8, tree.t9, tree.t10, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t1 != null) {
-					t = tree.t1;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, tree.t2, tree.t3, tree.t4, tree.t5, tree.t6,
-							tree.t7, tree.t8, tree.t9, tree.t10, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t2 != null) {
-					t = tree.t2;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, tree.t3, tree.t4, tree.t5, tree.t6,
-							tree.t7, tree.t8, tree.t9, tree.t10, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t3 != null) {
-					t = tree.t3;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, tree.t4, tree.t5, tree.t6, tree.t7,
-							tree.t8, tree.t9, tree.t10, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t4 != null) {
-					t = tree.t4;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, tree.t5, tree.t6, tree.t7,
-							tree.t8, tree.t9, tree.t10, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t5 != null) {
-					t = tree.t5;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, tree.t6, tree.t7,
-							tree.t8, tree.t9, tree.t10, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t6 != null) {
-					t = tree.t6;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, null, tree.t7, tree.t8,
-							tree.t9, tree.t10, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t7 != null) {
-					t = tree.t7;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, null, null, tree.t8,
-							tree.t9, tree.t10, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t8 != null) {
-					t = tree.t8;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, null, null, null,
-							tree.t9, tree.t10, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t9 != null) {
-					t = tree.t9;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, null, null, null, null,
-							tree.t10, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t10 != null) {
-					t = tree.t10;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, null, null, null, null,
-							null, tree.t11, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t11 != null) {
-					t = tree.t11;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, null, null, null, null,
-							null, null, tree.t12, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t12 != null) {
-					t = tree.t12;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, null, null, null, null,
-							null, null, null, tree.t13, tree.t14, tree.t15));
-				} else if (tree.t13 != null) {
-					t = tree.t13;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, null, null, null, null,
-							null, null, null, null, tree.t14, tree.t15));
-				} else if (tree.t14 != null) {
-					t = tree.t14;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, null, null, null, null,
-							null, null, null, null, null, tree.t15));
-				} else if (tree.t15 != null) {
-					t = tree.t15;
-					stack.addFirst(new ImmutableArrayBase(0, null, null, null, null, null, null, null, null, null, null,
-							null, null, null, null, null, null));
+		private void advance() {
+			while (depth >= 0) {
+				Object node = nodes[depth];
+				int k = nextOccupiedSlot(node, slots[depth]);
+				if (k == arity) {
+					nodes[depth] = null;
+					depth = depth - 1;
+					continue;
 				}
-
-				if (t == null) {
-					/*
-					 * The tree is empty:
-					 */
-					stack.clear();
+				slots[depth] = k + 1;
+				long position = offsets[depth] + k * (capacities[depth] >> ds);
+				if (position >= end)
+					break;
+				Object t = child(node, k);
+				if (depth == leafDepth) {
+					nextElement = t;
 					return;
 				}
-				tree = (ImmutableArrayBase<E>) t;
-			} // `while`
-			pushNotNullElements(tree);
-
-		}
-
-		private void pushNotNullElements(ImmutableArrayBase<E> tree) {
-			if (tree.t15 != null)
-				stack.addFirst(tree.t15);
-			if (tree.t14 != null)
-				stack.addFirst(tree.t14);
-			if (tree.t13 != null)
-				stack.addFirst(tree.t13);
-			if (tree.t12 != null)
-				stack.addFirst(tree.t12);
-			if (tree.t11 != null)
-				stack.addFirst(tree.t11);
-			if (tree.t10 != null)
-				stack.addFirst(tree.t10);
-			if (tree.t9 != null)
-				stack.addFirst(tree.t9);
-			if (tree.t8 != null)
-				stack.addFirst(tree.t8);
-			if (tree.t7 != null)
-				stack.addFirst(tree.t7);
-			if (tree.t6 != null)
-				stack.addFirst(tree.t6);
-			if (tree.t5 != null)
-				stack.addFirst(tree.t5);
-			if (tree.t4 != null)
-				stack.addFirst(tree.t4);
-			if (tree.t3 != null)
-				stack.addFirst(tree.t3);
-			if (tree.t2 != null)
-				stack.addFirst(tree.t2);
-			if (tree.t1 != null)
-				stack.addFirst(tree.t1);
-			if (tree.t0 != null)
-				stack.addFirst(tree.t0);
-		}
-
-		@SuppressWarnings({ "unchecked", "rawtypes" })
-		private void advanceToNextNotNullElement() {
-			while (stack.size() <= nodeDepth) {
-				if (stack.isEmpty())
-					return;
-
-				ImmutableArrayBase node = (ImmutableArrayBase<E>) stack.removeFirst();
-				if (node.t1 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, node.t1, node.t2, node.t3, node.t4,
-							node.t5, node.t6, node.t7, node.t8, node.t9, node.t10, node.t11, node.t12, node.t13,
-							node.t14, node.t15));
-				else if (node.t2 != null)
-					advanceToFirstNotNullElement(
-							new ImmutableArrayBase(0, null, null, node.t2, node.t3, node.t4, node.t5, node.t6, node.t7,
-									node.t8, node.t9, node.t10, node.t11, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t3 != null)
-					advanceToFirstNotNullElement(
-							new ImmutableArrayBase(0, null, null, null, node.t3, node.t4, node.t5, node.t6, node.t7,
-									node.t8, node.t9, node.t10, node.t11, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t4 != null)
-					advanceToFirstNotNullElement(
-							new ImmutableArrayBase(0, null, null, null, null, node.t4, node.t5, node.t6, node.t7,
-									node.t8, node.t9, node.t10, node.t11, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t5 != null)
-					advanceToFirstNotNullElement(
-							new ImmutableArrayBase(0, null, null, null, null, null, node.t5, node.t6, node.t7, node.t8,
-									node.t9, node.t10, node.t11, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t6 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, null, null, null, null, null, node.t6,
-							node.t7, node.t8, node.t9, node.t10, node.t11, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t7 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, null, null, null, null, null, null,
-							node.t7, node.t8, node.t9, node.t10, node.t11, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t8 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, null, null, null, null, null, null,
-							null, node.t8, node.t9, node.t10, node.t11, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t9 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, null, null, null, null, null, null,
-							null, null, node.t9, node.t10, node.t11, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t10 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, null, null, null, null, null, null,
-							null, null, null, node.t10, node.t11, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t11 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, null, null, null, null, null, null,
-							null, null, null, null, node.t11, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t12 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, null, null, null, null, null, null,
-							null, null, null, null, null, node.t12, node.t13, node.t14, node.t15));
-				else if (node.t13 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, null, null, null, null, null, null,
-							null, null, null, null, null, null, node.t13, node.t14, node.t15));
-				else if (node.t14 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, null, null, null, null, null, null,
-							null, null, null, null, null, null, null, node.t14, node.t15));
-				else if (node.t15 != null)
-					advanceToFirstNotNullElement(new ImmutableArrayBase(0, null, null, null, null, null, null, null,
-							null, null, null, null, null, null, null, null, node.t15));
+				depth = depth + 1;
+				nodes[depth] = t;
+				slots[depth] = 0;
+				offsets[depth] = position;
 			}
+			depth = -1;
+			nextElement = null;
 		}
 	}
 
+	/**
+	 * returns the number of the first non-null slot of a node not before the
+	 * given one, or 16 if there is none.
+	 */
+	static int nextOccupiedSlot(Object node, int k) {
+		if (node.getClass() == BitmapNode.class)
+			return ((BitmapNode) node).nextSlot(k);
+		ImmutableArrayBase<?> tree = (ImmutableArrayBase<?>) node;
+		while ((k < arity) && (tree.slot(k) == null))
+			k = k + 1;
+		return k;
+	}
+
 	/**
 	 * This method takes another array and returns an iterator over all places which
 	 * have non-identical objects. It is assumed that both arrays have the same
@@ -914,9 +1154,141 @@ class ImmutableArrayBase<E> {
 	 * The method is useful as an implementation base for history-aware data
 	 * structures.
 	 */
-	protected ForwardIterator<Long> nonIdenticalPlaces(ImmutableArrayBase<?> other) {
+	protected NonIdenticalPlaces nonIdenticalPlaces(ImmutableArrayBase<?> other) {
 		Assertions.assertEquals("Both arrays must have the same size", this.size, other.size);
-		return null; // TODO
+		return new NonIdenticalPlaces(this, other);
+	}
+
+	/**
+	 * returns the slot with the given number.
+	 */
+	private Object slot(int k) {
+		switch (k) {
+		case 0:
+			return t0;
+		case 1:
+			return t1;
+		case 2:
+			return t2;
+		case 3:
+			return t3;
+		case 4:
+			return t4;
+		case 5:
+			return t5;
+		case 6:
+			return t6;
+		case 7:
+			return t7;
+		case 8:
+			return t8;
+		case 9:
+			return t9;
+		case 10:
+			return t10;
+		case 11:
+			return t11;
+		case 12:
+			return t12;
+		case 13:
+			return t13;
+		case 14:
+			return t14;
+		default:
+			return t15;
+		}// `switch`
+	}
+
+	/**
+	 * Lazily traverses two trees of the same size in parallel and yields the
+	 * positions of non-identical elements in ascending order. Identical subtrees
+	 * are skipped, hence the cost is proportional to the number of nodes on
+	 * non-identical paths. The traversal state is kept in arrays of fixed length
+	 * (one entry per tree level), no objects are allocated while advancing.
+	 */
+	static final class NonIdenticalPlaces implements ForwardIterator<Long> {
+		private final Object[] nodesA, nodesB;
+
+		private final int[] slots;
+
+		private final long[] offsets;
+
+		private final long[] capacities;
+
+		private int depth;
+
+		private long nextPosition = -1;
+
+		NonIdenticalPlaces(ImmutableArrayBase<?> a, ImmutableArrayBase<?> b) {
+			int height = 1;
+			long capacity = arity;
+			while (capacity < a.size) {
+				capacity = capacity << ds;
+				height = height + 1;
+			}
+			nodesA = new Object[height];
+			nodesB = new Object[height];
+			slots = new int[height];
+			offsets = new long[height];
+			capacities = new long[height];
+			for (int d = 0; d < height; d++) {
+				capacities[d] = capacity;
+				capacity = capacity >> ds;
+			}
+			depth = 0;
+			if (a != b) {
+				nodesA[0] = a;
+				nodesB[0] = b;
+			} else
+				depth = -1;
+			advance();
+		}
+
+		private void advance() {
+			while (depth >= 0) {
+				int k = slots[depth];
+				if (k == arity) {
+					depth = depth - 1;
+					continue;
+				}
+				slots[depth] = k + 1;
+				Object a = (nodesA[depth] == null) ? null : child(nodesA[depth], k);
+				Object b = (nodesB[depth] == null) ? null : child(nodesB[depth], k);
+				if (a == b)
+					continue;
+				long subCapacity = capacities[depth] >> ds;
+				long position = offsets[depth] + k * subCapacity;
+				if (subCapacity == 1) {
+					nextPosition = position;
+					return;
+				}
+				depth = depth + 1;
+				nodesA[depth] = a;
+				nodesB[depth] = b;
+				slots[depth] = 0;
+				offsets[depth] = position;
+			}
+			nextPosition = -1;
+		}
+
+		public boolean hasNext() {
+			return nextPosition >= 0;
+		}
+
+		/**
+		 * returns the next position without boxing.
+		 */
+		public long nextPosition() {
+			if (nextPosition < 0)
+				throw new NoSuchElementException("no next element");
+			long result = nextPosition;
+			advance();
+			return result;
+		}
+
+		public Long next() {
+			return nextPosition();
+		}
 	}
 
 }// `class`
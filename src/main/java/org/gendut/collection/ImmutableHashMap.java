@@ -1,5 +1,12 @@
 package org.gendut.collection;
 
+import java.util.function.Function;
+
+import org.gendut.func.Pair;
+import org.gendut.iterator.ForwardIterator;
+import org.gendut.seq.Seq;
+import org.gendut.seq.SeqFromIterator;
+import org.gendut.seq.TransformedSeq;
 
 public class ImmutableHashMap<Key, Value> extends
     AbstractMapFromSet<Key, Value, ImmutableHashMap<Key, Value>> implements
@@ -21,6 +28,14 @@ public class ImmutableHashMap<Key, Value> extends
     return emptyMap;
   }
 
+  /**
+   * creates an empty map for the given number of keys. Up to expectedSize
+   * entries are added without moving entries between the tables of the map.
+   */
+  public static <Key, Value> ImmutableHashMap<Key, Value> create(long expectedSize) {
+    return new ImmutableHashMap<Key, Value>(ImmutableHashSet.create(expectedSize));
+  }
+
   public ImmutableHashMap<Key, Value> put(Key key, Value val) {
     return new ImmutableHashMap<Key, Value>(asSet
         .add(new MapEntry<Key, Value>(key, val)));
@@ -34,4 +49,50 @@ public class ImmutableHashMap<Key, Value> extends
   public ImmutableHashMap<Key, Value> clear() {
     return emptyMap;
   }
+
+  /**
+   * returns the difference between this map and a newer version of it: the
+   * entries whose key has been added or removed, and the entries of the newer
+   * version whose value has changed. The streams are lazy. If both maps are
+   * versions of each other, only the slots in which their tables differ are
+   * visited.
+   */
+  @SuppressWarnings("unchecked")
+  public Difference<Pair<Key, Value>> diff(ImmutableHashMap<Key, Value> newer) {
+    final ImmutableHashSet<Object> A = (ImmutableHashSet<Object>) asSet;
+    final ImmutableHashSet<Object> B = (ImmutableHashSet<Object>) newer.asSet;
+    Stream<Pair<Key, Value>> added = entries(B.candidateEntries(A),
+        entry -> !A.containsEntry(entry));
+    Stream<Pair<Key, Value>> removed = entries(A.candidateEntries(B),
+        entry -> !B.containsEntry(entry));
+    Stream<Pair<Key, Value>> changed = entries(B.candidateEntries(A), entry -> {
+      MapEntry<Key, Value> old = (MapEntry<Key, Value>) A.findEntry(entry);
+      MapEntry<Key, Value> current = (MapEntry<Key, Value>) CollisionNode.element(entry);
+      return (old != null) && !sameValue(old.value, current.value);
+    });
+    return new Difference<Pair<Key, Value>>(added, removed, changed);
+  }
+
+  private static boolean sameValue(Object a, Object b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <Key, Value> Stream<Pair<Key, Value>> entries(ForwardIterator<Object> it,
+      Function<Object, Boolean> filter) {
+    Seq<Object> entries = SeqFromIterator.create(it);
+    return Collections.stream(TransformedSeq.create(entries, filter, e -> {
+      MapEntry<Key, Value> entry = (MapEntry<Key, Value>) CollisionNode.element(e);
+      return new Pair<Key, Value>(entry.key, entry.value);
+    }));
+  }
+
+  /**
+   * returns a parallel stream over the key-value pairs.
+   */
+  @SuppressWarnings("unchecked")
+  public java.util.stream.Stream<Pair<Key, Value>> parallelStream() {
+    return ((ImmutableHashSet<Object>) asSet).parallelStream().map(
+        e -> new Pair<Key, Value>(((MapEntry<Key, Value>) e).key, ((MapEntry<Key, Value>) e).value));
+  }
 }
\ No newline at end of file
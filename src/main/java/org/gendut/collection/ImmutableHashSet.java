@@ -6,44 +6,116 @@ import org.gendut.iterator.ConcatIterator;
 import org.gendut.iterator.ForwardIterator;
 import org.gendut.seq.Seq;
 import org.gendut.seq.SeqFromIterator;
+import org.gendut.seq.TransformedSeq;
 
 final public class ImmutableHashSet<E> extends AbstractCollection<E> implements
 		UpdatableSet<E, ImmutableHashSet<E>> {
 
-	private static final int balance = 24;
+	static final int balance = 24;
 
-	private static final double loadfactor = 0.3;
+	static final double loadfactor = 0.3;
 
-	private static final int minCapacity = 15;
+	static final int minCapacity = 15;
 
 	private final static FixedSizeHashSet<Object> emptyTable = new FixedSizeHashSet<Object>(
 			minCapacity);
 
+	private final static FixedSizeHashSet<Object> emptyHashedTable = new FixedSizeHashSet<Object>(
+			minCapacity, false, true);
+
 	@SuppressWarnings("unchecked")
+	private static <F> FixedSizeHashSet<F> emptyTable(boolean cacheHashes) {
+		return (FixedSizeHashSet<F>) (cacheHashes ? emptyHashedTable : emptyTable);
+	}
+
 	private <F> FixedSizeHashSet<F> emptyTable() {
-		return (FixedSizeHashSet<F>) emptyTable;
+		return emptyTable(smallSet.cachesHashes());
+	}
+
+	private FixedSizeHashSet<E> newTable(long capacity) {
+		return new FixedSizeHashSet<E>(capacity, false, smallSet.cachesHashes());
 	}
 
 	private final FixedSizeHashSet<E> smallSet;
 
 	private final FixedSizeHashSet<E> largeSet;
 
+	private final HashGrowthPolicy policy;
+
+	/*
+	 * While elements are moved from the small table to the large one, all slots
+	 * of the small table before this one are empty, so the next move starts
+	 * here instead of at slot 0.
+	 */
+	private final long migrationSlot;
+
 	@SuppressWarnings("rawtypes")
-	private final static ImmutableHashSet emptySet = new ImmutableHashSet();
+	private final static ImmutableHashSet emptySet = new ImmutableHashSet(false);
+
+	@SuppressWarnings("rawtypes")
+	private final static ImmutableHashSet emptyHashedSet = new ImmutableHashSet(true);
 
 	@SuppressWarnings("unchecked")
 	public static <E> ImmutableHashSet<E> create() {
 		return emptySet;
 	}
 
-	private ImmutableHashSet() {
-		smallSet = emptyTable();
-		largeSet = emptyTable();
+	/**
+	 * creates an empty set. If hash codes are cached, each element is stored
+	 * together with its hash code, so moving elements from one table to the
+	 * other calls neither hashCode() nor equals().
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E> ImmutableHashSet<E> create(boolean cacheHashes) {
+		return cacheHashes ? emptyHashedSet : emptySet;
+	}
+
+	/**
+	 * creates an empty set for the given number of elements. The small table is
+	 * allocated with enough capacity, so up to expectedSize elements are added
+	 * without moving elements between tables.
+	 */
+	public static <E> ImmutableHashSet<E> create(long expectedSize) {
+		return create(expectedSize, HashGrowthPolicy.standard, false);
 	}
 
-	private ImmutableHashSet(FixedSizeHashSet<E> A, FixedSizeHashSet<E> B) {
+	/**
+	 * creates an empty set for the given number of elements which grows and
+	 * shrinks according to the policy.
+	 */
+	public static <E> ImmutableHashSet<E> create(long expectedSize, HashGrowthPolicy policy, boolean cacheHashes) {
+		if (expectedSize < 0)
+			throw new IllegalArgumentException("expected size must not be negative");
+		FixedSizeHashSet<E> A = emptyTable(cacheHashes);
+		if (expectedSize >= policy.loadfactor * minCapacity)
+			A = new FixedSizeHashSet<E>(policy.capacityFor(expectedSize), false, cacheHashes);
+		return new ImmutableHashSet<E>(A, ImmutableHashSet.<E> emptyTable(cacheHashes), policy, 0);
+	}
+
+	private ImmutableHashSet(boolean cacheHashes) {
+		smallSet = emptyTable(cacheHashes);
+		largeSet = emptyTable(cacheHashes);
+		policy = HashGrowthPolicy.standard;
+		migrationSlot = 0;
+	}
+
+	private ImmutableHashSet(FixedSizeHashSet<E> A, FixedSizeHashSet<E> B, HashGrowthPolicy policy,
+			long migrationSlot) {
 		this.smallSet = A;
 		this.largeSet = B;
+		this.policy = policy;
+		this.migrationSlot = migrationSlot;
+	}
+
+	private ImmutableHashSet<E> create(FixedSizeHashSet<E> A, FixedSizeHashSet<E> B, long migrationSlot) {
+		return new ImmutableHashSet<E>(A, B, policy, migrationSlot);
+	}
+
+	/**
+	 * returns the policy by which this set grows and shrinks.
+	 */
+	public HashGrowthPolicy growthPolicy() {
+		return policy;
 	}
 	
 	public static<E> ImmutableHashSet<E> fromSequence(Seq<E> seq) {
@@ -55,55 +127,71 @@ final public class ImmutableHashSet<E> extends AbstractCollection<E> implements
 		return result;
 	}
 
+	/*
+	 * The hash code of the element is computed once and used for both tables.
+	 */
 	public ImmutableHashSet<E> add(E e) {
+		int hash = FixedSizeHashSet.hash(e);
 		FixedSizeHashSet<E> A = smallSet;
 		FixedSizeHashSet<E> B = largeSet;
-		if (size() < loadfactor * minCapacity)
-			return new ImmutableHashSet<E>(A.add(e), B.remove(e));
+		double loadfactor = policy.loadfactor;
+		/*
+		 * As long as the large table is empty, elements are added to the small
+		 * table until it is full. This holds for a set created with an expected
+		 * size, too.
+		 */
+		if ((size() < loadfactor * minCapacity) || ((B.size() == 0) && (A.size() < loadfactor * A.capacity())))
+			return create(A.add(e, hash), B.remove(e, hash), 0);
 
 		long oldSizeB = B.size();
 		if (B == emptyTable())
-			B = new FixedSizeHashSet<E>(balance * A.capacity());
+			B = newTable(policy.balance * A.capacity());
 
-		B = B.add(e);
+		B = B.add(e, hash);
 		if (oldSizeB == B.size())
 			/*
 			 * no change in size means item is overwritten in B and did not
 			 * exist in A:
 			 */
-			return new ImmutableHashSet<E>(A, B);
+			return create(A, B, migrationSlot);
 
-		A = A.remove(e);
+		A = A.remove(e, hash);
+		long slot = migrationSlot;
 		if (2 * A.size() > loadfactor * B.capacity() - B.size()) {
 			/*
 			 * We don't use iterators here: They are expensive if they are gc-ed
-			 * lately.
+			 * lately. Entries are moved as they are, so cached hash codes are
+			 * reused.
 			 */
-			for (int i = 0; i < 2; i++) {
-				E f = A.firstElement();
-				if (f == null)
+			for (int i = 0; i < policy.migrationBudget; i++) {
+				slot = A.nextPosition(slot);
+				if (slot < 0)
 					break;
-				A = A.remove(f);
-				B = B.add(f);
+				Object f = A.entryAt(slot);
+				A = A.removeEntry(f);
+				B = B.addEntry(f);
 			}// ` for`
 		}// ` if`
 		if (A.size() == 0) {
 			A = B;
-			B = new FixedSizeHashSet<E>(balance * A.size());
+			B = newTable(policy.balance * A.size());
+			slot = 0;
 		}
-		return new ImmutableHashSet<E>(A, B);
+		return create(A, B, Math.max(slot, 0));
 	}
 
 	public ImmutableHashSet<E> remove(E e) {
+		int hash = FixedSizeHashSet.hash(e);
 		FixedSizeHashSet<E> A = smallSet;
 		FixedSizeHashSet<E> B = largeSet;
-		A = A.remove(e);
-		B = B.remove(e);
+		A = A.remove(e, hash);
+		B = B.remove(e, hash);
+		double loadfactor = policy.loadfactor;
 		if (B.size() < loadfactor * A.capacity() - A.size()) {
-			E f = B.firstElement();
+			Object f = B.firstEntry();
 			if (f != null) {
-				B = B.remove(f);
-				A = A.add(f);
+				B = B.removeEntry(f);
+				A = A.addEntry(f);
 			}
 		}
 
@@ -112,20 +200,21 @@ final public class ImmutableHashSet<E> extends AbstractCollection<E> implements
 				B = emptyTable();
 			else {
 				B = A;
-				long newACapacity = B.size() / balance;
+				long newACapacity = B.size() / policy.balance;
 				if (newACapacity < minCapacity)
 					newACapacity = minCapacity;
-				A = new FixedSizeHashSet<E>(newACapacity);
+				A = newTable(newACapacity);
 			}
 		}
-		return new ImmutableHashSet<E>(A, B);
+		/*
+		 * elements may have been moved back into the small table, so the scan for
+		 * the next migration starts at slot 0 again:
+		 */
+		return create(A, B, 0);
 	}
 
 	public boolean contains(E e) {
-		if (smallSet.size() > largeSet.size())
-			return smallSet.contains(e) || largeSet.contains(e);
-		else
-			return largeSet.contains(e) || smallSet.contains(e);
+		return find(e) != null;
 	}
 
 	public ForwardIterator<E> iterator() {
@@ -138,11 +227,20 @@ final public class ImmutableHashSet<E> extends AbstractCollection<E> implements
 		return SeqFromIterator.create(iterator());
 	}
 
+	/**
+	 * returns a parallel stream over both tables. Each table is split at the
+	 * boundaries of its subtrees.
+	 */
+	public java.util.stream.Stream<E> parallelStream() {
+		return java.util.stream.Stream.concat(smallSet.parallelStream(), largeSet.parallelStream());
+	}
+
 	public long size() {
 		return smallSet.size() + largeSet.size();
 	}
 
 	public E find(E item) {
+		int hash = FixedSizeHashSet.hash(item);
 		FixedSizeHashSet<E> A = smallSet;
 		FixedSizeHashSet<E> B = largeSet;
 		if (smallSet.size() < largeSet.size()) {
@@ -150,11 +248,11 @@ final public class ImmutableHashSet<E> extends AbstractCollection<E> implements
 			A = B;
 			B = tmp;
 		}
-		E same = A.find(item);
+		E same = A.find(item, hash);
 		if (same != null)
 			return same;
 		else
-			return B.find(item);
+			return B.find(item, hash);
 	}
 
 	@Override
@@ -180,14 +278,164 @@ final public class ImmutableHashSet<E> extends AbstractCollection<E> implements
 		return BigInteger.valueOf(size());
 	}
 
-	@SuppressWarnings("unchecked")
 	public ImmutableHashSet<E> clear() {
-		return emptySet;
+		if (policy == HashGrowthPolicy.standard)
+			return create(smallSet.cachesHashes());
+		return create(0, policy, smallSet.cachesHashes());
+	}
+
+	/**
+	 * returns the difference between this set and a newer version of it. The
+	 * streams are lazy. If both sets have the same shape, e.g. because one is
+	 * derived from the other, only the slots in which their tables differ are
+	 * visited, so the cost depends on the number of updates between the versions
+	 * rather than on the size of the sets.
+	 */
+	public Difference<E> diff(ImmutableHashSet<E> newer) {
+		return new Difference<E>(newer.elementsNotIn(this), elementsNotIn(newer), Difference.<E> empty());
+	}
+
+	/*
+	 * returns a lazy stream of the elements of this set which are not in the
+	 * other set.
+	 */
+	@SuppressWarnings("unchecked")
+	private Stream<E> elementsNotIn(final ImmutableHashSet<?> other) {
+		Seq<Object> entries = SeqFromIterator.create(candidateEntries(other));
+		return Collections.stream(TransformedSeq.create(entries, entry -> !other.containsEntry(entry),
+				entry -> (E) CollisionNode.element(entry)));
+	}
+
+	/*
+	 * Two versions of a set have the same shape if their tables have the same
+	 * capacities. Each element which is in one version only lies in a slot
+	 * which differs between the corresponding tables.
+	 */
+	boolean hasSameShape(Object other) {
+		if (!(other instanceof ImmutableHashSet))
+			return false;
+		ImmutableHashSet<?> B = (ImmutableHashSet<?>) other;
+		return (smallSet.capacity() == B.smallSet.capacity()) && (largeSet.capacity() == B.largeSet.capacity());
+	}
+
+	/**
+	 * iterates lazily over the entries of this set in slots which differ from the
+	 * slots of the other set. Both sets must have the same shape.
+	 */
+	ForwardIterator<Object> differentEntries(ImmutableHashSet<?> other) {
+		ConstantArray<ForwardIterator<Object>> it = ConstantArray.pair(
+				new FixedSizeHashSet.DifferentEntries(smallSet, other.smallSet),
+				new FixedSizeHashSet.DifferentEntries(largeSet, other.largeSet));
+		return new ConcatIterator<Object>(it);
+	}
+
+	/**
+	 * iterates over all entries of this set which may be missing in the other
+	 * set: If both sets have the same shape, these are the entries in slots which
+	 * differ, otherwise all entries.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	ForwardIterator<Object> candidateEntries(ImmutableHashSet<?> other) {
+		if (hasSameShape(other))
+			return differentEntries(other);
+		return (ForwardIterator) iterator();
 	}
 
+	boolean containsEntry(Object entry) {
+		return findEntry(entry) != null;
+	}
+
+	/**
+	 * returns the element of this set which equals the element of the entry, or
+	 * null.
+	 */
+	E findEntry(Object entry) {
+		Object item = CollisionNode.element(entry);
+		int hash = CollisionNode.hash(entry);
+		E same = smallSet.find(item, hash);
+		return (same != null) ? same : largeSet.find(item, hash);
+	}
+
+	/**
+	 * returns the union of both sets. If both sets have the same shape, e.g.
+	 * because one is derived from the other, only the slots in which their
+	 * tables differ are visited.
+	 */
+	@SuppressWarnings("unchecked")
+	public ImmutableHashSet<E> union(ImmutableHashSet<E> other) {
+		if (!hasSameShape(other))
+			return Collections.merge(this, other);
+		ForwardIterator<Object> entries = other.differentEntries(this);
+		ImmutableHashSet<E> result = this;
+		while (entries.hasNext()) {
+			Object entry = entries.next();
+			if (!containsEntry(entry))
+				result = result.add((E) CollisionNode.element(entry));
+		}
+		return result;
+	}
+
+	/**
+	 * returns the intersection of both sets. If both sets have the same shape,
+	 * only the slots in which their tables differ are visited.
+	 */
+	@SuppressWarnings("unchecked")
+	public ImmutableHashSet<E> intersection(ImmutableHashSet<E> other) {
+		if (!hasSameShape(other))
+			return Collections.intersection(this, other);
+		ForwardIterator<Object> entries = differentEntries(other);
+		ImmutableHashSet<E> result = this;
+		while (entries.hasNext()) {
+			Object entry = entries.next();
+			if (!other.containsEntry(entry))
+				result = result.remove((E) CollisionNode.element(entry));
+		}
+		return result;
+	}
+
+	/**
+	 * returns the elements of this set which are not in the other set. If the
+	 * other set is a hash set of the same shape, the result is built from the
+	 * slots in which the tables differ.
+	 */
 	@Override
+	@SuppressWarnings("unchecked")
 	public ImmutableHashSet<E> minus(Set<? extends E> other) {
-		// TODO optimize this method
-		return Collections.minus(this, other);
+		if (!hasSameShape(other))
+			return Collections.minus(this, other);
+		ImmutableHashSet<?> B = (ImmutableHashSet<?>) other;
+		ForwardIterator<Object> entries = differentEntries(B);
+		ImmutableHashSet<E> result = clear();
+		while (entries.hasNext()) {
+			Object entry = entries.next();
+			if (!B.containsEntry(entry))
+				result = result.add((E) CollisionNode.element(entry));
+		}
+		return result;
+	}
+
+	/**
+	 * tests if all elements of this set are in the other set. If the other set is
+	 * a hash set of the same shape, only the slots in which the tables differ are
+	 * visited.
+	 */
+	public boolean isSubsetOf(Set<E> other) {
+		if (size() > other.size())
+			return false;
+		if (!hasSameShape(other)) {
+			ForwardIterator<E> it = iterator();
+			while (it.hasNext()) {
+				if (other.find(it.next()) == null)
+					return false;
+			}
+			return true;
+		}
+		ImmutableHashSet<?> B = (ImmutableHashSet<?>) other;
+		ForwardIterator<Object> entries = differentEntries(B);
+		while (entries.hasNext()) {
+			if (!B.containsEntry(entries.next()))
+				return false;
+		}
+		return true;
 	}
 }
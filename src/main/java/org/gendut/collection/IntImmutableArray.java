@@ -0,0 +1,135 @@
+package org.gendut.collection;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import org.gendut.iterator.ForwardIterator;
+import org.gendut.seq.Seq;
+import org.gendut.seq.SeqFromIterator;
+
+/**
+ * A fixed-size immutable array of int values. Setting an element returns a
+ * new array. The values are stored unboxed in chunks of 16 elements, the
+ * initial value of each element is zero.
+ */
+public final class IntImmutableArray extends PrimitiveArrayBase<Integer> {
+
+	private IntImmutableArray(long size) {
+		super(size);
+	}
+
+	private IntImmutableArray(ImmutableArrayBase<Object> chunks, long size) {
+		super(chunks, size);
+	}
+
+	static public IntImmutableArray create(long size) {
+		return new IntImmutableArray(size);
+	}
+
+	static public IntImmutableArray fromArray(int[] values) {
+		ImmutableArrayBase.TrieBuilder builder = new ImmutableArrayBase.TrieBuilder();
+		for (int start = 0; start < values.length; start += chunkSize) {
+			int[] chunk = new int[chunkSize];
+			System.arraycopy(values, start, chunk, 0, Math.min(chunkSize, values.length - start));
+			builder.add(isZero(chunk) ? null : chunk);
+		}
+		return new IntImmutableArray(chunksFrom(builder), values.length);
+	}
+
+	private static boolean isZero(int[] chunk) {
+		for (int k = 0; k < chunkSize; k++) {
+			if (chunk[k] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	public int getInt(long i) {
+		int[] chunk = (int[]) chunk(i);
+		return (chunk == null) ? 0 : chunk[(int) (i & chunkMask)];
+	}
+
+	public Integer get(long i) {
+		return getInt(i);
+	}
+
+	/**
+	 * returns an array with the <i>i</i>th element replaced.
+	 */
+	public IntImmutableArray set(long i, int value) {
+		int[] chunk = (int[]) chunk(i);
+		int k = (int) (i & chunkMask);
+		if (chunk == null) {
+			if (value == 0)
+				return this;
+			chunk = new int[chunkSize];
+		} else {
+			if (chunk[k] == value)
+				return this;
+			chunk = chunk.clone();
+		}
+		chunk[k] = value;
+		return new IntImmutableArray(replaceChunk(i, isZero(chunk) ? null : chunk), size());
+	}
+
+	public int[] toIntArray() {
+		if (size() > Integer.MAX_VALUE)
+			throw new IllegalStateException("array too large: Cannot cast size() to int");
+		int[] values = new int[(int) size()];
+		PrimitiveIterator.OfInt it = intIterator();
+		for (int i = 0; i < values.length; i++)
+			values[i] = it.nextInt();
+		return values;
+	}
+
+	@Override
+	boolean sameAt(Object chunkA, Object chunkB, int k) {
+		int a = (chunkA == null) ? 0 : ((int[]) chunkA)[k];
+		int b = (chunkB == null) ? 0 : ((int[]) chunkB)[k];
+		return a == b;
+	}
+
+	private final class IntIterator implements PrimitiveIterator.OfInt {
+		private long i = 0;
+
+		private int[] chunk;
+
+		public boolean hasNext() {
+			return i < size();
+		}
+
+		public int nextInt() {
+			if (i >= size())
+				throw new NoSuchElementException("no next element");
+			int k = (int) (i & chunkMask);
+			if (k == 0)
+				chunk = (int[]) chunk(i);
+			i++;
+			return (chunk == null) ? 0 : chunk[k];
+		}
+	}
+
+	/**
+	 * iterates over all elements without boxing.
+	 */
+	public PrimitiveIterator.OfInt intIterator() {
+		return new IntIterator();
+	}
+
+	public ForwardIterator<Integer> iterator() {
+		final PrimitiveIterator.OfInt it = intIterator();
+		return new ForwardIterator<Integer>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public Integer next() {
+				return it.nextInt();
+			}
+		};
+	}
+
+	public Seq<Integer> seq() {
+		return SeqFromIterator.create(iterator());
+	}
+}
@@ -0,0 +1,138 @@
+package org.gendut.collection;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An immutable hash map from int keys to objects. The keys are stored unboxed
+ * in chunks of a persistent table, lookups do not allocate. The map grows and
+ * shrinks like {@link ImmutableHashSet}.
+ */
+public final class IntObjectHashMap<Value> {
+	@SuppressWarnings("rawtypes")
+	private static final IntObjectHashMap emptyMap = new IntObjectHashMap(new PrimitiveHashTables(
+			PrimitiveHashTable.objectValues));
+
+	private final PrimitiveHashTables tables;
+
+	private IntObjectHashMap(PrimitiveHashTables tables) {
+		this.tables = tables;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <Value> IntObjectHashMap<Value> create() {
+		return emptyMap;
+	}
+
+	private IntObjectHashMap<Value> update(PrimitiveHashTables newTables) {
+		return (newTables == tables) ? this : new IntObjectHashMap<Value>(newTables);
+	}
+
+	public IntObjectHashMap<Value> put(int key, Value value) {
+		return update(tables.put(key, 0, value));
+	}
+
+	public IntObjectHashMap<Value> remove(int key) {
+		return update(tables.remove(key));
+	}
+
+	public boolean containsKey(int key) {
+		return tables.containsKey(key);
+	}
+
+	/**
+	 * returns the value of the key, or null if there is no such key.
+	 */
+	@SuppressWarnings("unchecked")
+	public Value get(int key) {
+		return (Value) tables.get(key);
+	}
+
+	public long size() {
+		return tables.size();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public IntObjectHashMap<Value> clear() {
+		return create();
+	}
+
+	/**
+	 * iterates over all keys without boxing.
+	 */
+	public PrimitiveIterator.OfInt keyIterator() {
+		final PrimitiveHashTable.Cursor cursor = tables.cursor();
+		return new PrimitiveIterator.OfInt() {
+			private boolean hasNext = cursor.advance();
+
+			public boolean hasNext() {
+				return hasNext;
+			}
+
+			public int nextInt() {
+				if (!hasNext)
+					throw new NoSuchElementException("No next element.");
+				int key = (int) cursor.key();
+				hasNext = cursor.advance();
+				return key;
+			}
+		};
+	}
+
+	private static boolean sameValue(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 0;
+		PrimitiveHashTable.Cursor cursor = tables.cursor();
+		while (cursor.advance()) {
+			Object value = cursor.value();
+			hash += (int) cursor.key() ^ ((value == null) ? 0 : value.hashCode());
+		}
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof IntObjectHashMap))
+			return false;
+		IntObjectHashMap<?> other = (IntObjectHashMap<?>) obj;
+		if (other.size() != size())
+			return false;
+		PrimitiveHashTable.Cursor cursor = tables.cursor();
+		while (cursor.advance()) {
+			int key = (int) cursor.key();
+			if (!other.containsKey(key) || !sameValue(other.get(key), cursor.value()))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		if (size() > Integer.MAX_VALUE)
+			throw new IllegalStateException("map too large: Cannot cast size() to int");
+		int[] keys = new int[(int) size()];
+		PrimitiveIterator.OfInt it = keyIterator();
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = it.nextInt();
+		Arrays.sort(keys);
+		StringBuffer str = new StringBuffer();
+		str.append('[');
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0)
+				str.append(", ");
+			str.append('(').append(keys[i]).append(" . ").append(get(keys[i])).append(')');
+		}
+		str.append(']');
+		return str.toString();
+	}
+}
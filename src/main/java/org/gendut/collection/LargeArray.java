@@ -4,6 +4,8 @@ import java.math.BigInteger;
 import java.util.Comparator;
 import java.util.function.Function;
 
+import org.gendut.func.Pair;
+
 /**
  * Large, catenable and splitable array implementation with homomorphic images.
  */
@@ -43,9 +45,38 @@ public final class LargeArray<E> extends CatenableArrayTree<E> implements
     return (LargeArray<E>) super.catenate(array);
   }
 
+  /*
+   * creates an array with another tree and the images of all maps of this
+   * array.
+   */
+  private LargeArray<E> withRoot(Object newRoot) {
+    return new LargeArray<E>(newRoot, imagesOf(newRoot), cmp);
+  }
+
+  /**
+   * returns the elements at positions start..end-1 in time O(log n).
+   */
   public LargeArray<E> subArray(BigInteger start, BigInteger end) {
-    // TODO Auto-generated method stub
-    return null;
+    checkRange(start, end);
+    if (fitsInLong(root, end))
+      return withRoot(subseq(root, start.longValue(), end.longValue()));
+    return withRoot(subseq(root, start, end));
+  }
+
+  /**
+   * splits the array into the elements before the given position and the
+   * elements from that position on.
+   */
+  public Pair<LargeArray<E>, LargeArray<E>> splitAt(BigInteger pos) {
+    return new Pair<LargeArray<E>, LargeArray<E>>(subArray(BigInteger.ZERO, pos),
+        subArray(pos, elementCount()));
+  }
+
+  public Pair<LargeArray<E>, LargeArray<E>> splitAt(long pos) {
+    if (longCount(root) == hugeCount)
+      return splitAt(BigInteger.valueOf(pos));
+    return new Pair<LargeArray<E>, LargeArray<E>>(subArray(0, pos),
+        subArray(pos, size()));
   }
   
   final public BigInteger lastOf(final E e) {
@@ -67,16 +98,23 @@ public final class LargeArray<E> extends CatenableArrayTree<E> implements
   }
 
   public LargeArray<E> insertAt(BigInteger pos, E e) {
-	  return new LargeArray<E>(insertAt(root, pos, e));
+    if (fitsInLong(root, pos))
+      return insertAt(pos.longValue(), e);
+    return withRoot(insertAt(root, pos, e));
   }
 
   public LargeArray<E> replaceAt(BigInteger pos, E e) {
-    return new LargeArray<E>(replace(root, pos, e));
+    if (fitsInLong(root, pos))
+      return replaceAt(pos.longValue(), e);
+    return withRoot(replace(root, pos, e));
   }
 
   public LargeArray<E> removeAt(BigInteger pos) {
-    // TODO Auto-generated method stub
-    return null;
+    if (fitsInLong(root, pos))
+      return removeAt(pos.longValue());
+    if ((pos.signum() < 0) || (pos.compareTo(elementCount()) >= 0))
+      throw new IndexOutOfBoundsException("position " + pos);
+    return withRoot(removeAt(root, pos));
   }
 
   // TODO: traverse graph instead!
@@ -90,26 +128,40 @@ public final class LargeArray<E> extends CatenableArrayTree<E> implements
   }
 
   public LargeArray<E> insertAt(long pos, E e) {
-    return insertAt(BigInteger.valueOf(pos), e);
+    if (longCount(root) == hugeCount)
+      return withRoot(insertAt(root, BigInteger.valueOf(pos), e));
+    return withRoot(insertAt(root, pos, e));
   }
 
+  /**
+   * removes the element at the given position in time O(log n).
+   */
   public LargeArray<E> removeAt(long pos) {
-    return removeAt(BigInteger.valueOf(pos));
+    if (longCount(root) == hugeCount)
+      return removeAt(BigInteger.valueOf(pos));
+    if ((pos < 0) || (pos >= size()))
+      throw new IndexOutOfBoundsException("position " + pos);
+    return withRoot(removeAt(root, pos));
   }
 
   public LargeArray<E> replaceAt(long pos, E e) {
-    return replaceAt(BigInteger.valueOf(pos), e);
+    if (longCount(root) == hugeCount)
+      return withRoot(replace(root, BigInteger.valueOf(pos), e));
+    return withRoot(replace(root, pos, e));
   }
 
   public LargeArray<E> subArray(long start, long end) {
-    return subArray(BigInteger.valueOf(start), BigInteger.valueOf(end));
+    if (longCount(root) == hugeCount)
+      return subArray(BigInteger.valueOf(start), BigInteger.valueOf(end));
+    checkRange(start, end);
+    return withRoot(subseq(root, start, end));
   }
 
   public LargeArray<E> addMap(MonoidMap<E, ?> map) {
     if (images.containsKey(map))
       return this;
     else
-      return new LargeArray<E>(root, images.put(map, computeImageTree(root, map)), cmp);
+      return new LargeArray<E>(root, images.put(map, image(root, map)), cmp);
   }
 
   public LargeArray<E> removeMap(MonoidMap<E, ?> map) {
@@ -117,15 +169,21 @@ public final class LargeArray<E> extends CatenableArrayTree<E> implements
   }
 
   public LargeArray<E> add(E e) {
-    return new LargeArray<E>(concat(root, e, null, null, null, null), images, cmp);
+    return withRoot(concat(root, e));
   }
 
   public LargeArray<E> clear() {
     return new LargeArray<E>(emptyTree, emptyImages(images.keys()), cmp);
   }
 
+  /**
+   * removes the first element which equals e. Finding the element takes
+   * linear time, removing it logarithmic time.
+   */
   public LargeArray<E> remove(E e) {
-    // TODO
-    return null;
+    BigInteger pos = firstOf(e);
+    if (pos.signum() < 0)
+      return this;
+    return removeAt(pos);
   }
 }
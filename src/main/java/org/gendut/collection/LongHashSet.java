@@ -0,0 +1,126 @@
+package org.gendut.collection;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An immutable hash set of long values. The values are stored unboxed in
+ * chunks of a persistent table, and lookups do not allocate. Like
+ * {@link ImmutableHashSet}, the set keeps a small and a large table and moves
+ * a few values with each update, so growing and shrinking need no complete
+ * rehash.
+ */
+public final class LongHashSet {
+	private static final LongHashSet emptySet = new LongHashSet(new PrimitiveHashTables(PrimitiveHashTable.keys));
+
+	private final PrimitiveHashTables tables;
+
+	private LongHashSet(PrimitiveHashTables tables) {
+		this.tables = tables;
+	}
+
+	public static LongHashSet create() {
+		return emptySet;
+	}
+
+	public static LongHashSet fromArray(long[] values) {
+		LongHashSet set = emptySet;
+		for (long v : values)
+			set = set.add(v);
+		return set;
+	}
+
+	private LongHashSet update(PrimitiveHashTables newTables) {
+		return (newTables == tables) ? this : new LongHashSet(newTables);
+	}
+
+	public LongHashSet add(long value) {
+		return update(tables.put(value, 0, null));
+	}
+
+	public LongHashSet remove(long value) {
+		return update(tables.remove(value));
+	}
+
+	public boolean contains(long value) {
+		return tables.containsKey(value);
+	}
+
+	public long size() {
+		return tables.size();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public LongHashSet clear() {
+		return emptySet;
+	}
+
+	/**
+	 * iterates over all values without boxing.
+	 */
+	public PrimitiveIterator.OfLong longIterator() {
+		final PrimitiveHashTable.Cursor cursor = tables.cursor();
+		return new PrimitiveIterator.OfLong() {
+			private boolean hasNext = cursor.advance();
+
+			public boolean hasNext() {
+				return hasNext;
+			}
+
+			public long nextLong() {
+				if (!hasNext)
+					throw new NoSuchElementException("No next element.");
+				long value = cursor.key();
+				hasNext = cursor.advance();
+				return value;
+			}
+		};
+	}
+
+	public long[] toLongArray() {
+		if (size() > Integer.MAX_VALUE)
+			throw new IllegalStateException("set too large: Cannot cast size() to int");
+		long[] values = new long[(int) size()];
+		PrimitiveIterator.OfLong it = longIterator();
+		for (int i = 0; i < values.length; i++)
+			values[i] = it.nextLong();
+		return values;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 0;
+		PrimitiveIterator.OfLong it = longIterator();
+		while (it.hasNext())
+			hash += Long.hashCode(it.nextLong());
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof LongHashSet))
+			return false;
+		LongHashSet other = (LongHashSet) obj;
+		if (other.size() != size())
+			return false;
+		PrimitiveIterator.OfLong it = longIterator();
+		while (it.hasNext()) {
+			if (!other.contains(it.nextLong()))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		long[] values = toLongArray();
+		Arrays.sort(values);
+		return Arrays.toString(values);
+	}
+}
@@ -0,0 +1,135 @@
+package org.gendut.collection;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import org.gendut.iterator.ForwardIterator;
+import org.gendut.seq.Seq;
+import org.gendut.seq.SeqFromIterator;
+
+/**
+ * A fixed-size immutable array of long values. Setting an element returns a
+ * new array. The values are stored unboxed in chunks of 16 elements, the
+ * initial value of each element is zero.
+ */
+public final class LongImmutableArray extends PrimitiveArrayBase<Long> {
+
+	private LongImmutableArray(long size) {
+		super(size);
+	}
+
+	private LongImmutableArray(ImmutableArrayBase<Object> chunks, long size) {
+		super(chunks, size);
+	}
+
+	static public LongImmutableArray create(long size) {
+		return new LongImmutableArray(size);
+	}
+
+	static public LongImmutableArray fromArray(long[] values) {
+		ImmutableArrayBase.TrieBuilder builder = new ImmutableArrayBase.TrieBuilder();
+		for (int start = 0; start < values.length; start += chunkSize) {
+			long[] chunk = new long[chunkSize];
+			System.arraycopy(values, start, chunk, 0, Math.min(chunkSize, values.length - start));
+			builder.add(isZero(chunk) ? null : chunk);
+		}
+		return new LongImmutableArray(chunksFrom(builder), values.length);
+	}
+
+	private static boolean isZero(long[] chunk) {
+		for (int k = 0; k < chunkSize; k++) {
+			if (chunk[k] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	public long getLong(long i) {
+		long[] chunk = (long[]) chunk(i);
+		return (chunk == null) ? 0 : chunk[(int) (i & chunkMask)];
+	}
+
+	public Long get(long i) {
+		return getLong(i);
+	}
+
+	/**
+	 * returns an array with the <i>i</i>th element replaced.
+	 */
+	public LongImmutableArray set(long i, long value) {
+		long[] chunk = (long[]) chunk(i);
+		int k = (int) (i & chunkMask);
+		if (chunk == null) {
+			if (value == 0)
+				return this;
+			chunk = new long[chunkSize];
+		} else {
+			if (chunk[k] == value)
+				return this;
+			chunk = chunk.clone();
+		}
+		chunk[k] = value;
+		return new LongImmutableArray(replaceChunk(i, isZero(chunk) ? null : chunk), size());
+	}
+
+	public long[] toLongArray() {
+		if (size() > Integer.MAX_VALUE)
+			throw new IllegalStateException("array too large: Cannot cast size() to int");
+		long[] values = new long[(int) size()];
+		PrimitiveIterator.OfLong it = longIterator();
+		for (int i = 0; i < values.length; i++)
+			values[i] = it.nextLong();
+		return values;
+	}
+
+	@Override
+	boolean sameAt(Object chunkA, Object chunkB, int k) {
+		long a = (chunkA == null) ? 0 : ((long[]) chunkA)[k];
+		long b = (chunkB == null) ? 0 : ((long[]) chunkB)[k];
+		return a == b;
+	}
+
+	private final class LongIterator implements PrimitiveIterator.OfLong {
+		private long i = 0;
+
+		private long[] chunk;
+
+		public boolean hasNext() {
+			return i < size();
+		}
+
+		public long nextLong() {
+			if (i >= size())
+				throw new NoSuchElementException("no next element");
+			int k = (int) (i & chunkMask);
+			if (k == 0)
+				chunk = (long[]) chunk(i);
+			i++;
+			return (chunk == null) ? 0 : chunk[k];
+		}
+	}
+
+	/**
+	 * iterates over all elements without boxing.
+	 */
+	public PrimitiveIterator.OfLong longIterator() {
+		return new LongIterator();
+	}
+
+	public ForwardIterator<Long> iterator() {
+		final PrimitiveIterator.OfLong it = longIterator();
+		return new ForwardIterator<Long>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public Long next() {
+				return it.nextLong();
+			}
+		};
+	}
+
+	public Seq<Long> seq() {
+		return SeqFromIterator.create(iterator());
+	}
+}
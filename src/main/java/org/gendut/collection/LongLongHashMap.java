@@ -0,0 +1,133 @@
+package org.gendut.collection;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An immutable hash map from long keys to long values. Keys and values are
+ * stored unboxed and interleaved in chunks of a persistent table, lookups do
+ * not allocate. The map grows and shrinks like {@link ImmutableHashSet}.
+ */
+public final class LongLongHashMap {
+	private static final LongLongHashMap emptyMap = new LongLongHashMap(new PrimitiveHashTables(
+			PrimitiveHashTable.longValues));
+
+	private final PrimitiveHashTables tables;
+
+	private LongLongHashMap(PrimitiveHashTables tables) {
+		this.tables = tables;
+	}
+
+	public static LongLongHashMap create() {
+		return emptyMap;
+	}
+
+	private LongLongHashMap update(PrimitiveHashTables newTables) {
+		return (newTables == tables) ? this : new LongLongHashMap(newTables);
+	}
+
+	public LongLongHashMap put(long key, long value) {
+		return update(tables.put(key, value, null));
+	}
+
+	public LongLongHashMap remove(long key) {
+		return update(tables.remove(key));
+	}
+
+	public boolean containsKey(long key) {
+		return tables.containsKey(key);
+	}
+
+	/**
+	 * returns the value of the key, or zero if there is no such key.
+	 */
+	public long get(long key) {
+		return tables.getLong(key, 0);
+	}
+
+	public long getOrDefault(long key, long defaultValue) {
+		return tables.getLong(key, defaultValue);
+	}
+
+	public long size() {
+		return tables.size();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public LongLongHashMap clear() {
+		return emptyMap;
+	}
+
+	/**
+	 * iterates over all keys without boxing.
+	 */
+	public PrimitiveIterator.OfLong keyIterator() {
+		final PrimitiveHashTable.Cursor cursor = tables.cursor();
+		return new PrimitiveIterator.OfLong() {
+			private boolean hasNext = cursor.advance();
+
+			public boolean hasNext() {
+				return hasNext;
+			}
+
+			public long nextLong() {
+				if (!hasNext)
+					throw new NoSuchElementException("No next element.");
+				long key = cursor.key();
+				hasNext = cursor.advance();
+				return key;
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 0;
+		PrimitiveHashTable.Cursor cursor = tables.cursor();
+		while (cursor.advance())
+			hash += Long.hashCode(cursor.key()) ^ Long.hashCode(cursor.longValue());
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof LongLongHashMap))
+			return false;
+		LongLongHashMap other = (LongLongHashMap) obj;
+		if (other.size() != size())
+			return false;
+		PrimitiveHashTable.Cursor cursor = tables.cursor();
+		while (cursor.advance()) {
+			long key = cursor.key();
+			if (!other.containsKey(key) || (other.get(key) != cursor.longValue()))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		if (size() > Integer.MAX_VALUE)
+			throw new IllegalStateException("map too large: Cannot cast size() to int");
+		long[] keys = new long[(int) size()];
+		PrimitiveIterator.OfLong it = keyIterator();
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = it.nextLong();
+		Arrays.sort(keys);
+		StringBuffer str = new StringBuffer();
+		str.append('[');
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0)
+				str.append(", ");
+			str.append('(').append(keys[i]).append(" . ").append(get(keys[i])).append(')');
+		}
+		str.append(']');
+		return str.toString();
+	}
+}
@@ -0,0 +1,110 @@
+package org.gendut.collection;
+
+import java.math.BigInteger;
+
+import org.gendut.collection.mutable.ExtendibleArray;
+
+/**
+ * This class is package-private. It is the base of immutable arrays of
+ * primitive values. The elements are stored in chunks of 16 values (a primitive
+ * array), the chunks are the elements of an {@link ImmutableArrayBase}. Thus,
+ * the chunks replace the leaf nodes of the tree while the inner nodes keep
+ * their structure. A chunk consisting of zeros only is represented by null, so
+ * the initial value of each element is zero.
+ */
+abstract class PrimitiveArrayBase<E> extends AbstractList<E> implements Array<E> {
+	static final int chunkBits = 4;
+
+	static final int chunkSize = 1 << chunkBits;
+
+	static final int chunkMask = chunkSize - 1;
+
+	final ImmutableArrayBase<Object> chunks;
+
+	private final long size;
+
+	PrimitiveArrayBase(long size) {
+		if (size < 0)
+			throw new IllegalArgumentException("size < 0: " + size);
+		this.size = size;
+		this.chunks = new ImmutableArrayBase<Object>(chunkCount(size));
+	}
+
+	PrimitiveArrayBase(ImmutableArrayBase<Object> chunks, long size) {
+		this.size = size;
+		this.chunks = chunks;
+	}
+
+	static long chunkCount(long size) {
+		return (size + chunkMask) >>> chunkBits;
+	}
+
+	/**
+	 * links the chunks which have been added to the builder to a tree.
+	 */
+	static ImmutableArrayBase<Object> chunksFrom(ImmutableArrayBase.TrieBuilder builder) {
+		long n = builder.count();
+		if (n == 0) {
+			builder.finish(0);
+			return new ImmutableArrayBase<Object>(0);
+		}
+		return new ImmutableArrayBase<Object>(n, builder.finish(n));
+	}
+
+	/**
+	 * returns the chunk containing the <i>i</i>th element, or null if all its
+	 * elements are zero.
+	 */
+	final Object chunk(long i) {
+		if ((i < 0) || (i >= size)) {
+			throw new IndexOutOfBoundsException("index is not between 0 and " + size + ".");
+		}
+		return chunks.get(i >>> chunkBits);
+	}
+
+	final ImmutableArrayBase<Object> replaceChunk(long i, Object chunk) {
+		return new ImmutableArrayBase<Object>(chunks, i >>> chunkBits, chunk);
+	}
+
+	/**
+	 * tests if two chunks have the same element at the given position. A null
+	 * chunk has zeros only.
+	 */
+	abstract boolean sameAt(Object chunkA, Object chunkB, int k);
+
+	/**
+	 * returns the positions of different elements. Chunks which are shared by
+	 * both arrays are skipped.
+	 */
+	public ConstantArray<BigInteger> differentPositions(PrimitiveArrayBase<E> other) {
+		if (other.size != this.size)
+			throw new IllegalArgumentException("Other array must have the same size");
+		ExtendibleArray<BigInteger> diffPos = new ExtendibleArray<BigInteger>();
+		ImmutableArrayBase.NonIdenticalPlaces places = chunks.nonIdenticalPlaces(other.chunks);
+		while (places.hasNext()) {
+			long c = places.nextPosition();
+			Object chunkA = chunks.get(c);
+			Object chunkB = other.chunks.get(c);
+			long start = c << chunkBits;
+			for (int k = 0; k < chunkSize && start + k < size; k++) {
+				if (!sameAt(chunkA, chunkB, k))
+					diffPos.add(BigInteger.valueOf(start + k));
+			}
+		}
+		return diffPos.asConstant();
+	}
+
+	public final long size() {
+		return size;
+	}
+
+	@Override
+	public final BigInteger elementCount() {
+		return BigInteger.valueOf(size);
+	}
+
+	@Override
+	public final boolean isEmpty() {
+		return size == 0;
+	}
+}
@@ -0,0 +1,356 @@
+package org.gendut.collection;
+
+/**
+ * This class is package-private. It is a hash table of fixed capacity with
+ * primitive long keys, the base of the primitive-keyed sets and maps. As in
+ * {@link PrimitiveArrayBase}, the table is divided into chunks of 16 slots, and
+ * the chunks are the elements of an {@link ImmutableArrayBase}. A chunk holds
+ * all entries of its slots in primitive arrays, an empty chunk is null. Thus
+ * there are no objects per entry, and a lookup scans a few keys of one chunk
+ * without allocating. The {@link Layout} of a table defines how the entries of
+ * a chunk are stored.
+ */
+final class PrimitiveHashTable {
+	static final int chunkBits = 4;
+
+	final Layout layout;
+
+	final ImmutableArrayBase<Object> chunks;
+
+	private final long capacity;
+
+	private final long size;
+
+	/**
+	 * The representation of the chunks. A chunk has at least one entry.
+	 */
+	abstract static class Layout {
+		final PrimitiveHashTable emptyTable = new PrimitiveHashTable(this, ImmutableHashSet.minCapacity);
+
+		abstract int count(Object chunk);
+
+		abstract long keyAt(Object chunk, int j);
+
+		/**
+		 * returns the index of the entry with the given key, or -1.
+		 */
+		abstract int indexOf(Object chunk, long key);
+
+		long longValueAt(Object chunk, int j) {
+			return 0;
+		}
+
+		Object valueAt(Object chunk, int j) {
+			return null;
+		}
+
+		/**
+		 * returns a chunk with the values of entry j replaced or, if j is negative,
+		 * with a new entry. The chunk may be null. If nothing changes, the chunk
+		 * itself is returned.
+		 */
+		abstract Object put(Object chunk, int j, long key, long longValue, Object value);
+
+		/**
+		 * returns a chunk without entry j, or null if the chunk becomes empty.
+		 */
+		abstract Object removeAt(Object chunk, int j);
+	}
+
+	/*
+	 * keys only: the chunk is a long[]
+	 */
+	static final Layout keys = new Layout() {
+		int count(Object chunk) {
+			return ((long[]) chunk).length;
+		}
+
+		long keyAt(Object chunk, int j) {
+			return ((long[]) chunk)[j];
+		}
+
+		int indexOf(Object chunk, long key) {
+			long[] keys = (long[]) chunk;
+			for (int j = 0; j < keys.length; j++) {
+				if (keys[j] == key)
+					return j;
+			}
+			return -1;
+		}
+
+		Object put(Object chunk, int j, long key, long longValue, Object value) {
+			if (j >= 0)
+				return chunk;
+			return append((long[]) chunk, key);
+		}
+
+		Object removeAt(Object chunk, int j) {
+			return cut((long[]) chunk, j, 1);
+		}
+	};
+
+	/*
+	 * long keys and long values: the chunk is a long[] of interleaved keys and
+	 * values
+	 */
+	static final Layout longValues = new Layout() {
+		int count(Object chunk) {
+			return ((long[]) chunk).length >> 1;
+		}
+
+		long keyAt(Object chunk, int j) {
+			return ((long[]) chunk)[2 * j];
+		}
+
+		long longValueAt(Object chunk, int j) {
+			return ((long[]) chunk)[2 * j + 1];
+		}
+
+		int indexOf(Object chunk, long key) {
+			long[] entries = (long[]) chunk;
+			for (int i = 0; i < entries.length; i += 2) {
+				if (entries[i] == key)
+					return i >> 1;
+			}
+			return -1;
+		}
+
+		Object put(Object chunk, int j, long key, long longValue, Object value) {
+			long[] entries = (long[]) chunk;
+			if (j >= 0) {
+				if (entries[2 * j + 1] == longValue)
+					return chunk;
+				entries = entries.clone();
+				entries[2 * j + 1] = longValue;
+				return entries;
+			}
+			return append(entries, key, longValue);
+		}
+
+		Object removeAt(Object chunk, int j) {
+			return cut((long[]) chunk, 2 * j, 2);
+		}
+	};
+
+	private static final class ObjectChunk {
+		final long[] keys;
+
+		final Object[] values;
+
+		ObjectChunk(long[] keys, Object[] values) {
+			this.keys = keys;
+			this.values = values;
+		}
+	}
+
+	/*
+	 * long keys and object values
+	 */
+	static final Layout objectValues = new Layout() {
+		int count(Object chunk) {
+			return ((ObjectChunk) chunk).keys.length;
+		}
+
+		long keyAt(Object chunk, int j) {
+			return ((ObjectChunk) chunk).keys[j];
+		}
+
+		Object valueAt(Object chunk, int j) {
+			return ((ObjectChunk) chunk).values[j];
+		}
+
+		int indexOf(Object chunk, long key) {
+			long[] keys = ((ObjectChunk) chunk).keys;
+			for (int j = 0; j < keys.length; j++) {
+				if (keys[j] == key)
+					return j;
+			}
+			return -1;
+		}
+
+		Object put(Object chunk, int j, long key, long longValue, Object value) {
+			ObjectChunk c = (ObjectChunk) chunk;
+			if (j >= 0) {
+				if (c.values[j] == value)
+					return chunk;
+				Object[] values = c.values.clone();
+				values[j] = value;
+				return new ObjectChunk(c.keys, values);
+			}
+			if (c == null)
+				return new ObjectChunk(new long[] { key }, new Object[] { value });
+			Object[] values = new Object[c.values.length + 1];
+			System.arraycopy(c.values, 0, values, 0, c.values.length);
+			values[c.values.length] = value;
+			return new ObjectChunk(append(c.keys, key), values);
+		}
+
+		Object removeAt(Object chunk, int j) {
+			ObjectChunk c = (ObjectChunk) chunk;
+			if (c.keys.length == 1)
+				return null;
+			Object[] values = new Object[c.values.length - 1];
+			System.arraycopy(c.values, 0, values, 0, j);
+			System.arraycopy(c.values, j + 1, values, j, values.length - j);
+			return new ObjectChunk((long[]) cut(c.keys, j, 1), values);
+		}
+	};
+
+	private static long[] append(long[] a, long... x) {
+		if (a == null)
+			return x.clone();
+		long[] b = new long[a.length + x.length];
+		System.arraycopy(a, 0, b, 0, a.length);
+		System.arraycopy(x, 0, b, a.length, x.length);
+		return b;
+	}
+
+	/*
+	 * returns the array without n elements at position i, or null if it becomes
+	 * empty.
+	 */
+	private static Object cut(long[] a, int i, int n) {
+		if (a.length == n)
+			return null;
+		long[] b = new long[a.length - n];
+		System.arraycopy(a, 0, b, 0, i);
+		System.arraycopy(a, i + n, b, i, b.length - i);
+		return b;
+	}
+
+	PrimitiveHashTable(Layout layout, long capacity) {
+		this.layout = layout;
+		this.capacity = capacity;
+		this.size = 0;
+		this.chunks = new ImmutableArrayBase<Object>(PrimitiveArrayBase.chunkCount(capacity));
+	}
+
+	private PrimitiveHashTable(PrimitiveHashTable x, long c, Object chunk, long size) {
+		this.layout = x.layout;
+		this.capacity = x.capacity;
+		this.size = size;
+		this.chunks = new ImmutableArrayBase<Object>(x.chunks, c, chunk);
+	}
+
+	long capacity() {
+		return capacity;
+	}
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * mixes the bits of a key (the 64-bit finalizer of MurmurHash3).
+	 */
+	static long spread(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/*
+	 * returns the number of the chunk containing the slot of the key
+	 */
+	private long chunkIndex(long key) {
+		return Long.remainderUnsigned(spread(key), capacity) >>> chunkBits;
+	}
+
+	/**
+	 * returns the chunk which would contain the key, or null.
+	 */
+	Object chunkOf(long key) {
+		return chunks.get(chunkIndex(key));
+	}
+
+	boolean containsKey(long key) {
+		Object chunk = chunkOf(key);
+		return (chunk != null) && (layout.indexOf(chunk, key) >= 0);
+	}
+
+	PrimitiveHashTable put(long key, long longValue, Object value) {
+		long c = chunkIndex(key);
+		Object chunk = chunks.get(c);
+		int j = (chunk == null) ? -1 : layout.indexOf(chunk, key);
+		Object newChunk = layout.put(chunk, j, key, longValue, value);
+		if (newChunk == chunk)
+			return this;
+		return new PrimitiveHashTable(this, c, newChunk, (j < 0) ? size + 1 : size);
+	}
+
+	PrimitiveHashTable remove(long key) {
+		long c = chunkIndex(key);
+		Object chunk = chunks.get(c);
+		if (chunk == null)
+			return this;
+		int j = layout.indexOf(chunk, key);
+		if (j < 0)
+			return this;
+		return new PrimitiveHashTable(this, c, layout.removeAt(chunk, j), size - 1);
+	}
+
+	/**
+	 * returns the first non-empty chunk, or null if the table is empty.
+	 */
+	Object firstChunk() {
+		return chunks.firstElement();
+	}
+
+	/**
+	 * Iterates over the entries of tables without allocating. After advance()
+	 * returned true, the current entry is entry index of chunk.
+	 */
+	static final class Cursor {
+		private final PrimitiveHashTable[] tables;
+
+		private int t = 0;
+
+		private ImmutableArrayBase.NotNullIterator<Object> chunkIterator;
+
+		Object chunk = null;
+
+		int index;
+
+		Cursor(PrimitiveHashTable... tables) {
+			this.tables = tables;
+			this.chunkIterator = new ImmutableArrayBase.NotNullIterator<Object>(tables[0].chunks);
+		}
+
+		Layout layout() {
+			return tables[0].layout;
+		}
+
+		boolean advance() {
+			if ((chunk != null) && (index + 1 < layout().count(chunk))) {
+				index++;
+				return true;
+			}
+			while (!chunkIterator.hasNext()) {
+				t++;
+				if (t == tables.length) {
+					chunk = null;
+					return false;
+				}
+				chunkIterator = new ImmutableArrayBase.NotNullIterator<Object>(tables[t].chunks);
+			}
+			chunk = chunkIterator.next();
+			index = 0;
+			return true;
+		}
+
+		long key() {
+			return layout().keyAt(chunk, index);
+		}
+
+		long longValue() {
+			return layout().longValueAt(chunk, index);
+		}
+
+		Object value() {
+			return layout().valueAt(chunk, index);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package org.gendut.collection;
+
+/**
+ * This class is package-private. It grows and shrinks primitive hash tables in
+ * the same way as {@link ImmutableHashSet}: Two disjoint tables are kept, a
+ * small one and a large one, and each update moves a few entries from the
+ * small table to the large one (or back when shrinking), so there is never a
+ * complete rehash.
+ */
+final class PrimitiveHashTables {
+	private static final int balance = ImmutableHashSet.balance;
+
+	private static final double loadfactor = ImmutableHashSet.loadfactor;
+
+	private static final int minCapacity = ImmutableHashSet.minCapacity;
+
+	final PrimitiveHashTable smallTable;
+
+	final PrimitiveHashTable largeTable;
+
+	PrimitiveHashTables(PrimitiveHashTable.Layout layout) {
+		smallTable = layout.emptyTable;
+		largeTable = layout.emptyTable;
+	}
+
+	private PrimitiveHashTables(PrimitiveHashTable A, PrimitiveHashTable B) {
+		this.smallTable = A;
+		this.largeTable = B;
+	}
+
+	private PrimitiveHashTables create(PrimitiveHashTable A, PrimitiveHashTable B) {
+		if ((A == smallTable) && (B == largeTable))
+			return this;
+		return new PrimitiveHashTables(A, B);
+	}
+
+	long size() {
+		return smallTable.size() + largeTable.size();
+	}
+
+	boolean containsKey(long key) {
+		return largeTable.containsKey(key) || smallTable.containsKey(key);
+	}
+
+	long getLong(long key, long defaultValue) {
+		PrimitiveHashTable.Layout layout = smallTable.layout;
+		Object chunk = largeTable.chunkOf(key);
+		int j = (chunk == null) ? -1 : layout.indexOf(chunk, key);
+		if (j < 0) {
+			chunk = smallTable.chunkOf(key);
+			j = (chunk == null) ? -1 : layout.indexOf(chunk, key);
+			if (j < 0)
+				return defaultValue;
+		}
+		return layout.longValueAt(chunk, j);
+	}
+
+	Object get(long key) {
+		PrimitiveHashTable.Layout layout = smallTable.layout;
+		Object chunk = largeTable.chunkOf(key);
+		int j = (chunk == null) ? -1 : layout.indexOf(chunk, key);
+		if (j < 0) {
+			chunk = smallTable.chunkOf(key);
+			j = (chunk == null) ? -1 : layout.indexOf(chunk, key);
+			if (j < 0)
+				return null;
+		}
+		return layout.valueAt(chunk, j);
+	}
+
+	PrimitiveHashTables put(long key, long longValue, Object value) {
+		PrimitiveHashTable A = smallTable;
+		PrimitiveHashTable B = largeTable;
+		if (size() < loadfactor * minCapacity)
+			return create(A.put(key, longValue, value), B.remove(key));
+
+		long oldSizeB = B.size();
+		if (B == B.layout.emptyTable)
+			B = new PrimitiveHashTable(B.layout, balance * A.capacity());
+
+		B = B.put(key, longValue, value);
+		if (oldSizeB == B.size())
+			/*
+			 * no change in size means the key is overwritten in B and did not
+			 * exist in A:
+			 */
+			return create(A, B);
+
+		A = A.remove(key);
+		if (2 * A.size() > loadfactor * B.capacity() - B.size()) {
+			for (int i = 0; i < 2; i++) {
+				Object chunk = A.firstChunk();
+				if (chunk == null)
+					break;
+				long k = A.layout.keyAt(chunk, 0);
+				A = A.remove(k);
+				B = B.put(k, A.layout.longValueAt(chunk, 0), A.layout.valueAt(chunk, 0));
+			}// ` for`
+		}// ` if`
+		if (A.size() == 0) {
+			A = B;
+			B = new PrimitiveHashTable(A.layout, balance * A.size());
+		}
+		return create(A, B);
+	}
+
+	PrimitiveHashTables remove(long key) {
+		PrimitiveHashTable A = smallTable;
+		PrimitiveHashTable B = largeTable;
+		A = A.remove(key);
+		B = B.remove(key);
+		if ((A == smallTable) && (B == largeTable))
+			return this;
+		if (B.size() < loadfactor * A.capacity() - A.size()) {
+			Object chunk = B.firstChunk();
+			if (chunk != null) {
+				long k = B.layout.keyAt(chunk, 0);
+				B = B.remove(k);
+				A = A.put(k, B.layout.longValueAt(chunk, 0), B.layout.valueAt(chunk, 0));
+			}
+		}
+
+		if (B.size() == 0) {
+			if (A.size() < minCapacity * loadfactor)
+				B = B.layout.emptyTable;
+			else {
+				B = A;
+				long newACapacity = B.size() / balance;
+				if (newACapacity < minCapacity)
+					newACapacity = minCapacity;
+				A = new PrimitiveHashTable(B.layout, newACapacity);
+			}
+		}
+		return create(A, B);
+	}
+
+	PrimitiveHashTable.Cursor cursor() {
+		return new PrimitiveHashTable.Cursor(smallTable, largeTable);
+	}
+}
@@ -25,12 +25,20 @@ public final class SortedCollection<E> extends CatenableArrayTree<E> implements
         return new SortedCollection(emptyTree, cmp);
     }
 
+    /*
+     * creates a collection with another tree and the images of all maps of this
+     * collection.
+     */
+    private SortedCollection<E> withRoot(Object newRoot) {
+        return new SortedCollection<E>(newRoot, imagesOf(newRoot), cmp);
+    }
+
     public SortedCollection<E> add(E e) {
-        return new SortedCollection<E>(insert(root, cmp, e, allowCopies), cmp);
+        return withRoot(insert(root, cmp, e, allowCopies));
     }
 
     public SortedCollection<E> remove(E e) {
-        return new SortedCollection<E>(remove(root, cmp, e), cmp);
+        return withRoot(remove(root, cmp, e));
     }
 
     public SortedCollection<E> clear() {
@@ -49,9 +57,14 @@ public final class SortedCollection<E> extends CatenableArrayTree<E> implements
         return (LargeArray<E>) super.catenate(array);
     }
     
+    /**
+     * returns the elements at positions start..end-1 in time O(log n).
+     */
     public SortedCollection<E> subArray(BigInteger start, BigInteger end) {
-        // TODO Auto-generated method stub
-        return null;
+        checkRange(start, end);
+        if (fitsInLong(root, end))
+            return withRoot(subseq(root, start.longValue(), end.longValue()));
+        return withRoot(subseq(root, start, end));
     }
 
     public SortedCollection<E> insertAt(BigInteger pos, E e) {
@@ -68,7 +81,15 @@ public final class SortedCollection<E> extends CatenableArrayTree<E> implements
         if (pos.compareTo(elementCount()) < 0 && cmp.compare(e, get(pos.add(BigInteger.ONE))) > 0)
             throw new IllegalArgumentException("Successor is smaller than new element.");
         
-        return new SortedCollection<E>(replace(root, pos, e), cmp);
+        return withRoot(replace(root, pos, e));
+    }
+
+    /**
+     * returns the image of all elements e with lowKey <= e < highKey without
+     * building the sub-collection.
+     */
+    public <F> F getImageBetween(MonoidMap<E, F> map, E lowKey, E highKey) {
+        return imageBetween(map, lowKey, highKey);
     }
 
     public boolean contains(E e) {
@@ -83,14 +104,28 @@ public final class SortedCollection<E> extends CatenableArrayTree<E> implements
         return (E) found;
     }
     
+    /**
+     * returns the last position of an element which is equal to e according
+     * to the order, or -1.
+     */
     final public BigInteger lastOf(E e) {
-      // TODO Auto-generated method stub
-      return null;
+        long pos = rank(root, cmp, e, true) - 1;
+        E found = elementAt(pos);
+        if ((found == null) || (cmp.compare(found, e) != 0))
+            return BigInteger.valueOf(-1);
+        return BigInteger.valueOf(pos);
     }
 
+    /**
+     * returns the first position of an element which is equal to e according
+     * to the order, or -1.
+     */
     final public BigInteger firstOf(E e) {
-      // TODO Auto-generated method stub
-      return null;
+        long pos = rank(root, cmp, e);
+        E found = elementAt(pos);
+        if ((found == null) || (cmp.compare(found, e) != 0))
+            return BigInteger.valueOf(-1);
+        return BigInteger.valueOf(pos);
     }
     
     public SortedCollection<E> removeAt(BigInteger pos) {
@@ -118,7 +153,7 @@ public final class SortedCollection<E> extends CatenableArrayTree<E> implements
    	 if (images.containsKey(map))
    	      return this;
    	    else
-   	      return new SortedCollection<E>(root, images.put(map, computeImage(map)), cmp);
+   	      return new SortedCollection<E>(root, images.put(map, image(root, map)), cmp);
    }
 
    public SortedCollection<E> removeMap(MonoidMap<E, ?> map) {
@@ -2,6 +2,10 @@ package org.gendut.collection;
 
 import java.util.Comparator;
 
+import org.gendut.collection.mutable.ExtendibleArray;
+import org.gendut.func.Pair;
+import org.gendut.iterator.ForwardIterator;
+
 public final class SortedMap<Key, Value> extends
     AbstractMapFromSet<Key, Value, SortedMap<Key, Value>> implements
     UpdatableMap<Key, Value, SortedMap<Key, Value>> {
@@ -20,6 +24,38 @@ public final class SortedMap<Key, Value> extends
     return new SortedMap<Key, Value>(cmp);
   }
 
+  /**
+   * creates a map from entries which are sorted by key. The tree is built in
+   * linear time. Of entries with equal keys only the last one is kept, as if
+   * they were put one after another.
+   * 
+   * @throws IllegalArgumentException
+   *           if the entries are not sorted.
+   */
+  @SuppressWarnings("unchecked")
+  public static <Key, Value> SortedMap<Key, Value> fromSorted(
+      Array<? extends Pair<Key, Value>> entries, Comparator<? super Key> cmp) {
+    long n = entries.size();
+    ExtendibleArray<Object> mapEntries = new ExtendibleArray<Object>();
+    for (long i = 0; i < n; i++) {
+      Pair<Key, Value> entry = entries.get(i);
+      mapEntries.add(new MapEntry<Key, Value>(entry.first(), entry.second()));
+    }
+    return new SortedMap<Key, Value>(SortedSet.fromSorted(
+        mapEntries.asConstant(), MapEntry.keyComparator(cmp)));
+  }
+
+  /**
+   * creates a map from entries in any order. The entries are sorted by key
+   * first, the sort is stable, so the last of equal keys wins as with put().
+   */
+  public static <Key, Value> SortedMap<Key, Value> fromUnsorted(
+      ImmutableCollection<Pair<Key, Value>> entries, Comparator<? super Key> cmp) {
+    return fromSorted(
+        Collections.sort(entries, (a, b) -> cmp.compare(a.first(), b.first())),
+        cmp);
+  }
+
   public SortedMap<Key, Value> put(Key key, Value val) {
     return new SortedMap<Key, Value>(asSet.add(new MapEntry<Key, Value>(key,
         val)));
@@ -29,6 +65,103 @@ public final class SortedMap<Key, Value> extends
     return new SortedMap<Key, Value>(asSet.remove(key));
   }
 
+  /**
+   * returns the entries of both maps. For keys in both maps, the entry of this
+   * map is kept. Maps with the same key order are split and joined in
+   * O(m log(n/m + 1)) time, in parallel for large maps.
+   */
+  @SuppressWarnings("unchecked")
+  public SortedMap<Key, Value> union(SortedMap<Key, Value> other) {
+    return new SortedMap<Key, Value>(((SortedSet<Object>) asSet)
+        .union((SortedSet<Object>) other.asSet));
+  }
+
+  /**
+   * returns the entries of this map whose keys are in the other map.
+   */
+  @SuppressWarnings("unchecked")
+  public SortedMap<Key, Value> intersection(SortedMap<Key, Value> other) {
+    return new SortedMap<Key, Value>(((SortedSet<Object>) asSet)
+        .intersection((SortedSet<Object>) other.asSet));
+  }
+
+  /**
+   * returns the entries of this map whose keys are not in the other map.
+   */
+  public SortedMap<Key, Value> minus(SortedMap<Key, ?> other) {
+    return new SortedMap<Key, Value>(asSet.minus(other.asSet));
+  }
+
+  @SuppressWarnings("unchecked")
+  private SortedSet<Object> entries() {
+    return (SortedSet<Object>) asSet;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <Key, Value> Pair<Key, Value> pairOf(Object entry) {
+    if (entry == null)
+      return null;
+    MapEntry<Key, Value> e = (MapEntry<Key, Value>) entry;
+    return new Pair<Key, Value>(e.key, e.value);
+  }
+
+  /**
+   * returns the number of keys which are smaller than the key.
+   */
+  public long rank(Key key) {
+    return entries().rank(key);
+  }
+
+  /**
+   * returns the entry at position i in the order of keys.
+   */
+  public Pair<Key, Value> select(long i) {
+    return pairOf(entries().select(i));
+  }
+
+  /**
+   * returns the entry with the largest key smaller than the key, or null.
+   */
+  public Pair<Key, Value> lowerEntry(Key key) {
+    return pairOf(entries().lower(key));
+  }
+
+  /**
+   * returns the entry with the largest key not larger than the key, or null.
+   */
+  public Pair<Key, Value> floorEntry(Key key) {
+    return pairOf(entries().floor(key));
+  }
+
+  /**
+   * returns the entry with the smallest key not smaller than the key, or null.
+   */
+  public Pair<Key, Value> ceilingEntry(Key key) {
+    return pairOf(entries().ceiling(key));
+  }
+
+  /**
+   * returns the entry with the smallest key larger than the key, or null.
+   */
+  public Pair<Key, Value> higherEntry(Key key) {
+    return pairOf(entries().higher(key));
+  }
+
+  /**
+   * iterates lazily over the entries with fromKey <= key < toKey, starting at
+   * fromKey in time O(log n).
+   */
+  public ForwardIterator<Pair<Key, Value>> iterator(Key fromKey, Key toKey) {
+    return new Iterator(entries().iterator(fromKey, toKey));
+  }
+
+  /**
+   * returns the entries with fromKey <= key < toKey in time O(log n).
+   */
+  public SortedMap<Key, Value> subMap(Key fromKey, Key toKey) {
+    return new SortedMap<Key, Value>(entries().subSet(fromKey, toKey));
+  }
+
   public SortedMap<Key, Value> clear() {
     return new SortedMap<Key, Value>(asSet.clear());
   }
@@ -3,6 +3,9 @@ package org.gendut.collection;
 import java.math.BigInteger;
 import java.util.Comparator;
 
+import org.gendut.collection.mutable.ExtendibleArray;
+import org.gendut.iterator.ForwardIterator;
+
 
 public final class SortedSet<E> extends CatenableArrayTree<E> implements
 		UpdatableSet<E, SortedSet<E>>, CatenableArray<E> {
@@ -29,13 +32,64 @@ public final class SortedSet<E> extends CatenableArrayTree<E> implements
 		return new SortedSet(emptyTree, cmp);
 	}
 
+	/**
+	 * creates a set from a list which is sorted by the comparator. The tree is
+	 * built in linear time, without the rebalancing of single insertions. Of
+	 * equal elements only the last one is kept, as if they were added one after
+	 * another.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the list is not sorted.
+	 */
+	static public <E> SortedSet<E> fromSorted(Array<? extends E> sorted,
+			Comparator<? super E> cmp) {
+		long n = sorted.size();
+		if (n == 0)
+			return create(cmp);
+		long duplicates = 0;
+		for (long i = 1; i < n; i++) {
+			int c = cmp.compare(sorted.get(i - 1), sorted.get(i));
+			if (c > 0)
+				throw new IllegalArgumentException(
+						"List is not sorted at position " + i + ".");
+			if (c == 0)
+				duplicates++;
+		}
+		Array<? extends E> list = sorted;
+		if (duplicates > 0) {
+			ExtendibleArray<E> unique = new ExtendibleArray<E>();
+			for (long i = 0; i < n; i++) {
+				E e = sorted.get(i);
+				if ((i == n - 1) || (cmp.compare(e, sorted.get(i + 1)) != 0))
+					unique.add(e);
+			}
+			list = unique.asConstant();
+		}
+		return new SortedSet<E>(createFromList(list, 0, list.size()), cmp);
+	}
+
+	/**
+	 * creates a set from a collection in O(n log n) time: the elements are
+	 * sorted first and then loaded with {@link #fromSorted(Array, Comparator)}.
+	 */
+	static public <E> SortedSet<E> fromUnsorted(ImmutableCollection<E> elements,
+			Comparator<? super E> cmp) {
+		return fromSorted(Collections.sort(elements, cmp), cmp);
+	}
+
+	/*
+	 * creates a set with another tree and the images of all maps of this set.
+	 */
+	private SortedSet<E> withRoot(Object newRoot) {
+		return new SortedSet<E>(newRoot, imagesOf(newRoot), cmp);
+	}
+
 	public SortedSet<E> add(E e) {
-		return new SortedSet<E>(insert(root, cmp, e,
-				SortedCollection.setBehavior), cmp);
+		return withRoot(insert(root, cmp, e, SortedCollection.setBehavior));
 	}
 
 	public SortedSet<E> remove(E e) {
-		return new SortedSet<E>(remove(root, cmp, e), cmp);
+		return withRoot(remove(root, cmp, e));
 	}
 
 	public SortedSet<E> clear() {
@@ -54,9 +108,22 @@ public final class SortedSet<E> extends CatenableArrayTree<E> implements
 		return (LargeArray<E>) super.catenate(array);
 	}
 
+	/**
+	 * returns the elements at positions start..end-1 in time O(log n).
+	 */
 	public SortedSet<E> subArray(BigInteger start, BigInteger end) {
-		// TODO Auto-generated method stub
-		return null;
+		checkRange(start, end);
+		if (fitsInLong(root, end))
+			return withRoot(subseq(root, start.longValue(), end.longValue()));
+		return withRoot(subseq(root, start, end));
+	}
+
+	/**
+	 * returns the elements e with fromKey <= e < toKey in time O(log n).
+	 */
+	public SortedSet<E> subSet(E fromKey, E toKey) {
+		long start = rank(fromKey);
+		return subArray(start, Math.max(start, rank(toKey)));
 	}
 
 	public SortedSet<E> insertAt(BigInteger pos, E e) {
@@ -76,29 +143,99 @@ public final class SortedSet<E> extends CatenableArrayTree<E> implements
 			throw new IllegalArgumentException(
 					"Successor is not larger than new element.");
 
-		return new SortedSet<E>(replace(root, pos, e), cmp);
+		return withRoot(replace(root, pos, e));
+	}
+
+	/**
+	 * returns the image of all elements e with lowKey <= e < highKey without
+	 * building the sub-collection.
+	 */
+	public <F> F getImageBetween(MonoidMap<E, F> map, E lowKey, E highKey) {
+		return imageBetween(map, lowKey, highKey);
 	}
 
 	public boolean contains(E e) {
-		return findFirst(root, cmp, e) != noElementFound;
+		return findEqual(root, cmp, e) != noElementFound;
 	}
 
 	@SuppressWarnings("unchecked")
 	public E find(E e) {
-		Object found = findFirst(root, cmp, e);
+		Object found = findEqual(root, cmp, e);
 		if (found == noElementFound)
 			return null;
 		return (E) found;
 	}
 
+	/**
+	 * returns the position of an element, or -1.
+	 */
 	final public BigInteger lastOf(E e) {
-		// TODO Auto-generated method stub
-		return null;
+		return firstOf(e);
 	}
 
+	/**
+	 * returns the position of an element, or -1.
+	 */
 	final public BigInteger firstOf(E e) {
-		// TODO Auto-generated method stub
-		return null;
+		long pos = rank(e);
+		E found = elementAt(pos);
+		if ((found == null) || (cmp.compare(found, e) != 0))
+			return BigInteger.valueOf(-1);
+		return BigInteger.valueOf(pos);
+	}
+
+	/**
+	 * returns the number of elements which are smaller than the key.
+	 */
+	public long rank(E key) {
+		return rank(root, cmp, key);
+	}
+
+	/**
+	 * returns the element with the given rank, i.e. the element at position i.
+	 */
+	public E select(long i) {
+		return get(i);
+	}
+
+	/**
+	 * returns the largest element smaller than the key, or null.
+	 */
+	public E lower(E key) {
+		return elementAt(rank(root, cmp, key, false) - 1);
+	}
+
+	/**
+	 * returns the largest element not larger than the key, or null.
+	 */
+	public E floor(E key) {
+		return elementAt(rank(root, cmp, key, true) - 1);
+	}
+
+	/**
+	 * returns the smallest element not smaller than the key, or null.
+	 */
+	public E ceiling(E key) {
+		return elementAt(rank(root, cmp, key, false));
+	}
+
+	/**
+	 * returns the smallest element larger than the key, or null.
+	 */
+	public E higher(E key) {
+		return elementAt(rank(root, cmp, key, true));
+	}
+
+	/**
+	 * iterates over the elements e with fromKey <= e < toKey. The iteration
+	 * starts at fromKey in time O(log n) and is lazy.
+	 */
+	public ForwardIterator<E> iterator(E fromKey, E toKey) {
+		long start = rank(fromKey);
+		long end = rank(toKey);
+		if (start >= end)
+			return new MyIterator<E>(emptyTree);
+		return new MyIterator<E>(subseq(root, start, end));
 	}
 
 	public SortedSet<E> removeAt(BigInteger pos) {
@@ -126,7 +263,7 @@ public final class SortedSet<E> extends CatenableArrayTree<E> implements
 		if (images.containsKey(map))
 			return this;
 		else
-			return new SortedSet<E>(root, images.put(map, computeImage(map)),
+			return new SortedSet<E>(root, images.put(map, image(root, map)),
 					cmp);
 	}
 
@@ -134,9 +271,61 @@ public final class SortedSet<E> extends CatenableArrayTree<E> implements
 		return new SortedSet<E>(root, images.remove(map), cmp);
 	}
 
+	/*
+	 * tests if the other set is a sorted set with the same order, so that the
+	 * trees can be split and joined.
+	 */
+	private boolean hasSameOrder(Set<?> other) {
+		return (other instanceof SortedSet)
+				&& cmp.equals(((SortedSet<?>) other).cmp);
+	}
+
+	/**
+	 * returns the union of both sets. Of equal elements, the one of this set is
+	 * kept. If the other set has the same order, the trees are split and joined
+	 * in O(m log(n/m + 1)) time, in parallel for large sets.
+	 */
+	public SortedSet<E> union(SortedSet<E> other) {
+		if (hasSameOrder(other))
+			return withRoot(setOperation(union, root, other.root, cmp));
+		SortedSet<E> result = this;
+		ForwardIterator<E> it = other.iterator();
+		while (it.hasNext()) {
+			E e = it.next();
+			if (!contains(e))
+				result = result.add(e);
+		}
+		return result;
+	}
+
+	/**
+	 * returns the elements of this set which are in the other set. If the other
+	 * set has the same order, the trees are split and joined in O(m log(n/m +
+	 * 1)) time, in parallel for large sets.
+	 */
+	public SortedSet<E> intersection(SortedSet<E> other) {
+		if (hasSameOrder(other))
+			return withRoot(setOperation(intersection, root, other.root, cmp));
+		SortedSet<E> result = this;
+		ForwardIterator<E> it = iterator();
+		while (it.hasNext()) {
+			E e = it.next();
+			if (!other.contains(e))
+				result = result.remove(e);
+		}
+		return result;
+	}
+
+	/**
+	 * returns the elements of this set which are not in the other set. If the
+	 * other set is a sorted set with the same order, the trees are split and
+	 * joined in O(m log(n/m + 1)) time, in parallel for large sets.
+	 */
 	@Override
 	public SortedSet<E> minus(Set<? extends E> other) {
-		// TODO optimize this method
+		if (hasSameOrder(other))
+			return withRoot(setOperation(difference, root,
+					((SortedSet<? extends E>) other).root, cmp));
 		return Collections.minus(this, other);
 	}
 }
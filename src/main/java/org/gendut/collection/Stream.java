@@ -88,14 +88,14 @@ public final class Stream<E> extends AbstractList<E> implements Seq<E> {
 		if (sz < Integer.MAX_VALUE)
 			return ConstantArray.fromSequence(seq);
 		else {
-			ImmutableArray<E> arr = ImmutableArray.create(sz);
+			ImmutableArray.Builder<E> arr = ImmutableArray.builder(sz);
 			Seq<E> sq = seq;
-			for (int i = 0; i < sz; i++) {
-				arr.set(i, sq.first());
+			for (long i = 0; i < sz; i++) {
+				arr.add(sq.first());
 				sq = sq.rest();
 			}
 			Assertions.assertion("Sequence should be empty.", sq.isEmpty());
-			return arr;
+			return arr.build();
 		}
 	}
 	
@@ -0,0 +1,248 @@
+package org.gendut.collection.mutable;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+
+/**
+ * A reference to a persistent value, e.g. an ImmutableHashMap or a SortedMap,
+ * which is shared by several threads. An update applies a function to the
+ * current version and installs the result with compare-and-set, it is repeated
+ * if another thread installed a new version in between. Therefore update
+ * functions must not have side effects. Failed attempts back off: first by
+ * spinning, then by parking for a random time.
+ * 
+ * A combining atom batches concurrent updates instead: Threads enqueue their
+ * functions, and one of them applies all queued functions to the current
+ * version in arrival order and installs a single new version. Under high
+ * contention this replaces many conflicting attempts by one.
+ * 
+ * The atom counts updates and failed attempts, so the retry rate under load
+ * can be monitored.
+ */
+public final class Atom<T> {
+	private static final int spinLimit = 6;
+
+	private static final int maxParkShift = 20;
+
+	private final AtomicReference<T> value;
+
+	private final boolean combining;
+
+	/*
+	 * the updates of a combining atom which have not been applied yet, the
+	 * latest one first
+	 */
+	private final AtomicReference<Request<T>> pending = new AtomicReference<Request<T>>();
+
+	private final AtomicBoolean combinerLock = new AtomicBoolean();
+
+	private final LongAdder updates = new LongAdder();
+
+	private final LongAdder retries = new LongAdder();
+
+	private final LongAdder combiningPasses = new LongAdder();
+
+	private static final class Request<T> {
+		final UnaryOperator<T> fn;
+
+		Request<T> next;
+
+		T result;
+
+		Throwable failure;
+
+		/*
+		 * result and failure are published by writing this field:
+		 */
+		volatile boolean done = false;
+
+		Request(UnaryOperator<T> fn) {
+			this.fn = fn;
+		}
+	}
+
+	private Atom(T initialValue, boolean combining) {
+		this.value = new AtomicReference<T>(initialValue);
+		this.combining = combining;
+	}
+
+	/**
+	 * creates an atom whose updates retry with compare-and-set.
+	 */
+	public static <T> Atom<T> create(T initialValue) {
+		return new Atom<T>(initialValue, false);
+	}
+
+	/**
+	 * creates an atom which combines concurrent updates into a single new
+	 * version.
+	 */
+	public static <T> Atom<T> combining(T initialValue) {
+		return new Atom<T>(initialValue, true);
+	}
+
+	public T get() {
+		return value.get();
+	}
+
+	public void set(T newValue) {
+		value.set(newValue);
+	}
+
+	public boolean compareAndSet(T expectedValue, T newValue) {
+		return value.compareAndSet(expectedValue, newValue);
+	}
+
+	/**
+	 * applies the function to the current value and installs the result. The
+	 * function may be called more than once, it must not have side effects.
+	 * Returns the version produced by the function.
+	 */
+	public T update(UnaryOperator<T> fn) {
+		if (combining)
+			return updateCombining(fn);
+		int attempt = 0;
+		while (true) {
+			T oldValue = value.get();
+			T newValue = fn.apply(oldValue);
+			if (value.compareAndSet(oldValue, newValue)) {
+				updates.increment();
+				return newValue;
+			}
+			retries.increment();
+			backoff(++attempt);
+		}
+	}
+
+	private T updateCombining(UnaryOperator<T> fn) {
+		Request<T> request = new Request<T>(fn);
+		Request<T> head;
+		do {
+			head = pending.get();
+			request.next = head;
+		} while (!pending.compareAndSet(head, request));
+
+		int attempt = 0;
+		while (!request.done) {
+			if (combinerLock.compareAndSet(false, true)) {
+				try {
+					combine();
+				} finally {
+					combinerLock.set(false);
+				}
+			} else
+				backoff(++attempt);
+		}
+		if (request.failure instanceof Error)
+			throw (Error) request.failure;
+		if (request.failure != null)
+			throw (RuntimeException) request.failure;
+		return request.result;
+	}
+
+	/*
+	 * applies all pending updates, called while holding the combiner lock.
+	 */
+	private void combine() {
+		Request<T> batch = pending.getAndSet(null);
+		if (batch == null)
+			return;
+		// reverse the stack to get the arrival order:
+		Request<T> first = null;
+		int count = 0;
+		while (batch != null) {
+			Request<T> next = batch.next;
+			batch.next = first;
+			first = batch;
+			batch = next;
+			count++;
+		}
+
+		while (true) {
+			T oldValue = value.get();
+			T newValue = oldValue;
+			for (Request<T> r = first; r != null; r = r.next) {
+				try {
+					newValue = r.fn.apply(newValue);
+					r.result = newValue;
+					r.failure = null;
+				} catch (RuntimeException | Error e) {
+					// a failing update is skipped, its thread gets the exception
+					r.failure = e;
+				}
+			}
+			if (value.compareAndSet(oldValue, newValue))
+				break;
+			retries.increment();
+		}
+		updates.add(count);
+		combiningPasses.increment();
+
+		Request<T> r = first;
+		while (r != null) {
+			Request<T> next = r.next;
+			r.done = true;
+			r = next;
+		}
+	}
+
+	private static void backoff(int attempt) {
+		if (attempt <= spinLimit) {
+			for (int i = 0; i < (1 << attempt); i++)
+				Thread.onSpinWait();
+		} else {
+			long maxNanos = 1L << Math.min(attempt, maxParkShift);
+			LockSupport.parkNanos(1 + ThreadLocalRandom.current().nextLong(maxNanos));
+		}
+	}
+
+	public boolean isCombining() {
+		return combining;
+	}
+
+	/**
+	 * returns the number of completed updates.
+	 */
+	public long updates() {
+		return updates.sum();
+	}
+
+	/**
+	 * returns the number of failed compare-and-set attempts, i.e. the number of
+	 * times a new version was computed in vain.
+	 */
+	public long retries() {
+		return retries.sum();
+	}
+
+	/**
+	 * returns the number of batches in which a combining atom has applied
+	 * updates. The average batch size is updates() / combiningPasses().
+	 */
+	public long combiningPasses() {
+		return combiningPasses.sum();
+	}
+
+	/**
+	 * returns the number of failed attempts per completed update.
+	 */
+	public double retryRate() {
+		long n = updates();
+		return (n == 0) ? 0 : (double) retries() / n;
+	}
+
+	public void resetStatistics() {
+		updates.reset();
+		retries.reset();
+		combiningPasses.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "Atom(" + value.get() + ")";
+	}
+}
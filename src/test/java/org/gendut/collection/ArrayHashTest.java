@@ -28,6 +28,32 @@ extends TestCase {
       }    
     }
 
+    static public void testOnlyBuildTupleSequentialTiming() {
+
+      ImmutableArray.Builder<Integer> builder = ImmutableArray.builder(N);
+      for (int i = 0; i < N; i++) {
+        builder.add(i);
+      }
+      ImmutableArray<Integer> tuple = builder.build();
+      assertEquals(N, tuple.size());
+    }
+
+    static public void testOnlyUpdateTupleBatchedTiming() {
+
+      ImmutableArray<Integer> tuple = ImmutableArray.create(N);
+      int batchSize = 1000;
+      long[] positions = new long[batchSize];
+      Integer[] values = new Integer[batchSize];
+      for (int i = 0; i < N; i += batchSize) {
+        for (int k = 0; k < batchSize; k++) {
+          positions[k] = (i + 97L * k) % N;
+          values[k] = i + k;
+        }
+        tuple = tuple.setAll(positions, values);
+      }
+      assertEquals(N, tuple.size());
+    }
+
     static public void testOnlyFillHashSetSequentialTiming() {
       
       FixedSizeHashSet<Integer> tuple = new FixedSizeHashSet<Integer>(2*N);
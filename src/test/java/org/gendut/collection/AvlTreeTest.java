@@ -0,0 +1,27 @@
+package org.gendut.collection;
+
+import java.math.BigInteger;
+
+import junit.framework.TestCase;
+
+public class AvlTreeTest extends TestCase {
+
+    public void testHugeCounts() {
+        Object tree = AvlTree.combine(AvlTree.createLeaf("a"), AvlTree.createLeaf("b"));
+        assertEquals(2, AvlTree.longCount(tree));
+        Object small = tree;
+        // 2^63 elements, one more than fit into a long count:
+        for (int i = 0; i < 62; i++)
+            tree = AvlTree.concat(tree, tree);
+        BigInteger n = BigInteger.ONE.shiftLeft(63);
+        assertEquals(AvlTree.hugeCount, AvlTree.longCount(tree));
+        assertEquals(n, AvlTree.count(tree));
+        // the halves still have long counts:
+        assertEquals(1L << 62, AvlTree.longCount(AvlTree.left(tree)));
+        assertTrue(AvlTree.compareCounts(tree, small) > 0);
+        assertTrue(AvlTree.compareCounts(small, tree) < 0);
+        assertEquals(0, AvlTree.compareCounts(tree, AvlTree.concat(AvlTree.left(tree), AvlTree.right(tree))));
+        assertEquals("b", AvlTree.get(tree, n.subtract(BigInteger.ONE)));
+        assertEquals("a", AvlTree.get(tree, BigInteger.ZERO));
+    }
+}
@@ -0,0 +1,136 @@
+package org.gendut.collection;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.gendut.iterator.ForwardIterator;
+
+import junit.framework.TestCase;
+
+public class BTreeSetTest extends TestCase {
+
+    Comparator<Integer> cmp = Comparator.naturalOrder();
+
+    static List<Integer> toList(BTreeSet<Integer> set) {
+        List<Integer> list = new ArrayList<Integer>();
+        ForwardIterator<Integer> it = set.iterator();
+        while (it.hasNext())
+            list.add(it.next());
+        return list;
+    }
+
+    public void testConstruction() {
+        BTreeSet<Integer> set = BTreeSet.create(cmp);
+        assertEquals(0, set.size());
+        assertTrue(set.isEmpty());
+        assertEquals("[]", set.toString());
+        set = set.add(3).add(1).add(2);
+        assertEquals("[1, 2, 3]", set.toString());
+        assertTrue(set.contains(2));
+        assertFalse(set.contains(4));
+        assertEquals(3, set.remove(4).size());
+        assertEquals("[1, 3]", set.remove(2).toString());
+        assertEquals(0, set.clear().size());
+    }
+
+    public void testRandomUpdates() {
+        Random rnd = new Random(7);
+        BTreeSet<Integer> set = BTreeSet.create(cmp);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        for (int round = 0; round < 5; round++) {
+            // grow, then shrink to exercise splits and merges:
+            for (int i = 0; i < 20000; i++) {
+                int x = rnd.nextInt(50000);
+                set = set.add(x);
+                expected.add(x);
+            }
+            assertEquals(expected.size(), set.size());
+            assertEquals(new ArrayList<Integer>(expected), toList(set));
+            for (int i = 0; i < 25000; i++) {
+                int x = rnd.nextInt(50000);
+                set = set.remove(x);
+                expected.remove(x);
+            }
+            assertEquals(expected.size(), set.size());
+            assertEquals(new ArrayList<Integer>(expected), toList(set));
+        }
+        while (!expected.isEmpty()) {
+            Integer x = expected.pollFirst();
+            set = set.remove(x);
+        }
+        assertEquals(0, set.size());
+        assertEquals(1, set.height());
+    }
+
+    public void testPersistence() {
+        BTreeSet<Integer> set = BTreeSet.create(cmp);
+        for (int i = 0; i < 1000; i++)
+            set = set.add(i);
+        BTreeSet<Integer> other = set.remove(500).add(2000);
+        assertTrue(set.contains(500));
+        assertFalse(set.contains(2000));
+        assertFalse(other.contains(500));
+        assertTrue(other.contains(2000));
+        assertSame(set, set.add(7));
+        assertSame(set, set.remove(-1));
+    }
+
+    public void testNavigation() {
+        Random rnd = new Random(13);
+        BTreeSet<Integer> set = BTreeSet.create(cmp);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        for (int i = 0; i < 5000; i++) {
+            int x = 2 * rnd.nextInt(10000);
+            set = set.add(x);
+            expected.add(x);
+        }
+        List<Integer> list = new ArrayList<Integer>(expected);
+        for (int i = 0; i < 2000; i++) {
+            int key = rnd.nextInt(20100) - 50;
+            assertEquals(expected.lower(key), set.lower(key));
+            assertEquals(expected.floor(key), set.floor(key));
+            assertEquals(expected.ceiling(key), set.ceiling(key));
+            assertEquals(expected.higher(key), set.higher(key));
+            assertEquals(expected.headSet(key).size(), set.rank(key));
+            int j = rnd.nextInt(list.size());
+            assertEquals(list.get(j), set.get(j));
+            assertEquals(list.get(j), set.select(j));
+        }
+        try {
+            set.get(list.size());
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+        }
+    }
+
+    public void testEquality() {
+        BTreeSet<Integer> a = BTreeSet.create(cmp);
+        SortedSet<Integer> b = SortedSet.create(cmp);
+        for (int i = 0; i < 300; i++) {
+            a = a.add(i);
+            b = b.add(i);
+        }
+        assertEquals(a, b);
+        assertFalse(a.equals(b.remove(5)));
+        assertEquals(290, a.minus(b.subArray(0, 10)).size());
+    }
+
+    public void testLookupTiming() {
+        int n = 1000000;
+        BTreeSet<Integer> set = BTreeSet.create(cmp);
+        for (int i = 0; i < n; i++)
+            set = set.add(2 * i);
+        // 64 elements per leaf and 32 children per node:
+        assertTrue("height " + set.height(), set.height() <= 5);
+        Random rnd = new Random(1);
+        int found = 0;
+        for (int i = 0; i < 200000; i++) {
+            if (set.contains(rnd.nextInt(2 * n)))
+                found++;
+        }
+        assertTrue(found > 90000 && found < 110000);
+    }
+}
@@ -234,11 +234,9 @@ public class CatenableArrayTreeTest extends TestCase {
 
   public void testComputeImage() {
     Object tree = T(T(T(0, 1), 2), T(3, T(5, 6)));
-    Object image = CatenableArrayTree.value(CatenableArrayTree
-        .computeImageTree(tree, MonoidMaps.sameTree));
+    Object image = CatenableArrayTree.uncachedImage(tree, MonoidMaps.sameTree);
     assertEquals(tree.toString(), image.toString());
-    image = CatenableArrayTree.value(CatenableArrayTree.computeImageTree(tree,
-        MonoidMaps.sumOfInteger));
+    image = CatenableArrayTree.uncachedImage(tree, MonoidMaps.sumOfInteger);
     assertEquals("17", image.toString());
 
     /*
@@ -251,8 +249,7 @@ public class CatenableArrayTreeTest extends TestCase {
     }
     assertEquals(6 * 1024 * 1024 * 16, CatenableArrayTree.count(tree)
         .longValue());
-    image = CatenableArrayTree.value(CatenableArrayTree.computeImageTree(tree,
-        MonoidMaps.sumOfInteger));
+    image = CatenableArrayTree.uncachedImage(tree, MonoidMaps.sumOfInteger);
     assertEquals(Integer.valueOf(17 * 1024 * 1024 * 16), image);
   }
 
@@ -260,18 +257,18 @@ public class CatenableArrayTreeTest extends TestCase {
     Object tree1 = T(T(T(0, 1), 2), T(3, T(5, 6)));
     Object tree2 = T(8, 9);
     assertEquals("(((0 0 1) 0 2) 0 ((3 3 (5 5 6)) 3 (8 8 9)))",
-        CatenableArrayTree.concat(tree1, tree2, null, null, null, null).toString());
+        CatenableArrayTree.concat(tree1, tree2).toString());
     assertEquals("(((8 8 9) 8 ((0 0 1) 0 2)) 8 (3 3 (5 5 6)))",
-        CatenableArrayTree.concat(tree2, tree1, null, null, null, null).toString());
+        CatenableArrayTree.concat(tree2, tree1).toString());
 
     Object veryLargeTree = "A";
     BigInteger  veryLargeTreeSize = BigInteger.valueOf(1);
     for (int i = 0; i < 300; i++) {
-      veryLargeTree = CatenableArrayTree.concat(veryLargeTree, veryLargeTree, null, null, null, null);
+      veryLargeTree = CatenableArrayTree.concat(veryLargeTree, veryLargeTree);
       veryLargeTreeSize = veryLargeTreeSize.multiply(BigInteger.valueOf(2));
       assertEquals(veryLargeTreeSize, CatenableArrayTree.count(veryLargeTree));
     }
-    veryLargeTree = CatenableArrayTree.concat(tree2, veryLargeTree, null, null, null, null);
+    veryLargeTree = CatenableArrayTree.concat(tree2, veryLargeTree);
     veryLargeTreeSize = veryLargeTreeSize.add(BigInteger.valueOf(2));
     assertEquals(veryLargeTreeSize, CatenableArrayTree.count(veryLargeTree));
   }
@@ -1,5 +1,8 @@
 package org.gendut.collection;
 
+import java.util.Spliterator;
+
+import org.gendut.func.Pair;
 import org.gendut.iterator.ForwardIterator;
 import org.gendut.seq.Seq;
 
@@ -54,4 +57,45 @@ public class HashIteratorTest extends TestCase {
         }
         assertTrue(seq.isEmpty());
     }
+
+    public void testParallelStreamOfHashSet() {
+        ImmutableHashSet<Integer> set = ImmutableHashSet.create();
+        long expected = 0;
+        for (int i = 0; i < N; i++) {
+            set = set.add(i);
+            expected += i;
+        }
+        assertEquals(expected, set.parallelStream().mapToLong(x -> x).sum());
+        assertEquals(N, set.parallelStream().distinct().count());
+    }
+
+    public void testSpliteratorOfFixedSizeHashSet() {
+        FixedSizeHashSet<Integer> set = FixedSizeHashSet.create(1000);
+        for (int i = 0; i < 3000; i += 2)
+            set = set.add(i);
+        Spliterator<Integer> right = set.spliterator();
+        assertTrue(right.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(1500, right.estimateSize());
+        Spliterator<Integer> left = right.trySplit();
+        assertNotNull(left);
+        assertFalse(right.hasCharacteristics(Spliterator.SIZED));
+        boolean[] seen = new boolean[3000];
+        int[] count = new int[1];
+        for (Spliterator<Integer> part : java.util.List.of(left, right)) {
+            part.forEachRemaining(x -> {
+                assertFalse(seen[x]);
+                seen[x] = true;
+                count[0]++;
+            });
+        }
+        assertEquals(1500, count[0]);
+    }
+
+    public void testParallelStreamOfHashMap() {
+        ImmutableHashMap<Integer, Integer> map = ImmutableHashMap.create();
+        for (int i = 0; i < 5000; i++)
+            map = map.put(i, 2 * i);
+        assertEquals(0, map.parallelStream().filter(p -> p.second() != 2 * p.first()).count());
+        assertEquals(5000, map.parallelStream().map(Pair::first).distinct().count());
+    }
 }
@@ -1,10 +1,13 @@
 package org.gendut.collection;
 
+import java.util.Random;
 import java.util.TreeMap;
 
 import junit.framework.TestCase;
 
+import org.gendut.func.Pair;
 import org.gendut.iterator.ForwardIterator;
+import org.gendut.seq.Seq;
 
 public class HashTest extends TestCase {
 
@@ -110,6 +113,275 @@ public class HashTest extends TestCase {
         assertEquals(2, cnt);
     }
 
+    /*
+     * keys with a given hash code
+     */
+    static class SkewedHash {
+        final int v;
+
+        final int hash;
+
+        public SkewedHash(int v, int hash) {
+            this.v = v;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof SkewedHash) && (v == ((SkewedHash) other).v);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public void testCollisionsAgainstJavaUtilHashSet() {
+        Random rnd = new Random(5);
+        int capacity = 100;
+        FixedSizeHashSet<SkewedHash> set = FixedSizeHashSet.create(capacity);
+        java.util.HashSet<Integer> expected = new java.util.HashSet<Integer>();
+        for (int round = 0; round < 20000; round++) {
+            int v = rnd.nextInt(2000);
+            /*
+             * all keys fall into few slots, some keys have equal hash codes:
+             */
+            SkewedHash key = new SkewedHash(v, (v % 3) * capacity * (v % 50));
+            if (rnd.nextInt(3) == 0) {
+                set = set.remove(key);
+                expected.remove(v);
+            } else {
+                set = set.add(key);
+                expected.add(v);
+            }
+            assertEquals(expected.size(), set.size());
+            assertEquals(expected.contains(v), set.contains(key));
+        }
+        int cnt = 0;
+        ForwardIterator<SkewedHash> iter = set.iterator();
+        while (iter.hasNext()) {
+            assertTrue(expected.contains(iter.next().v));
+            cnt++;
+        }
+        assertEquals(expected.size(), cnt);
+        for (int v : expected)
+            set = set.remove(new SkewedHash(v, (v % 3) * capacity * (v % 50)));
+        assertEquals(0, set.size());
+        assertNull(set.firstElement());
+    }
+
+    public void testSpreadOfMultiples() {
+        /*
+         * without spreading, all multiples of the capacity fall into slot 0
+         */
+        int capacity = 1000;
+        FixedSizeHashSet<Integer> set = FixedSizeHashSet.create(capacity);
+        java.util.HashSet<Integer> slots = new java.util.HashSet<Integer>();
+        for (int i = 0; i < 300; i++) {
+            set = set.add(i * capacity);
+            slots.add(Math.abs(FixedSizeHashSet.spread(i * capacity) % capacity));
+        }
+        assertTrue(slots.size() > 200);
+        for (int i = 0; i < 300; i++)
+            assertTrue(set.contains(i * capacity));
+    }
+
+    static class CountingHash {
+        static int calls = 0;
+
+        final int v;
+
+        CountingHash(int v) {
+            this.v = v;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof CountingHash) && (v == ((CountingHash) other).v);
+        }
+
+        @Override
+        public int hashCode() {
+            calls++;
+            return v;
+        }
+    }
+
+    public void testCachedHashCodes() {
+        ImmutableHashSet<CountingHash> set = ImmutableHashSet.create(true);
+        CountingHash.calls = 0;
+        for (int i = 0; i < N; i++)
+            set = set.add(new CountingHash(i));
+        /*
+         * one call per add, none for moving elements between the tables:
+         */
+        assertEquals(N, CountingHash.calls);
+        assertEquals(N, set.size());
+        for (int i = 0; i < N; i++)
+            assertTrue(set.contains(new CountingHash(i)));
+        int cnt = 0;
+        ForwardIterator<CountingHash> iter = set.iterator();
+        while (iter.hasNext()) {
+            assertTrue(iter.next().v < N);
+            cnt++;
+        }
+        assertEquals(N, cnt);
+        for (int i = 0; i < N; i += 2)
+            set = set.remove(new CountingHash(i));
+        assertEquals(N / 2, set.size());
+        for (int i = 0; i < N; i++)
+            assertEquals(i % 2 == 1, set.contains(new CountingHash(i)));
+        assertTrue(set.clear().isEmpty());
+    }
+
+    static java.util.HashSet<Integer> toJavaSet(ImmutableSet<Integer> set) {
+        java.util.HashSet<Integer> result = new java.util.HashSet<Integer>();
+        ForwardIterator<Integer> iter = set.iterator();
+        while (iter.hasNext())
+            result.add(iter.next());
+        assertEquals(set.size(), result.size());
+        return result;
+    }
+
+    public void testSetAlgebraOfVersions() {
+        Random rnd = new Random(7);
+        FixedSizeHashSet<Integer> fixedBase = FixedSizeHashSet.create(N);
+        ImmutableHashSet<Integer> base = ImmutableHashSet.create();
+        for (int i = 0; i < N; i++) {
+            fixedBase = fixedBase.add(i);
+            base = base.add(i);
+        }
+        FixedSizeHashSet<Integer> fixedA = fixedBase, fixedB = fixedBase;
+        ImmutableHashSet<Integer> A = base, B = base;
+        for (int i = 0; i < 200; i++) {
+            int a = rnd.nextInt(2 * N), b = rnd.nextInt(2 * N);
+            fixedA = (a < N) ? fixedA.remove(a) : fixedA.add(a);
+            fixedB = (b < N) ? fixedB.remove(b) : fixedB.add(b);
+            A = (a < N) ? A.remove(a) : A.add(a);
+            B = (b < N) ? B.remove(b) : B.add(b);
+        }
+        java.util.HashSet<Integer> a = toJavaSet(A), b = toJavaSet(B);
+        java.util.HashSet<Integer> union = new java.util.HashSet<Integer>(a);
+        union.addAll(b);
+        java.util.HashSet<Integer> intersection = new java.util.HashSet<Integer>(a);
+        intersection.retainAll(b);
+        java.util.HashSet<Integer> minus = new java.util.HashSet<Integer>(a);
+        minus.removeAll(b);
+
+        assertEquals(union, toJavaSet(fixedA.union(fixedB)));
+        assertEquals(intersection, toJavaSet(fixedA.intersection(fixedB)));
+        assertEquals(minus, toJavaSet(fixedA.minus(fixedB)));
+        assertEquals(union, toJavaSet(A.union(B)));
+        assertEquals(intersection, toJavaSet(A.intersection(B)));
+        assertEquals(minus, toJavaSet(A.minus(B)));
+
+        assertTrue(fixedA.intersection(fixedB).isSubsetOf(fixedB));
+        assertFalse(fixedA.isSubsetOf(fixedB));
+        assertTrue(A.intersection(B).isSubsetOf(A));
+        assertFalse(A.union(B).isSubsetOf(B));
+        assertSame(A, A.union(A.intersection(B)));
+        assertEquals(0, A.minus(A).size());
+
+        /*
+         * sets of other shapes are combined element by element:
+         */
+        FixedSizeHashSet<Integer> small = FixedSizeHashSet.create(10);
+        small = small.add(1).add(N + 1);
+        java.util.HashSet<Integer> expected = toJavaSet(small);
+        expected.retainAll(a);
+        assertEquals(expected, toJavaSet(small.intersection(fixedA)));
+        expected = new java.util.HashSet<Integer>(a);
+        expected.removeAll(toJavaSet(small));
+        assertEquals(expected, toJavaSet(A.minus(small)));
+    }
+
+    public void testSetAlgebraOfLargeVersionsTiming() {
+        int n = 20 * N;
+        ImmutableHashSet<Integer> base = ImmutableHashSet.create();
+        for (int i = 0; i < n; i++)
+            base = base.add(i);
+        ImmutableHashSet<Integer> A = base.add(-1).remove(5);
+        ImmutableHashSet<Integer> B = base.add(-2).remove(7);
+        for (int k = 0; k < 1000; k++) {
+            assertEquals(n + 2, A.union(B).size());
+            assertEquals(n - 2, A.intersection(B).size());
+            assertEquals(2, A.minus(B).size());
+            assertFalse(A.isSubsetOf(B));
+        }
+    }
+
+    static java.util.HashSet<Integer> toJavaSet(Seq<Integer> seq) {
+        java.util.HashSet<Integer> result = new java.util.HashSet<Integer>();
+        ForwardIterator<Integer> iter = seq.iterator();
+        while (iter.hasNext())
+            assertTrue(result.add(iter.next()));
+        return result;
+    }
+
+    public void testDiffOfSetVersions() {
+        ImmutableHashSet<Integer> older = ImmutableHashSet.create();
+        for (int i = 0; i < N; i++)
+            older = older.add(i);
+        ImmutableHashSet<Integer> newer = older.remove(3).remove(N - 1).add(-5).add(N + 7);
+        Difference<Integer> diff = older.diff(newer);
+        assertEquals(new java.util.HashSet<Integer>(java.util.Arrays.asList(-5, N + 7)), toJavaSet(diff.added()));
+        assertEquals(new java.util.HashSet<Integer>(java.util.Arrays.asList(3, N - 1)), toJavaSet(diff.removed()));
+        assertTrue(diff.changed().isEmpty());
+        assertTrue(older.diff(older).isEmpty());
+
+        /*
+         * sets of different shape are compared element by element:
+         */
+        ImmutableHashSet<Integer> small = ImmutableHashSet.<Integer> create().add(3).add(-1);
+        diff = small.diff(newer);
+        assertEquals(N, toJavaSet(diff.added()).size());
+        assertEquals(new java.util.HashSet<Integer>(java.util.Arrays.asList(3, -1)), toJavaSet(diff.removed()));
+    }
+
+    public void testDiffOfMapVersions() {
+        ImmutableHashMap<Integer, String> older = ImmutableHashMap.create();
+        for (int i = 0; i < N; i++)
+            older = older.put(i, Integer.toString(i));
+        ImmutableHashMap<Integer, String> newer = older.put(5, "five").put(-1, "minus one").remove(8).put(9, "9");
+        Difference<Pair<Integer, String>> diff = older.diff(newer);
+        assertEquals("[(-1 . minus one)]", diff.added().toString());
+        assertEquals("[(8 . 8)]", diff.removed().toString());
+        assertEquals("[(5 . five)]", diff.changed().toString());
+        assertTrue(older.diff(older).isEmpty());
+        assertEquals("[(5 . 5)]", newer.diff(older).changed().toString());
+    }
+
+    public void testDiffOfLargeMapVersionsTiming() {
+        int n = 20 * N;
+        ImmutableHashMap<Integer, Integer> older = ImmutableHashMap.create();
+        for (int i = 0; i < n; i++)
+            older = older.put(i, i);
+        ImmutableHashMap<Integer, Integer> newer = older;
+        for (int i = 0; i < 300; i++)
+            newer = newer.put(i * 101, -i);
+        for (int k = 0; k < 100; k++)
+            assertEquals(299, older.diff(newer).changed().size());
+    }
+
+    /*
+     * all keys fall into the same slot but have different hash codes
+     */
+    public void testAdversarialHashTiming() {
+        int capacity = 1000;
+        FixedSizeHashSet<SkewedHash> set = FixedSizeHashSet.create(capacity);
+        for (int i = 0; i < N; i++)
+            set = set.add(new SkewedHash(i, i * capacity));
+        assertEquals(N, set.size());
+        for (int k = 0; k < K; k++) {
+            for (int i = 0; i < N; i++)
+                assertTrue(set.contains(new SkewedHash(i, i * capacity)));
+        }
+        for (int i = 0; i < N; i++)
+            set = set.remove(new SkewedHash(i, i * capacity));
+        assertEquals(0, set.size());
+    }
+
     static public void testImmutableHashSet() {
         ImmutableHashSet<Integer> set = ImmutableHashSet.create();
         set = set.add(1);
@@ -411,4 +683,83 @@ public class HashTest extends TestCase {
         }
         assertEquals(0, map.size());
     }
+
+    public void testExpectedSizeAndGrowthPolicy() {
+        HashGrowthPolicy[] policies = { HashGrowthPolicy.standard, new HashGrowthPolicy(4, 0.5, 1),
+                new HashGrowthPolicy(2, 0.9, 8) };
+        Random rnd = new Random(41);
+        for (HashGrowthPolicy policy : policies) {
+            for (long expectedSize : new long[] { 0, 100, 5000 }) {
+                ImmutableHashSet<Integer> set = ImmutableHashSet.create(expectedSize, policy, expectedSize == 100);
+                assertSame(policy, set.growthPolicy());
+                java.util.HashSet<Integer> expected = new java.util.HashSet<Integer>();
+                for (int round = 0; round < 20000; round++) {
+                    int value = rnd.nextInt(3000);
+                    if (round > 10000 && rnd.nextInt(2) == 0) {
+                        set = set.remove(value);
+                        expected.remove(value);
+                    } else {
+                        set = set.add(value);
+                        expected.add(value);
+                    }
+                    assertEquals(expected.size(), set.size());
+                    assertEquals(expected.contains(value), set.contains(value));
+                }
+                assertEquals(expected, toJavaSet(set));
+                assertSame(policy, set.clear().growthPolicy());
+            }
+        }
+    }
+
+    public void testMigrationCursorAfterRemovals() {
+        ImmutableHashSet<Integer> set = ImmutableHashSet.create();
+        java.util.HashSet<Integer> expected = new java.util.HashSet<Integer>();
+        for (int i = 0; i < 3 * N; i++) {
+            set = set.add(i);
+            expected.add(i);
+            if (i % 5 == 0) {
+                set = set.remove(i / 2);
+                expected.remove(i / 2);
+            }
+        }
+        assertEquals(expected, toJavaSet(set));
+    }
+
+    /*
+     * adds the numbers 0..n-1 to the set.
+     */
+    static ImmutableHashSet<Integer> insertAll(ImmutableHashSet<Integer> set, int n) {
+        for (int i = 0; i < n; i++)
+            set = set.add(i);
+        assertEquals(n, set.size());
+        return set;
+    }
+
+    public void testInsertDuringGrowthTiming() {
+        insertAll(ImmutableHashSet.<Integer> create(), 20 * N);
+    }
+
+    public void testInsertWithLargeBudgetTiming() {
+        insertAll(ImmutableHashSet.create(0, new HashGrowthPolicy(24, 0.3, 16), false), 20 * N);
+    }
+
+    public void testInsertPresizedTiming() {
+        insertAll(ImmutableHashSet.<Integer> create(20 * N), 20 * N);
+    }
+
+    public void testPresizedSetDoesNotMigrate() {
+        for (int n : new int[] { 1, 100, 5000, 20 * N }) {
+            ImmutableHashSet<Integer> empty = ImmutableHashSet.create(n);
+            ImmutableHashSet<Integer> set = empty;
+            for (int i = 0; i < n; i++) {
+                set = set.add(i);
+                // no second table is allocated, so the tables keep their capacities:
+                assertTrue("migration at size " + set.size(), set.hasSameShape(empty));
+            }
+            assertEquals(n, set.size());
+        }
+        // without an expected size, the set grows by migrating:
+        ImmutableHashSet<Integer> empty = ImmutableHashSet.create();
+        assertFalse(insertAll(empty, 5000).hasSameShape(empty));
+    }
 }
@@ -0,0 +1,124 @@
+package org.gendut.collection;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.gendut.func.Pair;
+import org.gendut.iterator.ForwardIterator;
+
+public class HashTrieMapTest extends TestCase {
+
+	static final int N = 100000;
+
+	public void testDefinition() {
+		HashTrieMap<String, String> ce = HashTrieMap.create();
+		ce = ce.put("color", "blue");
+		ce = ce.put("weight", "0.7kg");
+		ce = ce.put("pages", "967");
+		assertEquals("[(color . blue), (pages . 967), (weight . 0.7kg)]", ce.toString());
+		assertEquals("[color, pages, weight]", ce.keys().toString());
+		assertEquals("blue", ce.apply("color"));
+		assertNull(ce.apply("size"));
+		assertSame(ce, ce.put("color", "blue").remove("size"));
+	}
+
+	public void testAgainstJavaUtilHashMap() {
+		Random rnd = new Random(17);
+		HashTrieMap<Integer, Integer> map = HashTrieMap.create();
+		java.util.HashMap<Integer, Integer> expected = new java.util.HashMap<Integer, Integer>();
+		for (int round = 0; round < 50000; round++) {
+			int key = rnd.nextInt(5000);
+			if (rnd.nextInt(3) == 0) {
+				map = map.remove(key);
+				expected.remove(key);
+			} else {
+				Integer value = rnd.nextInt(4) == 0 ? null : rnd.nextInt();
+				map = map.put(key, value);
+				expected.put(key, value);
+			}
+			assertEquals(expected.size(), map.size());
+			assertEquals(expected.containsKey(key), map.containsKey(key));
+			assertEquals(expected.get(key), map.apply(key));
+		}
+		int cnt = 0;
+		ForwardIterator<Pair<Integer, Integer>> it = map.iterator();
+		while (it.hasNext()) {
+			Pair<Integer, Integer> p = it.next();
+			assertTrue(expected.containsKey(p.first()));
+			assertEquals(expected.get(p.first()), p.second());
+			assertTrue(map.contains(p));
+			cnt++;
+		}
+		assertEquals(expected.size(), cnt);
+	}
+
+	public void testCollidingKeys() {
+		HashTrieMap<HashTest.SkewedHash, Integer> map = HashTrieMap.create();
+		int n = 3000;
+		for (int i = 0; i < n; i++)
+			map = map.put(new HashTest.SkewedHash(i, i % 7), i);
+		assertEquals(n, map.size());
+		for (int i = 0; i < n; i++)
+			assertEquals(Integer.valueOf(i), map.apply(new HashTest.SkewedHash(i, i % 7)));
+		assertEquals(n, map.keys().size());
+		for (int i = 0; i < n; i += 2)
+			map = map.remove(new HashTest.SkewedHash(i, i % 7));
+		assertEquals(n / 2, map.size());
+		for (int i = 0; i < n; i++)
+			assertEquals(i % 2 == 1, map.containsKey(new HashTest.SkewedHash(i, i % 7)));
+	}
+
+	public void testUniqueShape() {
+		HashTrieMap<Integer, Integer> A = HashTrieMap.create();
+		HashTrieMap<Integer, Integer> B = HashTrieMap.create();
+		for (int i = 0; i < 2000; i++)
+			A = A.put(i, i);
+		for (int i = 1999; i >= 0; i--)
+			B = B.put(i, i);
+		for (int i = 0; i < 2000; i += 3) {
+			A = A.remove(i);
+			B = B.remove(i);
+		}
+		assertEquals(A, B);
+		assertEquals(A.toString(), B.toString());
+		for (int i = 0; i < 2000; i++)
+			A = A.remove(i);
+		assertEquals(0, A.size());
+		assertFalse(A.iterator().hasNext());
+	}
+
+	public void testOnlyPutHashTrieMapTiming() {
+		HashTrieMap<Integer, Integer> map = HashTrieMap.create();
+		for (int i = 0; i < N; i++)
+			map = map.put(i, i);
+		assertEquals(N, map.size());
+	}
+
+	public void testOnlyPutImmutableHashMapTiming() {
+		ImmutableHashMap<Integer, Integer> map = ImmutableHashMap.create();
+		for (int i = 0; i < N; i++)
+			map = map.put(i, i);
+		assertEquals(N, map.size());
+	}
+
+	public void testLookupHashTrieMapTiming() {
+		HashTrieMap<Integer, Integer> map = HashTrieMap.create();
+		for (int i = 0; i < N; i++)
+			map = map.put(i, i);
+		for (int k = 0; k < 10; k++) {
+			for (int i = 0; i < N; i++)
+				assertEquals(i, (int) map.apply(i));
+		}
+	}
+
+	public void testLookupImmutableHashMapTiming() {
+		ImmutableHashMap<Integer, Integer> map = ImmutableHashMap.create();
+		for (int i = 0; i < N; i++)
+			map = map.put(i, i);
+		for (int k = 0; k < 10; k++) {
+			for (int i = 0; i < N; i++)
+				assertEquals(i, (int) map.apply(i));
+		}
+	}
+}
@@ -2,8 +2,12 @@ package org.gendut.collection;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeMap;
 
 import org.gendut.collection.ImmutableArray;
+import org.gendut.collection.mutable.ExtendibleArray;
 import org.gendut.iterator.ForwardIterator;
 
 import junit.framework.TestCase;
@@ -129,4 +133,212 @@ public class ImmutableArrayBaseTest extends TestCase {
 		differences = A.differentPositions(B);
 		assertEquals("[0, 120, 9125]", differences.toString());
 	}
+
+	public void testBuilder() {
+		int[] sizes = { 1, 2, 15, 16, 17, 255, 256, 257, 4096, 4097, N };
+		for (int size : sizes) {
+			for (int step = 1; step <= 300; step = step * 7) {
+				ImmutableArray<Integer> expected = ImmutableArray.create(size);
+				ImmutableArray.Builder<Integer> builder = ImmutableArray.builder(size);
+				for (int i = 0; i < size; i++) {
+					Integer e = (i % step == 0) ? i : null;
+					expected = expected.set(i, e);
+					builder.add(e);
+				}
+				ImmutableArray<Integer> built = builder.build();
+				assertEquals(expected.debug(), built.debug());
+				assertEquals(expected, built);
+			}
+		}
+	}
+
+	public void testBuilderWithTrailingNulls() {
+		ImmutableArray<Integer> expected = ImmutableArray.create(N);
+		ImmutableArray.Builder<Integer> builder = ImmutableArray.builder(N);
+		for (int i = 0; i < 300; i++) {
+			expected = expected.set(i, i);
+			builder.add(i);
+		}
+		ImmutableArray<Integer> built = builder.build();
+		assertEquals(N, built.size());
+		assertEquals(expected.debug(), built.debug());
+		assertTrue(expected.differentPositions(built).isEmpty());
+
+		assertEquals(0, ImmutableArray.builder(0).build().size());
+		assertEquals(ImmutableArray.create(N).debug(), ImmutableArray.builder(N).build().debug());
+	}
+
+	public void testFromIterator() {
+		ExtendibleArray<Integer> list = new ExtendibleArray<Integer>();
+		for (int i = 0; i < N; i++)
+			list.add(i);
+		ImmutableArray<Integer> array = ImmutableArray.fromIterator(list.iterator());
+		assertEquals(N, array.size());
+		for (int i = 0; i < N; i++)
+			assertEquals(i, (int) array.get(i));
+		assertEquals(array.debug(), ImmutableArray.fromCollection(list.asConstant()).debug());
+		assertEquals(array.debug(), ImmutableArray.fromArray(list.toArray()).debug());
+
+		ImmutableArray.Builder<Integer> builder = ImmutableArray.builder(2);
+		builder.add(1).add(2);
+		try {
+			builder.add(3);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	public void testSetAll() {
+		Random rnd = new Random(7);
+		int[] sizes = { 1, 16, 17, 300, N };
+		for (int size : sizes) {
+			ImmutableArray<Integer> expected = ImmutableArray.create(size);
+			ImmutableArray<Integer> array = expected;
+			for (int round = 0; round < 20; round++) {
+				int k = rnd.nextInt(100);
+				long[] positions = new long[k];
+				Integer[] values = new Integer[k];
+				for (int i = 0; i < k; i++) {
+					positions[i] = rnd.nextInt(size);
+					values[i] = rnd.nextInt(4) == 0 ? null : rnd.nextInt();
+					expected = expected.set(positions[i], values[i]);
+				}
+				array = array.setAll(positions, values);
+				assertEquals(expected.debug(), array.debug());
+			}
+		}
+	}
+
+	public void testSetAllSorted() {
+		ImmutableArray<Integer> array = ImmutableArray.create(N);
+		long[] positions = new long[N];
+		Integer[] values = new Integer[N];
+		for (int i = 0; i < N; i++) {
+			positions[i] = i;
+			values[i] = i;
+		}
+		ImmutableArray<Integer> full = array.setAll(positions, values);
+		for (int i = 0; i < N; i++)
+			assertEquals(i, (int) full.get(i));
+		ImmutableArray<Integer> empty = full.setAll(positions, new Integer[N]);
+		assertEquals(array.debug(), empty.debug());
+
+		try {
+			array.setAll(new long[] { N }, new Integer[] { 1 });
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+		try {
+			array.setAll(new long[] { 1, 2 }, new Integer[] { 1 });
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testNonIdenticalPlaces() {
+		int N = 10000;
+		ImmutableArray<BigInteger> A = ImmutableArray.create(N);
+		for (int i = 0; i < N / 2; i++) {
+			A = A.set(i, BigInteger.valueOf(i));
+		}
+		ImmutableArray<BigInteger> B = A;
+		assertTrue(A.differences(B).isEmpty());
+
+		B = B.set(120, BigInteger.valueOf(0));
+		B = B.set(9125, BigInteger.valueOf(0));
+		B = B.set(17, A.get(17));
+		assertEquals("[120, 9125]", A.differences(B).toString());
+
+		B = B.set(0, BigInteger.valueOf(4));
+		assertEquals("[0, 120, 9125]", A.differences(B).toString());
+		assertEquals("[0, 120, 9125]", B.differences(A).toString());
+
+		ImmutableArray<BigInteger> C = ImmutableArray.create(N);
+		assertEquals(N / 2, Collections.size(A.differences(C)));
+		assertEquals(A.differentPositions(C).toString(), A.differences(C).toString());
+	}
+
+	public void testNonIdenticalPlacesOfVeryLargeTuple() {
+		ImmutableArray<Integer> A = ImmutableArray.create(start + N);
+		ImmutableArray<Integer> B = A.set(start + 1, 1).set(3, 3).set(start + N - 1, 2);
+		ImmutableArrayBase.NonIdenticalPlaces places = A.nonIdenticalPlaces(B);
+		assertEquals(3, places.nextPosition());
+		assertEquals(start + 1, places.nextPosition());
+		assertEquals(start + N - 1, places.nextPosition());
+		assertFalse(places.hasNext());
+	}
+
+	public void testNotNullIteratorOfSparseTuple() {
+		ImmutableArray<Integer> array = ImmutableArray.create(start + N);
+		Random rnd = new Random(5);
+		TreeMap<Long, Integer> expected = new TreeMap<Long, Integer>();
+		for (int i = 0; i < 500; i++) {
+			long pos = (long) (rnd.nextDouble() * (start + N));
+			array = array.set(pos, i);
+			expected.put(pos, i);
+		}
+		ForwardIterator<Integer> it = array.notNullIterator();
+		for (Integer e : expected.values()) {
+			assertTrue(it.hasNext());
+			assertEquals(e, it.next());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	public void testNotNullIteratorOfRange() {
+		int n = 5000;
+		ImmutableArray<Integer> array = ImmutableArray.create(n);
+		for (int i = 0; i < n; i += 7)
+			array = array.set(i, i);
+		int[][] ranges = { { 0, n }, { 1, 7 }, { 7, 8 }, { 100, 4097 }, { 300, 300 }, { 4096, n } };
+		for (int[] range : ranges) {
+			ForwardIterator<Integer> it = new ImmutableArrayBase.NotNullIterator<Integer>(array, range[0], range[1]);
+			for (int i = range[0]; i < range[1]; i++) {
+				if (i % 7 == 0)
+					assertEquals(Integer.valueOf(i), it.next());
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+
+	public void testNextPosition() {
+		int n = 5000;
+		ImmutableArray<Integer> array = ImmutableArray.create(n);
+		assertEquals(-1, array.nextPosition(0));
+		int[] positions = { 3, 15, 16, 300, 4095, 4999 };
+		for (int p : positions)
+			array = array.set(p, p);
+		int next = 0;
+		for (int i = 0; i < n; i++) {
+			if (i > positions[next])
+				next++;
+			assertEquals(positions[next], array.nextPosition(i));
+		}
+		assertEquals(-1, array.nextPosition(n));
+	}
+
+	public void testSpliterator() {
+		int n = 70000;
+		ImmutableArray<Integer> array = ImmutableArray.create(n);
+		for (int i = 0; i < n; i += 3)
+			array = array.set(i, i);
+		Spliterator<Integer> right = array.spliterator();
+		Spliterator<Integer> left = right.trySplit();
+		assertTrue(left.hasCharacteristics(Spliterator.SUBSIZED));
+		assertEquals(65536, left.estimateSize());
+		assertEquals(n - 65536, right.estimateSize());
+		final int[] position = new int[1];
+		left.forEachRemaining(e -> {
+			assertEquals(position[0] % 3 == 0 ? Integer.valueOf(position[0]) : null, e);
+			position[0]++;
+		});
+		assertEquals(65536, position[0]);
+
+		long expected = 0;
+		for (int i = 0; i < n; i += 3)
+			expected += i;
+		assertEquals(n, array.parallelStream().count());
+		assertEquals(expected, array.parallelStream().filter(e -> e != null).mapToLong(e -> e).sum());
+		assertNull(ImmutableArray.create(10).spliterator().trySplit());
+	}
 }
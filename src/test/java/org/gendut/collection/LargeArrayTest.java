@@ -1,9 +1,16 @@
 package org.gendut.collection;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
+import org.gendut.func.Pair;
+import org.gendut.iterator.ForwardIterator;
+
 public class LargeArrayTest extends TestCase {
 
     static final int N = 10;
@@ -74,5 +81,306 @@ public class LargeArrayTest extends TestCase {
       a = a.addMap(MonoidMaps.sumOfInteger);
       assertEquals(n, a.getImage(MonoidMaps.sumOfInteger));  
     }
-}
 
+    static public void testHugeCounts() {
+        LargeArray<Integer> a = new LargeArray<Integer>();
+        a = a.add(0).add(1).add(2).add(3);
+        // 4 * 2^62 elements, one more doubling than fits into long:
+        for (int i = 0; i < 62; i++)
+            a = a.catenate(a);
+        BigInteger n = BigInteger.valueOf(4).shiftLeft(62);
+        assertEquals(n, a.elementCount());
+        try {
+            a.size();
+            fail("size beyond long expected");
+        } catch (IndexOutOfBoundsException e) {
+        }
+        assertEquals(Integer.valueOf(3), a.get(n.subtract(BigInteger.ONE)));
+        assertEquals(Integer.valueOf(2), a.get(n.subtract(BigInteger.valueOf(2))));
+        assertEquals(Integer.valueOf(1), a.get(Long.MAX_VALUE - 2));
+        assertEquals(Integer.valueOf(1), a.iterator(n.subtract(BigInteger.valueOf(3))).next());
+        a = a.replaceAt(n.subtract(BigInteger.ONE), 9);
+        assertEquals(Integer.valueOf(9), a.get(n.subtract(BigInteger.ONE)));
+        assertEquals(Integer.valueOf(3), a.get(3));
+    }
+
+    static public void testRandomAccessTiming() {
+        LargeArray<Integer> a = new LargeArray<Integer>();
+        int n = 1 << 16;
+        for (int i = 0; i < n; i++)
+            a = a.add(i);
+        long sum = 0;
+        for (int k = 0; k < 20; k++) {
+            for (int i = 0; i < n; i++)
+                sum += a.get(i);
+        }
+        assertEquals(20L * n * (n - 1) / 2, sum);
+    }
+
+    static List<Integer> toList(LargeArray<Integer> a) {
+        List<Integer> list = new ArrayList<Integer>();
+        ForwardIterator<Integer> it = a.iterator();
+        while (it.hasNext())
+            list.add(it.next());
+        return list;
+    }
+
+    static public void testSubArrayRemoveAndSplit() {
+        Random rnd = new Random(5);
+        LargeArray<Integer> a = new LargeArray<Integer>();
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 300; i++) {
+            a = a.add(i);
+            expected.add(i);
+        }
+        for (int round = 0; round < 200; round++) {
+            int n = expected.size();
+            int start = rnd.nextInt(n + 1);
+            int end = start + rnd.nextInt(n - start + 1);
+            assertEquals(expected.subList(start, end), toList(a.subArray(start, end)));
+            assertEquals(expected.subList(start, end),
+                    toList(a.subArray(BigInteger.valueOf(start), BigInteger.valueOf(end))));
+            Pair<LargeArray<Integer>, LargeArray<Integer>> halves = a.splitAt(start);
+            assertEquals(expected.subList(0, start), toList(halves.first()));
+            assertEquals(expected.subList(start, n), toList(halves.second()));
+            if (n > 1) {
+                int pos = rnd.nextInt(n);
+                a = a.removeAt(pos);
+                expected.remove(pos);
+                assertEquals(expected, toList(a));
+            }
+        }
+        try {
+            a.subArray(2, 1);
+            fail("invalid range expected");
+        } catch (IndexOutOfBoundsException e) {
+        }
+        try {
+            a.removeAt(a.size());
+            fail("invalid position expected");
+        } catch (IndexOutOfBoundsException e) {
+        }
+    }
+
+    static public void testRemoveElement() {
+        LargeArray<Integer> a = new LargeArray<Integer>();
+        a = a.add(1).add(2).add(3).add(2);
+        assertEquals("[1, 3, 2]", a.remove(2).toString());
+        assertSame(a, a.remove(5));
+        assertEquals("[]", a.remove(1).remove(2).remove(3).remove(2).toString());
+    }
+
+    static public void testImagesAreMaintained() {
+        LargeArray<Integer> a = new LargeArray<Integer>();
+        for (int i = 1; i <= 100; i++)
+            a = a.add(i);
+        a = a.addMap(MonoidMaps.sumOfInteger);
+        assertEquals(Integer.valueOf(5050), a.getImage(MonoidMaps.sumOfInteger));
+        assertEquals(Integer.valueOf(5150), a.add(100).getImage(MonoidMaps.sumOfInteger));
+        assertEquals(Integer.valueOf(5049), a.removeAt(0).getImage(MonoidMaps.sumOfInteger));
+        assertEquals(Integer.valueOf(55), a.subArray(0, 10).getImage(MonoidMaps.sumOfInteger));
+        assertEquals(Integer.valueOf(5045), a.remove(5).getImage(MonoidMaps.sumOfInteger));
+        assertEquals(Integer.valueOf(1275), a.splitAt(50).first().getImage(MonoidMaps.sumOfInteger));
+        assertEquals(Integer.valueOf(3775), a.splitAt(50).second().getImage(MonoidMaps.sumOfInteger));
+    }
+
+    /*
+     * builds an array of more than 10M elements by catenating it with itself, the
+     * subtrees are shared.
+     */
+    static LargeArray<Integer> hugeArray() {
+        LargeArray<Integer> a = new LargeArray<Integer>();
+        for (int i = 0; i < 10; i++)
+            a = a.add(i);
+        while (a.size() < 10000000)
+            a = a.catenate(a);
+        return a;
+    }
+
+    static public void testEditTenMillionElementsTiming() {
+        LargeArray<Integer> a = hugeArray();
+        long n = a.size();
+        Random rnd = new Random(3);
+        for (int round = 0; round < 10000; round++) {
+            long pos = (long) (rnd.nextDouble() * a.size());
+            a = a.removeAt(pos);
+            Pair<LargeArray<Integer>, LargeArray<Integer>> halves = a.splitAt(pos);
+            assertEquals(a.size(), halves.first().size() + halves.second().size());
+            LargeArray<Integer> slice = a.subArray(pos / 2, pos);
+            assertEquals(pos - pos / 2, slice.size());
+        }
+        assertEquals(n - 10000, a.size());
+    }
+
+    static final class CountingSum implements MonoidMap<Integer, Integer> {
+        int calls = 0;
+
+        public Integer zero() {
+            return 0;
+        }
+
+        public Integer map(Integer a) {
+            calls++;
+            return a;
+        }
+
+        public Integer add(Integer x, Integer y) {
+            calls++;
+            return x + y;
+        }
+    }
+
+    static public void testImagesAreUpdatedAlongThePath() {
+        LargeArray<Integer> a = new LargeArray<Integer>();
+        int n = 1 << 14;
+        for (int i = 0; i < n; i++)
+            a = a.add(i);
+        CountingSum sum = new CountingSum();
+        a = a.addMap(sum);
+        int expected = n * (n - 1) / 2;
+        assertEquals(Integer.valueOf(expected), a.getImage(sum));
+        for (int round = 0; round < 100; round++) {
+            sum.calls = 0;
+            a = a.replaceAt(round * 97, 0).insertAt(round * 89, 1).removeAt(round * 101);
+            expected = toList(a).stream().mapToInt(Integer::intValue).sum();
+            assertEquals(Integer.valueOf(expected), a.getImage(sum));
+            // three updates along paths of length O(log n):
+            assertTrue("calls: " + sum.calls, sum.calls < 500);
+        }
+        sum.calls = 0;
+        LargeArray<Integer> b = a.catenate(a);
+        assertEquals(Integer.valueOf(2 * expected), b.getImage(sum));
+        assertTrue(sum.calls < 100);
+    }
+
+    static public void testImagesOfOtherMapsAreNotCached() {
+        LargeArray<Integer> a = new LargeArray<Integer>();
+        int n = 1 << 12;
+        for (int i = 0; i < n; i++)
+            a = a.add(i);
+        CountingSum sum = new CountingSum();
+        int expected = n * (n - 1) / 2;
+        for (int round = 0; round < 3; round++) {
+            sum.calls = 0;
+            assertEquals(Integer.valueOf(expected), a.getImage(sum));
+            assertEquals(2 * n - 1, sum.calls);
+        }
+        for (int round = 0; round < 3; round++) {
+            sum.calls = 0;
+            assertEquals(Integer.valueOf(expected - 1), a.getImage(sum, 2, n));
+            assertTrue("calls: " + sum.calls, sum.calls >= n - 2);
+        }
+        // registering the map caches its images:
+        a = a.addMap(sum);
+        sum.calls = 0;
+        assertEquals(Integer.valueOf(expected - 1), a.getImage(sum, 2, n));
+        assertTrue("calls: " + sum.calls, sum.calls < 100);
+    }
+
+    static public void testRangeImageOfHugeArray() {
+        LargeArray<Integer> a = new LargeArray<Integer>();
+        a = a.add(1).add(2).add(3).add(4);
+        a = a.addMap(MonoidMaps.sumOfInteger);
+        // 4 * 2^62 elements as in testHugeCounts, so ranges are BigIntegers:
+        for (int i = 0; i < 62; i++)
+            a = a.catenate(a);
+        BigInteger n = BigInteger.valueOf(4).shiftLeft(62);
+        assertEquals(n, a.elementCount());
+        // four elements with sum 10 per block:
+        assertEquals(Integer.valueOf(10 * 1000 + 1 + 2), a.getImage(MonoidMaps.sumOfInteger, 0, 4002));
+        assertEquals(Integer.valueOf(4 + 10 + 1), a.getImage(MonoidMaps.sumOfInteger, BigInteger.valueOf(3),
+                BigInteger.valueOf(9)));
+        assertEquals(Integer.valueOf(0), a.getImage(MonoidMaps.sumOfInteger, 7, 7));
+        assertEquals(Integer.valueOf(3 + 4 + 10), a.getImage(MonoidMaps.sumOfInteger,
+                n.subtract(BigInteger.valueOf(6)), n));
+        assertEquals(Integer.valueOf(10 << 18), a.getImage(MonoidMaps.sumOfInteger,
+                n.subtract(BigInteger.ONE.shiftLeft(20)), n));
+        // across the range of long, Long.MAX_VALUE is the last of a block:
+        BigInteger max = BigInteger.valueOf(Long.MAX_VALUE);
+        assertEquals(Integer.valueOf(3 + 4 + 1), a.getImage(MonoidMaps.sumOfInteger,
+                max.subtract(BigInteger.ONE), max.add(BigInteger.valueOf(2))));
+        assertEquals(Integer.valueOf(4 + 10 * 1000), a.getImage(MonoidMaps.sumOfInteger, max,
+                max.add(BigInteger.valueOf(4001))));
+    }
+
+    static public void testOperationsWithExplicitStack() {
+        int depth = CatenableArrayTree.maxRecursionDepth;
+        CatenableArrayTree.maxRecursionDepth = 2;
+        try {
+            Random rnd = new Random(17);
+            List<Integer> expected = new ArrayList<Integer>();
+            LargeArray<Integer> a = new LargeArray<Integer>().addMap(MonoidMaps.sumOfInteger);
+            for (int i = 0; i < 300; i++) {
+                a = a.add(i);
+                expected.add(i);
+            }
+            for (int round = 0; round < 300; round++) {
+                int pos = rnd.nextInt(expected.size());
+                int x = rnd.nextInt(1000);
+                switch (round % 3) {
+                case 0:
+                    a = a.insertAt(pos, x);
+                    expected.add(pos, x);
+                    break;
+                case 1:
+                    a = a.replaceAt(pos, x);
+                    expected.set(pos, x);
+                    break;
+                default:
+                    a = a.removeAt(pos);
+                    expected.remove(pos);
+                }
+            }
+            assertEquals(expected, toList(a));
+            for (int round = 0; round < 100; round++) {
+                int start = rnd.nextInt(expected.size());
+                int end = start + rnd.nextInt(expected.size() - start + 1);
+                List<Integer> range = expected.subList(start, end);
+                assertEquals(range, toList(a.subArray(start, end)));
+                int sum = range.stream().mapToInt(Integer::intValue).sum();
+                assertEquals(Integer.valueOf(sum), a.getImage(MonoidMaps.sumOfInteger, start, end));
+            }
+            LargeArray<Integer> b = a.catenate(a.subArray(0, 5)).catenate(a);
+            List<Integer> expectedB = new ArrayList<Integer>(expected);
+            expectedB.addAll(expected.subList(0, 5));
+            expectedB.addAll(expected);
+            assertEquals(expectedB, toList(b));
+            a = a.add(-1);
+            expected.add(-1);
+            Integer first = expected.get(0);
+            assertEquals(expected.indexOf(first), a.firstOf(first).intValue());
+            assertEquals(expected.lastIndexOf(first), a.lastOf(first).intValue());
+            assertEquals(expected.size() - 1, a.firstOf(-1).intValue());
+            assertEquals(-1, a.firstOf(-2).intValue());
+        } finally {
+            CatenableArrayTree.maxRecursionDepth = depth;
+        }
+    }
+
+    static public void testTreeHigherThanRecursionDepth() {
+        LargeArray<Integer> a = new LargeArray<Integer>();
+        a = a.add(0).add(1).add(2).add(3).addMap(MonoidMaps.sumOfInteger);
+        // the height grows by one with each doubling:
+        for (int i = 0; i < 70; i++)
+            a = a.catenate(a);
+        assertTrue(CatenableArrayTree.isTall(a.root));
+        BigInteger n = BigInteger.valueOf(4).shiftLeft(70);
+        BigInteger last = n.subtract(BigInteger.ONE);
+        a = a.replaceAt(last, 9).insertAt(BigInteger.ONE, 7).removeAt(BigInteger.ZERO);
+        assertEquals(n, a.elementCount());
+        assertEquals(Integer.valueOf(7), a.get(0));
+        assertEquals(Integer.valueOf(1), a.get(1));
+        assertEquals(Integer.valueOf(9), a.get(last));
+        assertEquals(last, a.firstOf(9));
+        assertEquals(BigInteger.ZERO, a.lastOf(7));
+        assertEquals(Integer.valueOf(7 + 1 + 2 + 3 + 0), a.getImage(MonoidMaps.sumOfInteger, 0, 5));
+        assertEquals(Integer.valueOf(2 + 9),
+                a.getImage(MonoidMaps.sumOfInteger, last.subtract(BigInteger.ONE), n));
+        LargeArray<Integer> b = a.subArray(last.subtract(BigInteger.valueOf(5)), n);
+        assertEquals(Arrays.asList(2, 3, 0, 1, 2, 9), toList(b));
+        LargeArray<Integer> c = a.subArray(BigInteger.ONE, last);
+        assertEquals(n.subtract(BigInteger.valueOf(2)), c.elementCount());
+        assertEquals(Integer.valueOf(1), c.get(0));
+        assertEquals(Integer.valueOf(2), c.get(c.elementCount().subtract(BigInteger.ONE)));
+    }
+}
@@ -0,0 +1,143 @@
+package org.gendut.collection;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.gendut.iterator.ForwardIterator;
+
+/**
+ * Compares the field layout and the compact (bitmap) layout of the inner nodes
+ * of immutable arrays. The timing tests run the same operations on both
+ * layouts.
+ */
+public class NodeLayoutTest extends TestCase {
+	static final int N = 100000;
+
+	static ImmutableArray<Integer> fill(boolean compact, int n, int step) {
+		ImmutableArray<Integer> array = ImmutableArray.create(n, compact);
+		for (int i = 0; i < n; i += step)
+			array = array.set(i, i);
+		return array;
+	}
+
+	public void testSameBehavior() {
+		Random rnd = new Random(11);
+		int n = 5000;
+		ImmutableArray<Integer> fields = ImmutableArray.create(n);
+		ImmutableArray<Integer> compact = ImmutableArray.create(n, true);
+		for (int round = 0; round < 20000; round++) {
+			int i = rnd.nextInt(n);
+			Integer e = rnd.nextInt(3) == 0 ? null : i;
+			fields = fields.set(i, e);
+			compact = compact.set(i, e);
+			assertEquals(fields.get(i), compact.get(i));
+		}
+		assertEquals(fields, compact);
+		assertEquals(fields.firstElement(), compact.firstElement());
+
+		ForwardIterator<Integer> it1 = fields.notNullIterator();
+		ForwardIterator<Integer> it2 = compact.notNullIterator();
+		while (it1.hasNext()) {
+			assertTrue(it2.hasNext());
+			assertEquals(it1.next(), it2.next());
+		}
+		assertFalse(it2.hasNext());
+
+		ImmutableArray<Integer> compact2 = compact.set(17, -1).set(4000, null).set(4001, -2);
+		ImmutableArray<Integer> fields2 = fields.set(17, -1).set(4000, null).set(4001, -2);
+		assertEquals(fields.differentPositions(fields2).toString(), compact.differentPositions(compact2).toString());
+		assertEquals(fields.differences(fields2).toString(), compact.differences(compact2).toString());
+
+		long[] positions = { 3, 4999, 2048, 3 };
+		Integer[] values = { 1, 2, null, 4 };
+		assertEquals(fields.setAll(positions, values), compact.setAll(positions, values));
+	}
+
+	public void testCompactHashSet() {
+		FixedSizeHashSet<Integer> set = FixedSizeHashSet.create(2 * N, true);
+		for (int i = 0; i < N; i += 3)
+			set = set.add(i);
+		for (int i = 0; i < N; i++)
+			assertEquals(i % 3 == 0, set.contains(i));
+		assertEquals(Integer.valueOf(0), set.firstElement());
+		int cnt = 0;
+		ForwardIterator<Integer> it = set.iterator();
+		while (it.hasNext()) {
+			assertEquals(0, it.next() % 3);
+			cnt++;
+		}
+		assertEquals(set.size(), cnt);
+		for (int i = 0; i < N; i += 3)
+			set = set.remove(i);
+		assertEquals(0, set.size());
+		assertTrue(set.clear().hasCompactNodes());
+	}
+
+	static void timeGet(boolean compact) {
+		ImmutableArray<Integer> array = fill(compact, N, 1);
+		long sum = 0;
+		for (int k = 0; k < 5; k++)
+			for (int i = 0; i < N; i++)
+				sum += array.get(i);
+		assertTrue(sum > 0);
+	}
+
+	static void timeIteration(boolean compact) {
+		ImmutableArray<Integer> array = fill(compact, N, 7);
+		for (int k = 0; k < 5; k++) {
+			ForwardIterator<Integer> it = array.notNullIterator();
+			while (it.hasNext())
+				it.next();
+		}
+	}
+
+	static void timeDiff(boolean compact) {
+		ImmutableArray<Integer> array = fill(compact, N, 1);
+		ImmutableArray<Integer> other = array;
+		for (int i = 0; i < N; i += 101)
+			other = other.set(i, -i);
+		for (int k = 0; k < 20; k++)
+			assertFalse(array.differences(other).isEmpty());
+	}
+
+	public void testFieldLayoutGetTiming() {
+		timeGet(false);
+	}
+
+	public void testCompactLayoutGetTiming() {
+		timeGet(true);
+	}
+
+	public void testFieldLayoutSetTiming() {
+		fill(false, N, 1);
+	}
+
+	public void testCompactLayoutSetTiming() {
+		fill(true, N, 1);
+	}
+
+	public void testFieldLayoutSparseSetTiming() {
+		fill(false, 50 * N, 97);
+	}
+
+	public void testCompactLayoutSparseSetTiming() {
+		fill(true, 50 * N, 97);
+	}
+
+	public void testFieldLayoutIterationTiming() {
+		timeIteration(false);
+	}
+
+	public void testCompactLayoutIterationTiming() {
+		timeIteration(true);
+	}
+
+	public void testFieldLayoutDiffTiming() {
+		timeDiff(false);
+	}
+
+	public void testCompactLayoutDiffTiming() {
+		timeDiff(true);
+	}
+}
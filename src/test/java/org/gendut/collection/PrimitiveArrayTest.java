@@ -0,0 +1,77 @@
+package org.gendut.collection;
+
+import java.util.PrimitiveIterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class PrimitiveArrayTest extends TestCase {
+	static int N = 2700;
+
+	public void testLongArray() {
+		LongImmutableArray array = LongImmutableArray.create(N);
+		assertEquals(N, array.size());
+		for (int i = 0; i < N; i++) {
+			assertEquals(0, array.getLong(i));
+			array = array.set(i, 3L * i);
+			assertEquals(3L * i, array.getLong(i));
+		}
+		for (int i = 0; i < N; i++)
+			assertEquals(3L * i, array.getLong(i));
+
+		PrimitiveIterator.OfLong it = array.longIterator();
+		for (int i = 0; i < N; i++)
+			assertEquals(3L * i, it.nextLong());
+		assertFalse(it.hasNext());
+
+		for (int i = 0; i < N; i++)
+			array = array.set(i, 0);
+		assertEquals(LongImmutableArray.create(N).chunks.debug(), array.chunks.debug());
+	}
+
+	public void testIntArray() {
+		int[] values = new int[N];
+		Random rnd = new Random(3);
+		for (int i = 0; i < N; i++)
+			values[i] = rnd.nextInt(3) == 0 ? rnd.nextInt() : 0;
+		IntImmutableArray array = IntImmutableArray.fromArray(values);
+		IntImmutableArray expected = IntImmutableArray.create(N);
+		for (int i = 0; i < N; i++)
+			expected = expected.set(i, values[i]);
+		assertTrue(expected.differentPositions(array).isEmpty());
+		assertEquals(expected, array);
+		assertEquals(N, array.toIntArray().length);
+		for (int i = 0; i < N; i++)
+			assertEquals(values[i], array.toIntArray()[i]);
+		assertEquals(0, IntImmutableArray.fromArray(new int[0]).size());
+	}
+
+	public void testDoubleArray() {
+		DoubleImmutableArray array = DoubleImmutableArray.create(40);
+		assertSame(array, array.set(5, 0.0));
+		array = array.set(5, -0.0).set(6, Double.NaN);
+		assertEquals(-0.0, array.getDouble(5));
+		assertTrue(Double.isNaN(array.getDouble(6)));
+		assertSame(array, array.set(6, Double.NaN));
+		assertEquals("[5, 6]", DoubleImmutableArray.create(40).differentPositions(array).toString());
+	}
+
+	public void testDifferentPositions() {
+		LongImmutableArray A = LongImmutableArray.create(10000);
+		for (int i = 0; i < 5000; i++)
+			A = A.set(i, i);
+		LongImmutableArray B = A;
+		assertTrue(A.differentPositions(B).isEmpty());
+
+		B = B.set(120, 0).set(9125, 7).set(17, 17);
+		assertEquals("[120, 9125]", A.differentPositions(B).toString());
+		B = B.set(0, 4);
+		assertEquals("[0, 120, 9125]", A.differentPositions(B).toString());
+	}
+
+	public void testOnlyFillLongArraySequentialTiming() {
+		LongImmutableArray array = LongImmutableArray.create(100000);
+		for (int i = 0; i < 100000; i++)
+			array = array.set(i, i);
+	}
+}
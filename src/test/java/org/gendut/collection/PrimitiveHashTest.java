@@ -0,0 +1,137 @@
+package org.gendut.collection;
+
+import java.util.PrimitiveIterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class PrimitiveHashTest extends TestCase {
+
+	static final int N = 100000;
+
+	public void testLongHashSetDefinition() {
+		LongHashSet set = LongHashSet.create();
+		set = set.add(3).add(-1).add(Long.MAX_VALUE).add(3);
+		assertEquals(3, set.size());
+		assertEquals("[-1, 3, " + Long.MAX_VALUE + "]", set.toString());
+		assertTrue(set.contains(-1));
+		assertFalse(set.contains(4));
+		assertSame(set, set.add(-1).remove(4));
+		assertEquals(LongHashSet.fromArray(new long[] { Long.MAX_VALUE, -1, 3 }), set);
+		assertTrue(set.remove(3).remove(-1).remove(Long.MAX_VALUE).isEmpty());
+	}
+
+	public void testLongHashSetAgainstJavaUtilHashSet() {
+		Random rnd = new Random(23);
+		LongHashSet set = LongHashSet.create();
+		java.util.HashSet<Long> expected = new java.util.HashSet<Long>();
+		for (int round = 0; round < 100000; round++) {
+			long value = rnd.nextInt(20000) * 0x100000001L;
+			if (rnd.nextInt(3) == 0) {
+				set = set.remove(value);
+				expected.remove(value);
+			} else {
+				set = set.add(value);
+				expected.add(value);
+			}
+			assertEquals(expected.size(), set.size());
+			assertEquals(expected.contains(value), set.contains(value));
+		}
+		int cnt = 0;
+		PrimitiveIterator.OfLong it = set.longIterator();
+		while (it.hasNext()) {
+			assertTrue(expected.contains(it.nextLong()));
+			cnt++;
+		}
+		assertEquals(expected.size(), cnt);
+		for (Long value : expected)
+			set = set.remove(value);
+		assertTrue(set.isEmpty());
+		assertFalse(set.longIterator().hasNext());
+	}
+
+	public void testLongLongHashMap() {
+		Random rnd = new Random(29);
+		LongLongHashMap map = LongLongHashMap.create();
+		java.util.HashMap<Long, Long> expected = new java.util.HashMap<Long, Long>();
+		for (int round = 0; round < 100000; round++) {
+			long key = rnd.nextInt(10000) - 5000;
+			if (rnd.nextInt(3) == 0) {
+				map = map.remove(key);
+				expected.remove(key);
+			} else {
+				long value = rnd.nextLong();
+				map = map.put(key, value);
+				expected.put(key, value);
+			}
+			assertEquals(expected.size(), map.size());
+			assertEquals(expected.containsKey(key), map.containsKey(key));
+			assertEquals(expected.containsKey(key) ? expected.get(key) : -7, map.getOrDefault(key, -7));
+		}
+		PrimitiveIterator.OfLong it = map.keyIterator();
+		int cnt = 0;
+		while (it.hasNext()) {
+			long key = it.nextLong();
+			assertEquals((long) expected.get(key), map.get(key));
+			cnt++;
+		}
+		assertEquals(expected.size(), cnt);
+		assertEquals("[(-2 . 4), (1 . 0)]", LongLongHashMap.create().put(1, 0).put(-2, 4).toString());
+	}
+
+	public void testIntObjectHashMap() {
+		Random rnd = new Random(31);
+		IntObjectHashMap<String> map = IntObjectHashMap.create();
+		java.util.HashMap<Integer, String> expected = new java.util.HashMap<Integer, String>();
+		for (int round = 0; round < 100000; round++) {
+			int key = rnd.nextInt();
+			key = (key >> 18) ^ (key & Integer.MIN_VALUE);
+			if (rnd.nextInt(3) == 0) {
+				map = map.remove(key);
+				expected.remove(key);
+			} else {
+				String value = rnd.nextInt(5) == 0 ? null : Integer.toString(rnd.nextInt(100));
+				map = map.put(key, value);
+				expected.put(key, value);
+			}
+			assertEquals(expected.size(), map.size());
+			assertEquals(expected.containsKey(key), map.containsKey(key));
+			assertEquals(expected.get(key), map.get(key));
+		}
+		PrimitiveIterator.OfInt it = map.keyIterator();
+		int cnt = 0;
+		while (it.hasNext()) {
+			int key = it.nextInt();
+			assertTrue(expected.containsKey(key));
+			assertEquals(expected.get(key), map.get(key));
+			cnt++;
+		}
+		assertEquals(expected.size(), cnt);
+		assertEquals("[(-5 . x), (2 . null)]", IntObjectHashMap.<String> create().put(2, null).put(-5, "x")
+				.toString());
+	}
+
+	public void testPutLongLongHashMapTiming() {
+		LongLongHashMap map = LongLongHashMap.create();
+		for (int i = 0; i < N; i++)
+			map = map.put(i, i);
+		long sum = 0;
+		for (int k = 0; k < 10; k++) {
+			for (int i = 0; i < N; i++)
+				sum += map.get(i);
+		}
+		assertEquals(10L * N * (N - 1) / 2, sum);
+	}
+
+	public void testPutBoxedImmutableHashMapTiming() {
+		ImmutableHashMap<Long, Long> map = ImmutableHashMap.create();
+		for (long i = 0; i < N; i++)
+			map = map.put(i, i);
+		long sum = 0;
+		for (int k = 0; k < 10; k++) {
+			for (long i = 0; i < N; i++)
+				sum += map.apply(i);
+		}
+		assertEquals(10L * N * (N - 1) / 2, sum);
+	}
+}
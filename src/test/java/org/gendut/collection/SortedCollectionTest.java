@@ -146,13 +146,27 @@ public class SortedCollectionTest extends TestCase {
           collection = collection.addMap(MonoidMaps.sumOfInteger);
           Integer sum = collection.getImage(MonoidMaps.sumOfInteger);
           assertEquals(Integer.valueOf(N*(N+1)/2), sum);
-          //TODO test fails, when fixed, continue with add and remove
-//          for (int i = 0; i < N; i++) {
-//            int x = i*2;
-//            collection = collection.add(x);
-//            sum = sum + x;
-//            assertEquals(sum, collection.getImage(MonoidMaps.sumOfInteger));
-//          }
+          for (int i = 0; i < N; i++) {
+            int x = i*2;
+            collection = collection.add(x);
+            sum = sum + x;
+            assertEquals(sum, collection.getImage(MonoidMaps.sumOfInteger));
+          }
+          for (int i = 0; i < N; i++) {
+            int x = i*2;
+            collection = collection.remove(x);
+            sum = sum - x;
+            assertEquals(sum, collection.getImage(MonoidMaps.sumOfInteger));
+          }
     }
 
+    public void testPositionsOfEqualElements() {
+        SortedCollection<Integer> c = SortedCollection.create(cmp);
+        c = c.add(1).add(3).add(3).add(3).add(5);
+        assertEquals(BigInteger.valueOf(1), c.firstOf(3));
+        assertEquals(BigInteger.valueOf(3), c.lastOf(3));
+        assertEquals(BigInteger.valueOf(-1), c.firstOf(4));
+        assertEquals(BigInteger.valueOf(-1), c.lastOf(6));
+        assertEquals("[3, 3, 5]", c.subArray(2, 5).toString());
+    }
 }
@@ -3,6 +3,9 @@ package org.gendut.collection;
 import java.util.Comparator;
 import java.util.Random;
 
+import org.gendut.func.Pair;
+import org.gendut.iterator.ForwardIterator;
+
 
 import junit.framework.TestCase;
 
@@ -85,4 +88,57 @@ public class SortedMapTest extends TestCase {
       assertEquals(mapHash, mapSorted);
     }
   }
-}
\ No newline at end of file
+
+  public void testBulkLoad() {
+    Stack<Pair<Integer, String>> entries = Stack.create();
+    entries = entries.push(Pair.create(3, "C")).push(Pair.create(1, "A"))
+        .push(Pair.create(2, "B")).push(Pair.create(1, "D"));
+    SortedMap<Integer, String> map = SortedMap.fromUnsorted(entries, cmp);
+    assertEquals(3, map.size());
+    assertEquals("A", map.apply(1));
+    assertEquals("C", map.apply(3));
+
+    @SuppressWarnings("unchecked")
+    Pair<Integer, String>[] sorted = new Pair[1000];
+    for (int i = 0; i < sorted.length; i++)
+      sorted[i] = Pair.create(i, Integer.toString(i));
+    map = SortedMap.fromSorted(ConstantArray.fromArray(sorted), cmp);
+    assertEquals(1000, map.size());
+    assertEquals("517", map.apply(517));
+    map = map.put(1000, "x").remove(0);
+    assertEquals("x", map.apply(1000));
+    assertFalse(map.containsKey(0));
+  }
+
+  public void testSetOperations() {
+    SortedMap<Integer, String> a = SortedMap.create(cmp);
+    a = a.put(1, "a1").put(2, "a2").put(3, "a3");
+    SortedMap<Integer, String> b = SortedMap.create(cmp);
+    b = b.put(2, "b2").put(3, "b3").put(4, "b4");
+    assertEquals("[(1 . a1), (2 . a2), (3 . a3), (4 . b4)]", a.union(b).toString());
+    assertEquals("[(2 . a2), (3 . a3)]", a.intersection(b).toString());
+    assertEquals("[(1 . a1)]", a.minus(b).toString());
+    assertEquals("[(4 . b4)]", b.minus(a).toString());
+  }
+
+  public void testNavigation() {
+    SortedMap<Integer, String> map = SortedMap.create(cmp);
+    for (int i = 0; i < 100; i++)
+      map = map.put(10 * i, "v" + i);
+    assertEquals(Pair.create(50, "v5"), map.floorEntry(55));
+    assertEquals(Pair.create(50, "v5"), map.floorEntry(50));
+    assertEquals(Pair.create(40, "v4"), map.lowerEntry(50));
+    assertEquals(Pair.create(60, "v6"), map.ceilingEntry(55));
+    assertEquals(Pair.create(60, "v6"), map.higherEntry(50));
+    assertNull(map.lowerEntry(0));
+    assertNull(map.higherEntry(990));
+    assertEquals(6, map.rank(55));
+    assertEquals(Pair.create(70, "v7"), map.select(7));
+    ForwardIterator<Pair<Integer, String>> it = map.iterator(15, 40);
+    assertEquals(Pair.create(20, "v2"), it.next());
+    assertEquals(Pair.create(30, "v3"), it.next());
+    assertFalse(it.hasNext());
+    assertEquals("[(20 . v2), (30 . v3)]", map.subMap(15, 40).toString());
+    assertEquals("v3", map.subMap(15, 40).apply(30));
+  }
+}
@@ -1,8 +1,11 @@
 package org.gendut.collection;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import junit.framework.TestCase;
@@ -169,6 +172,288 @@ public class SortedSetTest extends TestCase {
             assertEquals(expected, set.get(i));
           }
     }
-    
-    
+
+    public void testRangeImages() {
+        Random rnd = new Random(11);
+        SortedSet<Integer> set = SortedSet.create(cmp);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        set = set.addMap(MonoidMaps.sumOfInteger);
+        for (int i = 0; i < 2000; i++) {
+            int x = rnd.nextInt(5000);
+            set = set.add(x);
+            expected.add(x);
+        }
+        Integer[] elements = expected.toArray(new Integer[0]);
+        for (int round = 0; round < 500; round++) {
+            int start = rnd.nextInt(elements.length + 1);
+            int end = start + rnd.nextInt(elements.length - start + 1);
+            int sum = 0;
+            for (int i = start; i < end; i++)
+                sum += elements[i];
+            assertEquals(Integer.valueOf(sum), set.getImage(MonoidMaps.sumOfInteger, start, end));
+
+            int low = rnd.nextInt(5200) - 100;
+            int high = low + rnd.nextInt(1000);
+            sum = 0;
+            for (int x : expected.subSet(low, high))
+                sum += x;
+            assertEquals(Integer.valueOf(sum), set.getImageBetween(MonoidMaps.sumOfInteger, low, high));
+        }
+        assertEquals(Integer.valueOf(0), set.getImageBetween(MonoidMaps.sumOfInteger, 10, 5));
+        try {
+            set.getImage(MonoidMaps.sumOfInteger, 0, elements.length + 1);
+            fail("invalid range expected");
+        } catch (IndexOutOfBoundsException e) {
+        }
+    }
+
+    public void testInsertAndRemoveWithExplicitStack() {
+        int depth = CatenableArrayTree.maxRecursionDepth;
+        CatenableArrayTree.maxRecursionDepth = 2;
+        try {
+            Random rnd = new Random(5);
+            SortedSet<Integer> set = SortedSet.create(Comparator.naturalOrder());
+            TreeSet<Integer> expected = new TreeSet<Integer>();
+            for (int i = 0; i < 2000; i++) {
+                Integer x = rnd.nextInt(500);
+                if (rnd.nextInt(3) == 0) {
+                    set = set.remove(x);
+                    expected.remove(x);
+                } else {
+                    set = set.add(x);
+                    expected.add(x);
+                }
+            }
+            assertEquals(expected.toString(), set.toString());
+        } finally {
+            CatenableArrayTree.maxRecursionDepth = depth;
+        }
+    }
+
+    public void testBulkLoad() {
+        Integer[] sorted = new Integer[1000];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = 2 * i;
+        SortedSet<Integer> set = SortedSet.fromSorted(ConstantArray.fromArray(sorted), cmp);
+        SortedSet<Integer> added = SortedSet.create(cmp);
+        for (int i = 0; i < sorted.length; i++)
+            added = added.add(sorted[i]);
+        assertEquals(added.toString(), set.toString());
+        assertTrue(set.contains(998));
+        assertFalse(set.contains(999));
+        // the tree is balanced, so updates work as usual:
+        set = set.add(999).remove(0);
+        assertTrue(set.contains(999));
+        assertEquals(1000, set.size());
+
+        set = SortedSet.fromSorted(ConstantArray.fromArray(new Integer[] { 1, 1, 2, 3, 3, 3 }), cmp);
+        assertEquals("[1, 2, 3]", set.toString());
+        assertEquals(0, SortedSet.fromSorted(ConstantArray.fromArray(new Integer[0]), cmp).size());
+        try {
+            SortedSet.fromSorted(ConstantArray.fromArray(new Integer[] { 1, 3, 2 }), cmp);
+            fail("unsorted list accepted");
+        } catch (IllegalArgumentException e) {
+        }
+
+        Random rnd = new Random(3);
+        Stack<Integer> elements = Stack.create();
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        for (int i = 0; i < 5000; i++) {
+            int x = rnd.nextInt(3000);
+            elements = elements.push(x);
+            expected.add(x);
+        }
+        set = SortedSet.fromUnsorted(elements, cmp);
+        assertEquals(expected.toString(), set.toString());
+    }
+
+    SortedSet<Integer> randomSet(Random rnd, int n, int range, TreeSet<Integer> expected) {
+        Stack<Integer> elements = Stack.create();
+        for (int i = 0; i < n; i++) {
+            int x = rnd.nextInt(range);
+            elements = elements.push(x);
+            expected.add(x);
+        }
+        return SortedSet.fromUnsorted(elements, cmp);
+    }
+
+    public void testSetOperations() {
+        long threshold = CatenableArrayTree.parallelThreshold;
+        Random rnd = new Random(11);
+        try {
+            for (int round = 0; round < 40; round++) {
+                // every second round forks from the first level on:
+                CatenableArrayTree.parallelThreshold = (round % 2 == 0) ? threshold : 16;
+                TreeSet<Integer> expectedA = new TreeSet<Integer>();
+                TreeSet<Integer> expectedB = new TreeSet<Integer>();
+                SortedSet<Integer> a = randomSet(rnd, rnd.nextInt(2000), 3000, expectedA);
+                SortedSet<Integer> b = randomSet(rnd, rnd.nextInt(50 + round * round), 3000, expectedB);
+                TreeSet<Integer> union = new TreeSet<Integer>(expectedA);
+                union.addAll(expectedB);
+                TreeSet<Integer> intersection = new TreeSet<Integer>(expectedA);
+                intersection.retainAll(expectedB);
+                TreeSet<Integer> difference = new TreeSet<Integer>(expectedA);
+                difference.removeAll(expectedB);
+                assertEquals(union.toString(), a.union(b).toString());
+                assertEquals(union.toString(), b.union(a).toString());
+                assertEquals(intersection.toString(), a.intersection(b).toString());
+                assertEquals(intersection.toString(), b.intersection(a).toString());
+                assertEquals(difference.toString(), a.minus(b).toString());
+                // the result trees are balanced:
+                assertEquals(union.size(), a.union(b).add(-1).remove(-1).size());
+            }
+        } finally {
+            CatenableArrayTree.parallelThreshold = threshold;
+        }
+    }
+
+    public void testSetOperationsKeepElementsOfThisSet() {
+        Comparator<String> ignoreCase = String.CASE_INSENSITIVE_ORDER;
+        SortedSet<String> a = SortedSet.create(ignoreCase);
+        a = a.add("a").add("B").add("c");
+        SortedSet<String> b = SortedSet.create(ignoreCase);
+        b = b.add("A").add("b").add("D");
+        assertEquals("[a, B, c, D]", a.union(b).toString());
+        assertEquals("[a, B]", a.intersection(b).toString());
+        assertEquals("[c]", a.minus(b).toString());
+        // a different order falls back to single updates:
+        SortedSet<String> c = SortedSet.create(String::compareTo);
+        c = c.add("a").add("x");
+        assertEquals("[a, B, c, x]", a.union(c).toString());
+        assertEquals("[a]", a.intersection(c).toString());
+    }
+
+    public void testUnionSequentialTiming() {
+        long threshold = CatenableArrayTree.parallelThreshold;
+        CatenableArrayTree.parallelThreshold = Long.MAX_VALUE;
+        try {
+            unionOfEvenAndOdd(1000000);
+        } finally {
+            CatenableArrayTree.parallelThreshold = threshold;
+        }
+    }
+
+    public void testUnionParallelTiming() {
+        unionOfEvenAndOdd(1000000);
+    }
+
+    void unionOfEvenAndOdd(int n) {
+        Integer[] even = new Integer[n];
+        Integer[] odd = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            even[i] = 2 * i;
+            odd[i] = 2 * i + 1;
+        }
+        SortedSet<Integer> a = SortedSet.fromSorted(ConstantArray.fromArray(even), cmp);
+        SortedSet<Integer> b = SortedSet.fromSorted(ConstantArray.fromArray(odd), cmp);
+        SortedSet<Integer> union = a.union(b);
+        assertEquals(2 * n, union.size());
+        assertEquals(0, a.intersection(b).size());
+        assertEquals(n, union.minus(b).size());
+    }
+
+    public void testNavigation() {
+        Random rnd = new Random(23);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        SortedSet<Integer> set = randomSet(rnd, 3000, 10000, expected);
+        List<Integer> list = new ArrayList<Integer>(expected);
+        for (int i = 0; i < 1000; i++) {
+            int key = rnd.nextInt(10200) - 100;
+            assertEquals(expected.lower(key), set.lower(key));
+            assertEquals(expected.floor(key), set.floor(key));
+            assertEquals(expected.ceiling(key), set.ceiling(key));
+            assertEquals(expected.higher(key), set.higher(key));
+            assertEquals(expected.headSet(key).size(), set.rank(key));
+            int pos = list.indexOf(key);
+            assertEquals(pos, set.firstOf(key).intValue());
+            assertEquals(pos, set.lastOf(key).intValue());
+            int j = rnd.nextInt(list.size());
+            assertEquals(list.get(j), set.select(j));
+        }
+        for (int i = 0; i < 100; i++) {
+            int from = rnd.nextInt(10000);
+            int to = from + rnd.nextInt(500);
+            List<Integer> range = new ArrayList<Integer>(expected.subSet(from, to));
+            List<Integer> iterated = new ArrayList<Integer>();
+            ForwardIterator<Integer> it = set.iterator(from, to);
+            while (it.hasNext())
+                iterated.add(it.next());
+            assertEquals(range, iterated);
+            assertEquals(range.toString(), set.subSet(from, to).toString());
+        }
+        assertFalse(set.iterator(500, 400).hasNext());
+        assertEquals("[]", set.subSet(500, 400).toString());
+        int start = 7;
+        int end = 20;
+        assertEquals(list.subList(start, end).toString(), set.subArray(start, end).toString());
+    }
+
+    public void testFindEqualStopsAtSeparator() {
+        SortedSet<Integer> set = SortedSet.fromUnsorted(Stack.<Integer>create().push(5).push(1).push(3).push(7), cmp);
+        Object root = set.root;
+        // the separator of the root is the first element of the right subtree:
+        assertEquals(Integer.valueOf(5), CatenableArrayTree.separator(root));
+        assertSame(CatenableArrayTree.separator(root), CatenableArrayTree.findEqual(root, cmp, 5));
+        assertEquals(Integer.valueOf(1), set.find(1));
+        assertEquals(CatenableArrayTree.noElementFound, CatenableArrayTree.findEqual(root, cmp, 4));
+        assertEquals(CatenableArrayTree.noElementFound,
+                CatenableArrayTree.findEqual(CatenableArrayTree.emptyTree, cmp, 4));
+    }
+
+    /*
+     * contains at 1K and 1M keys; testTreeMapLookupTiming is the baseline with
+     * java.util.TreeMap.
+     */
+    public void testLookupTiming() {
+        lookupInSortedSet(1000);
+        lookupInSortedSet(1000000);
+    }
+
+    public void testTreeMapLookupTiming() {
+        lookupInTreeMap(1000);
+        lookupInTreeMap(1000000);
+    }
+
+    public void testLookupTenMillionKeysTiming() {
+        lookupInSortedSet(10000000);
+    }
+
+    /*
+     * looks up random keys in a set of the even numbers 0..2n-2 and checks
+     * that exactly the even keys are found.
+     */
+    void lookupInSortedSet(int n) {
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = 2 * i;
+        SortedSet<Integer> set = SortedSet.fromSorted(ConstantArray.fromArray(keys), cmp);
+        Random rnd = new Random(n);
+        int found = 0;
+        int even = 0;
+        for (int i = 0; i < 200000; i++) {
+            Integer key = rnd.nextInt(2 * n);
+            if (set.contains(key))
+                found++;
+            if (key % 2 == 0)
+                even++;
+        }
+        assertEquals(even, found);
+    }
+
+    void lookupInTreeMap(int n) {
+        TreeMap<Integer, Integer> treeMap = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < n; i++)
+            treeMap.put(2 * i, 2 * i);
+        Random rnd = new Random(n);
+        int found = 0;
+        int even = 0;
+        for (int i = 0; i < 200000; i++) {
+            Integer key = rnd.nextInt(2 * n);
+            if (treeMap.containsKey(key))
+                found++;
+            if (key % 2 == 0)
+                even++;
+        }
+        assertEquals(even, found);
+    }
 }
@@ -0,0 +1,79 @@
+package org.gendut.collection.mutable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.gendut.collection.ImmutableHashMap;
+import org.gendut.collection.ImmutableHashSet;
+
+public class AtomTest extends TestCase {
+
+	static final int threads = 8;
+
+	static final int perThread = 2000;
+
+	static void runConcurrently(final Atom<ImmutableHashSet<Integer>> atom) throws InterruptedException {
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * perThread;
+			workers.add(new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					final int value = offset + i;
+					atom.update(set -> set.add(value));
+				}
+			}));
+		}
+		for (Thread w : workers)
+			w.start();
+		for (Thread w : workers)
+			w.join();
+	}
+
+	public void testConcurrentUpdates() throws InterruptedException {
+		Atom<ImmutableHashSet<Integer>> atom = Atom.create(ImmutableHashSet.<Integer> create());
+		runConcurrently(atom);
+		assertEquals(threads * perThread, atom.get().size());
+		assertEquals(threads * perThread, atom.updates());
+		assertEquals(0, atom.combiningPasses());
+		assertTrue(atom.retryRate() >= 0);
+	}
+
+	public void testCombiningUpdates() throws InterruptedException {
+		Atom<ImmutableHashSet<Integer>> atom = Atom.combining(ImmutableHashSet.<Integer> create());
+		assertTrue(atom.isCombining());
+		runConcurrently(atom);
+		assertEquals(threads * perThread, atom.get().size());
+		for (int i = 0; i < threads * perThread; i++)
+			assertTrue(atom.get().contains(i));
+		assertEquals(threads * perThread, atom.updates());
+		assertTrue(atom.combiningPasses() > 0);
+		assertTrue(atom.combiningPasses() <= atom.updates());
+		atom.resetStatistics();
+		assertEquals(0, atom.updates());
+	}
+
+	public void testUpdateReturnsNewVersion() {
+		Atom<ImmutableHashMap<String, Integer>> atom = Atom.create(ImmutableHashMap.<String, Integer> create());
+		ImmutableHashMap<String, Integer> map = atom.update(m -> m.put("a", 1));
+		assertSame(map, atom.get());
+		assertFalse(atom.compareAndSet(ImmutableHashMap.<String, Integer> create(), map.clear()));
+		assertTrue(atom.compareAndSet(map, map.put("b", 2)));
+		assertEquals(2, atom.get().size());
+	}
+
+	public void testFailingUpdateInCombiningAtom() {
+		Atom<ImmutableHashSet<Integer>> atom = Atom.combining(ImmutableHashSet.<Integer> create());
+		atom.update(set -> set.add(1));
+		try {
+			atom.update(set -> {
+				throw new IllegalStateException("rejected");
+			});
+			fail("exception expected");
+		} catch (IllegalStateException e) {
+			assertEquals("rejected", e.getMessage());
+		}
+		assertEquals(2, atom.update(set -> set.add(2)).size());
+	}
+}